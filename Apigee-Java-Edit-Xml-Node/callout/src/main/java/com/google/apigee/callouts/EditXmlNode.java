@@ -26,24 +26,44 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.DocumentHandoff;
+import com.google.apigee.util.FragmentCache;
+import com.google.apigee.util.StreamingEditor;
 import com.google.apigee.util.VariableRefResolver;
 import com.google.apigee.util.XPathEvaluator;
+import com.google.apigee.util.XmlOutput;
 import com.google.apigee.util.XmlUtils;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.xml.xpath.XPathConstants;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 
 public class EditXmlNode implements Execution {
   private static final String _varPrefix = "editxml_";
   private static final String DEFAULT_SOURCE_AND_DEST = "message.content";
+  private static final Pattern indexedPropertyPattern =
+      Pattern.compile("^(xpath|action|new-node-type|new-node-text)\\.([0-9]{1,9})$");
+  private static final String[] singleEditProperties = {
+    "xpath", "action", "new-node-type", "new-node-text"
+  };
+  private static final Pattern attributeNamePattern =
+      Pattern.compile("^[A-Za-z_:][-A-Za-z0-9_.:]*$");
 
   private enum EditAction {
     InsertBefore,
@@ -67,8 +87,15 @@ public class EditXmlNode implements Execution {
     return (source == null) ? DEFAULT_SOURCE_AND_DEST : source;
   }
 
-  private Document getDocument(MessageContext msgCtxt) throws Exception {
+  private DocumentHandoff getDocumentHandoff(MessageContext msgCtxt) throws Exception {
+    return new DocumentHandoff(msgCtxt, getSimpleOptionalProperty("document-handoff", msgCtxt));
+  }
+
+  private Document getDocument(MessageContext msgCtxt, DocumentHandoff handoff) throws Exception {
     String source = getSource(msgCtxt);
+    if (handoff.isEnabled()) {
+      return handoff.getDocument(source);
+    }
     if (source == DEFAULT_SOURCE_AND_DEST) {
       return XmlUtils.parseXml(msgCtxt.getMessage().getContentAsStream());
     }
@@ -80,6 +107,19 @@ public class EditXmlNode implements Execution {
     return XmlUtils.parseXml(text);
   }
 
+  private InputSource getInputSource(MessageContext msgCtxt) throws Exception {
+    String source = getSource(msgCtxt);
+    if (source == DEFAULT_SOURCE_AND_DEST) {
+      return new InputSource(msgCtxt.getMessage().getContentAsStream());
+    }
+    String text = (String) msgCtxt.getVariable(source);
+    if (text == null) {
+      throw new IllegalStateException(
+          String.format("source property (%s) resolves to null", source));
+    }
+    return new InputSource(new StringReader(text));
+  }
+
   private String getOutputVar(MessageContext msgCtxt) throws Exception {
     String dest = getSimpleOptionalProperty("output-variable", msgCtxt);
     if (dest == null) {
@@ -89,8 +129,36 @@ public class EditXmlNode implements Execution {
     return dest;
   }
 
-  private String getXpath(MessageContext msgCtxt) throws Exception {
-    return getSimpleRequiredProperty("xpath", msgCtxt);
+  // The suffixes of the edits to apply, in order. With the single-edit properties (xpath, action,
+  // and so on), there is one edit, with an empty suffix. Otherwise, each edit is configured with
+  // indexed properties: xpath.1, action.1, new-node-type.1, new-node-text.1, xpath.2, and so on.
+  // A configuration may not mix the two forms.
+  private List<String> getEditSuffixes() {
+    SortedSet<Integer> indexes = new TreeSet<Integer>();
+    for (Object key : properties.keySet()) {
+      Matcher m = indexedPropertyPattern.matcher((String) key);
+      if (m.matches()) {
+        indexes.add(Integer.parseInt(m.group(2)));
+      }
+    }
+    if (indexes.isEmpty()) {
+      return Collections.singletonList("");
+    }
+    for (String name : singleEditProperties) {
+      if (properties.get(name) != null) {
+        throw new IllegalStateException(
+            "specify " + name + " or the indexed properties like " + name + ".1, not both");
+      }
+    }
+    List<String> suffixes = new ArrayList<String>();
+    for (Integer index : indexes) {
+      suffixes.add("." + index);
+    }
+    return suffixes;
+  }
+
+  private String getXpath(MessageContext msgCtxt, String suffix) throws Exception {
+    return getSimpleRequiredProperty("xpath" + suffix, msgCtxt);
   }
 
   private boolean getDebug() {
@@ -107,13 +175,13 @@ public class EditXmlNode implements Execution {
     return pretty.equals("true");
   }
 
-  private String getNewNodeText(MessageContext msgCtxt) throws Exception {
-    String n = getSimpleRequiredProperty("new-node-text", msgCtxt);
+  private String getNewNodeText(MessageContext msgCtxt, String suffix) throws Exception {
+    String n = getSimpleRequiredProperty("new-node-text" + suffix, msgCtxt);
     return n;
   }
 
-  private short getNewNodeType(MessageContext msgCtxt) throws Exception {
-    String nodetype = getSimpleRequiredProperty("new-node-type", msgCtxt);
+  private short getNewNodeType(MessageContext msgCtxt, String suffix) throws Exception {
+    String nodetype = getSimpleRequiredProperty("new-node-type" + suffix, msgCtxt);
     nodetype = nodetype.toLowerCase();
     if (nodetype.equals("element")) return Node.ELEMENT_NODE;
     if (nodetype.equals("attribute")) return Node.ATTRIBUTE_NODE;
@@ -121,8 +189,8 @@ public class EditXmlNode implements Execution {
     throw new IllegalStateException("new-node-type value is unknown: (" + nodetype + ")");
   }
 
-  private EditAction getAction(MessageContext msgCtxt) throws Exception {
-    String action = getSimpleRequiredProperty("action", msgCtxt);
+  private EditAction getAction(MessageContext msgCtxt, String suffix) throws Exception {
+    String action = getSimpleRequiredProperty("action" + suffix, msgCtxt);
     action = action.toLowerCase();
     if (action.equals("insert-before")) return EditAction.InsertBefore;
     if (action.equals("append")) return EditAction.Append;
@@ -178,8 +246,7 @@ public class EditXmlNode implements Execution {
     return namespaces;
   }
 
-  private void validate(NodeList nodes) throws IllegalStateException {
-    int length = nodes.getLength();
+  private void validate(int length) throws IllegalStateException {
     if (length != 1) {
       throw new IllegalStateException(
           "xpath does not resolve to one node. (length=" + length + ")");
@@ -253,26 +320,53 @@ public class EditXmlNode implements Execution {
   }
 
   private void execute0(Document document, MessageContext msgCtxt) throws Exception {
-    String xpath = getXpath(msgCtxt);
     Map<String, String> namespaces = getNamespaces(msgCtxt);
     XPathEvaluator xpe = new XPathEvaluator(namespaces);
+    // All the edits apply to the same document, in order; each sees the result of the prior ones.
+    for (String suffix : getEditSuffixes()) {
+      try {
+        applyEdit(document, namespaces, xpe, suffix, msgCtxt);
+      } catch (Exception e) {
+        throw forEdit(e, suffix);
+      }
+    }
+  }
+
+  // For an edit configured with indexed properties, an exception that names the edit that failed.
+  // The index goes at the end, so that it stays in the error, which is the text after the last
+  // colon.
+  private static Exception forEdit(Exception e, String suffix) {
+    if (suffix.isEmpty()) {
+      return e;
+    }
+    String message = (e.getMessage() != null) ? e.getMessage() : e.toString();
+    return new IllegalStateException(message + " (edit " + suffix.substring(1) + ")", e);
+  }
+
+  private void applyEdit(
+      Document document,
+      Map<String, String> namespaces,
+      XPathEvaluator xpe,
+      String suffix,
+      MessageContext msgCtxt)
+      throws Exception {
+    String xpath = getXpath(msgCtxt, suffix);
     NodeList nodes = (NodeList) xpe.evaluate(xpath, document, XPathConstants.NODESET);
-    validate(nodes);
-    EditAction action = getAction(msgCtxt);
+    validate(nodes.getLength());
+    EditAction action = getAction(msgCtxt, suffix);
     if (action == EditAction.Remove) {
       remove(nodes);
       return;
     }
 
-    short newNodeType = getNewNodeType(msgCtxt);
-    String text = getNewNodeText(msgCtxt);
+    short newNodeType = getNewNodeType(msgCtxt, suffix);
+    String text = getNewNodeText(msgCtxt, suffix);
     Node newNode = null;
     switch (newNodeType) {
       case Node.ELEMENT_NODE:
-        // Create a duplicate node and transfer ownership of the
-        // new node into the destination document.
-        Document temp = XmlUtils.parseXml(text, namespaces);
-        newNode = document.importNode(temp.getDocumentElement(), true);
+        // Create a duplicate of the parsed fragment, owned by the
+        // destination document. The parsed fragment is re-used.
+        newNode = document.importNode(FragmentCache.getElement(text, namespaces), true);
         break;
       case Node.ATTRIBUTE_NODE:
         if (text.indexOf("=") < 1) {
@@ -301,6 +395,97 @@ public class EditXmlNode implements Execution {
     }
   }
 
+  private static StreamingEditor.Action toStreamingAction(EditAction action) {
+    switch (action) {
+      case InsertBefore:
+        return StreamingEditor.Action.INSERT_BEFORE;
+      case Append:
+        return StreamingEditor.Action.APPEND;
+      case Replace:
+        return StreamingEditor.Action.REPLACE;
+      default:
+        return StreamingEditor.Action.REMOVE;
+    }
+  }
+
+  // Applies the edit in one pass over the XML, without building a DOM, when that gives the same
+  // result as editing the DOM: a single edit, with an xpath that is a simple path, that inserts,
+  // appends, or replaces an element or an attribute, or removes an element. Returns false, without
+  // having set the output, when the edit needs the DOM. In that case the edit on the DOM reports
+  // any error in the configuration.
+  private boolean editInStream(MessageContext msgCtxt) throws Exception {
+    List<String> suffixes = getEditSuffixes();
+    if (suffixes.size() != 1) {
+      return false;
+    }
+    String suffix = suffixes.get(0);
+    StreamingEditor editor;
+    EditAction action;
+    Element newElement = null;
+    String[] newAttribute = null;
+    try {
+      Map<String, String> namespaces = getNamespaces(msgCtxt);
+      editor = StreamingEditor.forXpath(getXpath(msgCtxt, suffix), namespaces);
+      if (editor == null) {
+        return false;
+      }
+      action = getAction(msgCtxt, suffix);
+      if (action == EditAction.Remove) {
+        if (editor.selectsAttribute()) {
+          return false;
+        }
+      } else {
+        short newNodeType = getNewNodeType(msgCtxt, suffix);
+        String text = getNewNodeText(msgCtxt, suffix);
+        if (newNodeType == Node.ELEMENT_NODE && !editor.selectsAttribute()) {
+          newElement = FragmentCache.getElement(text, namespaces);
+        } else if (newNodeType == Node.ATTRIBUTE_NODE && editor.selectsAttribute()) {
+          newAttribute = text.split("=", 2);
+          if (newAttribute.length != 2
+              || !attributeNamePattern.matcher(newAttribute[0]).matches()) {
+            return false;
+          }
+        } else {
+          return false;
+        }
+      }
+    } catch (Exception e) {
+      return false;
+    }
+
+    XmlOutput output = XmlOutput.forVariable(msgCtxt, getOutputVar(msgCtxt));
+    int selected;
+    try {
+      if (newAttribute != null) {
+        selected =
+            editor.editAttribute(
+                getInputSource(msgCtxt),
+                output.getResult(),
+                getPretty(msgCtxt),
+                toStreamingAction(action),
+                newAttribute[0],
+                newAttribute[1]);
+      } else {
+        selected =
+            editor.editElement(
+                getInputSource(msgCtxt),
+                output.getResult(),
+                getPretty(msgCtxt),
+                toStreamingAction(action),
+                newElement);
+      }
+    } catch (StreamingEditor.NotStreamableException e) {
+      return false;
+    }
+    try {
+      validate(selected);
+    } catch (IllegalStateException e) {
+      throw forEdit(e, suffix);
+    }
+    output.commit();
+    return true;
+  }
+
   protected static String getStackTraceAsString(Throwable t) {
     StringWriter sw = new StringWriter();
     PrintWriter pw = new PrintWriter(sw);
@@ -309,14 +494,20 @@ public class EditXmlNode implements Execution {
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    DocumentHandoff handoff = null;
     try {
       // Message msg = msgCtxt.getMessage();
-      Document document = getDocument(msgCtxt);
-      execute0(document, msgCtxt);
-      String result = XmlUtils.toString(document, getPretty(msgCtxt));
-      String outputVar = getOutputVar(msgCtxt);
-      msgCtxt.setVariable(outputVar, result);
+      handoff = getDocumentHandoff(msgCtxt);
+      // A document that is handed off to the next callout must be parsed.
+      if (handoff.isEnabled() || !editInStream(msgCtxt)) {
+        Document document = getDocument(msgCtxt, handoff);
+        execute0(document, msgCtxt);
+        handoff.setOutput(getOutputVar(msgCtxt), document, getPretty(msgCtxt));
+      }
     } catch (Exception e) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       if (getDebug()) {
         System.out.println(getStackTraceAsString(e));
       }
@@ -0,0 +1,225 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import com.apigee.flow.message.MessageContext;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * Hands a parsed Document from one XML callout to the next one in the same flow, so that a chain
+ * of callouts parses the XML once.
+ *
+ * <p>With document-handoff = true, a callout stores the Document it used in a flow variable, along
+ * with the name of the variable that holds the XML, and a fingerprint of that XML. The next callout
+ * that reads the same variable uses the stored Document, as long as the XML still has the same
+ * fingerprint. Each callout writes its result, so the XML in the variable is always current.
+ *
+ * <p>With document-handoff = defer, a callout that writes back to the variable it read from does
+ * not serialize; the XML in that variable is out of date until a callout with document-handoff =
+ * final serializes the Document and ends the handoff. A callout that replaces a handoff with
+ * deferred changes serializes those changes first, or fails if the XML they belong to has changed
+ * in the meantime, so that the changes are never silently lost.
+ */
+public class DocumentHandoff {
+  public static final String DOCUMENT_VARIABLE = "xml_handoff_document";
+  public static final String SOURCE_VARIABLE = "xml_handoff_source";
+  public static final String FINGERPRINT_VARIABLE = "xml_handoff_fingerprint";
+  public static final String PENDING_VARIABLE = "xml_handoff_pending";
+
+  private enum Mode {
+    NONE,
+    PUBLISH,
+    DEFER,
+    FINAL
+  }
+
+  private final MessageContext msgCtxt;
+  private final Mode mode;
+  private String source;
+  private String fingerprint;
+  private Document document;
+  private boolean pending; // true if the document has changes not yet serialized into the source
+  private boolean continued; // true if the document is the one handed off by a prior callout
+
+  public DocumentHandoff(MessageContext msgCtxt, String mode) {
+    this.msgCtxt = msgCtxt;
+    this.mode = parseMode(mode);
+  }
+
+  private static Mode parseMode(String mode) {
+    if (mode == null || mode.equals("false")) return Mode.NONE;
+    if (mode.equals("true")) return Mode.PUBLISH;
+    if (mode.equals("defer")) return Mode.DEFER;
+    if (mode.equals("final")) return Mode.FINAL;
+    throw new IllegalStateException(
+        "configuration error: document-handoff must be one of true, false, defer, final");
+  }
+
+  public boolean isEnabled() {
+    return mode != Mode.NONE;
+  }
+
+  /**
+   * Returns the Document for the XML in the given variable. This is the Document handed off by a
+   * prior callout, if there is one for the same variable and the XML has not changed since.
+   * Otherwise it is the result of parsing the XML.
+   */
+  public Document getDocument(String sourceVariable)
+      throws IOException, SAXException, ParserConfigurationException, TransformerException {
+    Object content = msgCtxt.getVariable(sourceVariable);
+    if (content == null) {
+      throw new IllegalStateException(
+          String.format("source variable (%s) resolves to null", sourceVariable));
+    }
+    String text = content.toString();
+    source = sourceVariable;
+    fingerprint = fingerprint(text);
+    Object handedOff = msgCtxt.getVariable(DOCUMENT_VARIABLE);
+    if (handedOff instanceof Document
+        && sourceVariable.equals(msgCtxt.getVariable(SOURCE_VARIABLE))
+        && fingerprint.equals(msgCtxt.getVariable(FINGERPRINT_VARIABLE))) {
+      document = (Document) handedOff;
+      pending = Boolean.TRUE.equals(msgCtxt.getVariable(PENDING_VARIABLE));
+      continued = true;
+    } else {
+      if (handedOff instanceof Document
+          && Boolean.TRUE.equals(msgCtxt.getVariable(PENDING_VARIABLE))) {
+        writeDeferred((Document) handedOff);
+      }
+      document = XmlUtils.parseXml(text);
+      pending = false;
+    }
+    return document;
+  }
+
+  // Serializes the deferred changes of a handoff that this callout does not
+  // continue, into the variable they belong to. If the XML in that variable
+  // has changed since the handoff, the changes cannot be applied, and this
+  // fails rather than drop them.
+  private void writeDeferred(Document handedOff) throws TransformerException {
+    Object variable = msgCtxt.getVariable(SOURCE_VARIABLE);
+    Object content = (variable == null) ? null : msgCtxt.getVariable(variable.toString());
+    if (content == null
+        || !fingerprint(content.toString()).equals(msgCtxt.getVariable(FINGERPRINT_VARIABLE))) {
+      throw new IllegalStateException(
+          String.format(
+              "the XML in %s changed while the handed-off document had deferred changes",
+              variable));
+    }
+    write(variable.toString(), handedOff, false);
+    clear();
+  }
+
+  /**
+   * Sets the resulting Document into the output variable. With document-handoff = defer, when the
+   * output variable is the variable the XML was read from, this skips the serialization.
+   */
+  public void setOutput(String outputVariable, Document result, boolean pretty)
+      throws TransformerException {
+    if (pending && !outputVariable.equals(source)) {
+      // the deferred changes belong in the source, but the document now has
+      // this callout's changes as well.
+      throw new IllegalStateException(
+          String.format(
+              "cannot write to %s while %s has deferred changes", outputVariable, source));
+    }
+    if (mode == Mode.DEFER && outputVariable.equals(source)) {
+      // The XML in the variable is unchanged, so its fingerprint is unchanged.
+      publish(source, fingerprint, result, true);
+      return;
+    }
+    String written = write(outputVariable, result, pretty);
+    if (mode == Mode.PUBLISH || mode == Mode.DEFER) {
+      publish(outputVariable, written, result, false);
+    } else if (mode == Mode.FINAL) {
+      clear();
+    }
+  }
+
+  /**
+   * Completes a callout that reads the Document without changing it. With document-handoff = true
+   * or final, this serializes changes deferred by prior callouts, if there are any.
+   */
+  public void release() throws TransformerException {
+    if (mode == Mode.DEFER) {
+      publish(source, fingerprint, document, pending);
+    } else if (mode == Mode.PUBLISH) {
+      if (pending) {
+        fingerprint = write(source, document, false);
+      }
+      publish(source, fingerprint, document, false);
+    } else if (mode == Mode.FINAL) {
+      if (pending) {
+        write(source, document, false);
+      }
+      clear();
+    }
+  }
+
+  /**
+   * Ends the handoff after the callout fails, if the callout was given the Document handed off by a
+   * prior callout. The callout may have changed that Document in part, so it must be neither handed
+   * on nor serialized. Changes deferred by prior callouts are in the same Document, and cannot be
+   * told apart from the partial changes, so they are discarded as well; the variable keeps the XML
+   * it had before them.
+   */
+  public void abandon() {
+    if (continued) {
+      clear();
+    }
+  }
+
+  // Serializes the document into the variable, and returns the fingerprint of
+  // the XML, computed as it is written.
+  private String write(String variable, Document doc, boolean pretty)
+      throws TransformerException {
+    XmlOutput output = XmlOutput.forVariableWithDigest(msgCtxt, variable);
+    XmlUtils.serialize(doc, pretty, output.getResult());
+    output.commit();
+    return Base64.getEncoder().encodeToString(output.getDigest());
+  }
+
+  private void publish(String variable, String fingerprint, Document doc, boolean pending) {
+    msgCtxt.setVariable(DOCUMENT_VARIABLE, doc);
+    msgCtxt.setVariable(SOURCE_VARIABLE, variable);
+    msgCtxt.setVariable(FINGERPRINT_VARIABLE, fingerprint);
+    msgCtxt.setVariable(PENDING_VARIABLE, pending);
+  }
+
+  private void clear() {
+    msgCtxt.removeVariable(DOCUMENT_VARIABLE);
+    msgCtxt.removeVariable(SOURCE_VARIABLE);
+    msgCtxt.removeVariable(FINGERPRINT_VARIABLE);
+    msgCtxt.removeVariable(PENDING_VARIABLE);
+  }
+
+  private static String fingerprint(String text) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      return Base64.getEncoder().encodeToString(md.digest(text.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
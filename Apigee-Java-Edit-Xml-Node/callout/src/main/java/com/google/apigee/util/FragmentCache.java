@@ -0,0 +1,100 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.util;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+/**
+ * Keeps parsed XML fragments, such as the new-node-text for a new element, for re-use. The
+ * fragment in a policy configuration is usually a constant, so the same text would otherwise be
+ * parsed on every request.
+ *
+ * <p>The returned Element is a template, which callers must not change; to insert it into a
+ * document, import a deep copy of it with Document.importNode. A DOM is not safe for use by
+ * concurrent threads, even for reading, so each thread has its own bounded set of templates,
+ * keyed by the text and the namespace bindings.
+ */
+public final class FragmentCache {
+  private static final int MAX_FRAGMENTS_PER_THREAD = 64;
+  // Larger fragments are parsed each time, rather than held in memory.
+  private static final int MAX_FRAGMENT_LENGTH = 16 * 1024;
+  private static final ThreadLocal<FragmentCache> caches =
+      ThreadLocal.withInitial(FragmentCache::new);
+
+  private final Map<Key, Element> fragments =
+      new LinkedHashMap<Key, Element>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Element> eldest) {
+          return size() > MAX_FRAGMENTS_PER_THREAD;
+        }
+      };
+
+  private FragmentCache() {}
+
+  /**
+   * Returns the top-level element of the fragment, parsed with XmlUtils.parseXml(fragment,
+   * namespaces).
+   */
+  public static Element getElement(String fragment, Map<String, String> namespaces)
+      throws IOException, SAXException, ParserConfigurationException {
+    if (fragment.length() > MAX_FRAGMENT_LENGTH) {
+      return XmlUtils.parseXml(fragment, namespaces).getDocumentElement();
+    }
+    return caches.get().getElement0(fragment, namespaces);
+  }
+
+  private Element getElement0(String fragment, Map<String, String> namespaces)
+      throws IOException, SAXException, ParserConfigurationException {
+    Key key = new Key(fragment, namespaces);
+    Element element = fragments.get(key);
+    if (element == null) {
+      element = XmlUtils.parseXml(fragment, key.namespaces).getDocumentElement();
+      fragments.put(key, element);
+    }
+    return element;
+  }
+
+  private static final class Key {
+    final String fragment;
+    final Map<String, String> namespaces;
+
+    Key(String fragment, Map<String, String> namespaces) {
+      this.fragment = fragment;
+      this.namespaces =
+          (namespaces == null)
+              ? Collections.<String, String>emptyMap()
+              : new HashMap<String, String>(namespaces);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return fragment.equals(other.fragment) && namespaces.equals(other.namespaces);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * fragment.hashCode() + namespaces.hashCode();
+    }
+  }
+}
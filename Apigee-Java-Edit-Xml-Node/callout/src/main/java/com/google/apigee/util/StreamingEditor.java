@@ -0,0 +1,497 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Applies one edit to an XML document in a single pass, without building a DOM. The document is
+ * read as a stream of SAX events, which are copied to the serializer as they arrive, and the edit
+ * is applied when the reader reaches the selected node. The memory used does not depend on the
+ * size of the document.
+ *
+ * <p>This works only for an xpath that is a simple absolute path of element steps, like
+ * /soap:Envelope/soap:Header, optionally ending in one attribute step, like /root/A/@id. The
+ * output is the same as that of editing the DOM and serializing it with an identity Transformer:
+ * the events are sent to the same serializer, with the attributes and namespace declarations in
+ * the order in which the serializer emits them from a DOM.
+ */
+public class StreamingEditor {
+  private static final Pattern QNAME =
+      Pattern.compile("([A-Za-z_][-A-Za-z0-9_.]*:)?[A-Za-z_][-A-Za-z0-9_.]*");
+  // TransformerFactory lookup is expensive, and a factory is not thread-safe.
+  // Each thread keeps one, as XmlUtils does for its Transformer. A
+  // TransformerHandler is used for one document only.
+  private static final ThreadLocal<SAXTransformerFactory> transformerFactories =
+      new ThreadLocal<SAXTransformerFactory>();
+
+  public enum Action {
+    INSERT_BEFORE,
+    APPEND,
+    REPLACE,
+    REMOVE
+  }
+
+  /** Thrown when the document turns out to need the DOM, before any output is complete. */
+  public static final class NotStreamableException extends SAXException {
+    NotStreamableException(String message) {
+      super(message);
+    }
+  }
+
+  private final XPathCache.SimplePath elementPath;
+  private final String attributeNamespaceUri; // null if the path selects an element
+  private final String attributeLocalName;
+
+  private StreamingEditor(
+      XPathCache.SimplePath elementPath, String attributeNamespaceUri, String attributeLocalName) {
+    this.elementPath = elementPath;
+    this.attributeNamespaceUri = attributeNamespaceUri;
+    this.attributeLocalName = attributeLocalName;
+  }
+
+  /**
+   * Returns an editor for the nodes selected by the xpath, or null if the xpath is not a simple
+   * path. A path to an element must have at least two steps, so that the edit never applies to
+   * the document element.
+   */
+  public static StreamingEditor forXpath(String xpath, Map<String, String> namespaces) {
+    int slash = xpath.lastIndexOf('/');
+    if (slash < 1) {
+      return null;
+    }
+    String lastStep = xpath.substring(slash + 1);
+    if (!lastStep.startsWith("@")) {
+      XPathCache.SimplePath path = XPathCache.SimplePath.parse(xpath, namespaces);
+      return (path == null) ? null : new StreamingEditor(path, null, null);
+    }
+    String name = lastStep.substring(1);
+    if (!QNAME.matcher(name).matches()) {
+      return null;
+    }
+    XPathCache.SimplePath path = XPathCache.SimplePath.parse(xpath.substring(0, slash), namespaces);
+    if (path == null) {
+      return null;
+    }
+    int colon = name.indexOf(':');
+    if (colon < 0) {
+      return new StreamingEditor(path, "", name);
+    }
+    String namespaceUri = namespaces.get(name.substring(0, colon));
+    return (namespaceUri == null)
+        ? null
+        : new StreamingEditor(path, namespaceUri, name.substring(colon + 1));
+  }
+
+  public boolean selectsAttribute() {
+    return attributeNamespaceUri != null;
+  }
+
+  /**
+   * Inserts the element before the selected element, appends it as the last child of the selected
+   * element, or replaces the selected element with it; or removes the selected element, along with
+   * the whitespace text that precedes it. The new element is null for Action.REMOVE.
+   *
+   * @return the number of elements the path selected. The edit is valid only if this is 1.
+   */
+  public int editElement(
+      InputSource source, StreamResult out, boolean pretty, Action action, Element newElement)
+      throws IOException, SAXException, ParserConfigurationException,
+          TransformerConfigurationException {
+    if (selectsAttribute()) {
+      throw new IllegalStateException("the path selects an attribute");
+    }
+    Editor editor = new Editor(newTransformerHandler(out, pretty), action);
+    editor.newElement = newElement;
+    return editor.run(source);
+  }
+
+  /**
+   * Sets the attribute on the element that owns the selected attribute. With Action.REPLACE, this
+   * first removes the selected attribute.
+   *
+   * @return the number of attributes the path selected. The edit is valid only if this is 1.
+   */
+  public int editAttribute(
+      InputSource source, StreamResult out, boolean pretty, Action action, String name, String value)
+      throws IOException, SAXException, ParserConfigurationException,
+          TransformerConfigurationException {
+    if (!selectsAttribute() || action == Action.REMOVE) {
+      throw new IllegalStateException("the path does not select an attribute");
+    }
+    Editor editor = new Editor(newTransformerHandler(out, pretty), action);
+    editor.newAttribute = new String[] {name, null, value};
+    return editor.run(source);
+  }
+
+  private static TransformerHandler newTransformerHandler(StreamResult out, boolean pretty)
+      throws TransformerConfigurationException {
+    SAXTransformerFactory factory = transformerFactories.get();
+    if (factory == null) {
+      factory = (SAXTransformerFactory) TransformerFactory.newInstance();
+      transformerFactories.set(factory);
+    }
+    TransformerHandler handler = factory.newTransformerHandler();
+    handler.getTransformer().setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    if (pretty) handler.getTransformer().setOutputProperty(OutputKeys.INDENT, "yes");
+    handler.setResult(out);
+    return handler;
+  }
+
+  // An attribute is {qname, namespace URI, value}; the URI is null or empty for no namespace.
+  private static final Comparator<String[]> byQName = (a, b) -> a[0].compareTo(b[0]);
+
+  private static boolean isNamespaceDeclaration(String qname) {
+    return qname.startsWith("xmlns");
+  }
+
+  private static boolean isWhitespace(char[] ch, int start, int length) {
+    for (int i = start; i < start + length; i++) {
+      if (ch[i] > ' ') return false;
+    }
+    return true;
+  }
+
+  private class Editor extends DefaultHandler2 {
+    private final TransformerHandler out;
+    private final Action action;
+    private final NamespaceSupport scope = new NamespaceSupport();
+    Element newElement;
+    String[] newAttribute;
+
+    private int selected;
+    private int depth;
+    private int matchedDepth; // the depth of the deepest open element that matches the path
+    private int skippedDepth; // > 0 within an element that is removed or replaced
+    private boolean inDtd;
+    private boolean inCdata;
+    // With Action.REMOVE, whitespace text is held back until it is known whether it precedes the
+    // removed element.
+    private final StringBuilder whitespace = new StringBuilder();
+    private boolean textHasContent;
+
+    Editor(TransformerHandler out, Action action) {
+      this.out = out;
+      this.action = action;
+    }
+
+    int run(InputSource source) throws IOException, SAXException, ParserConfigurationException {
+      XMLReader reader = XmlUtils.getXMLReader();
+      reader.setContentHandler(this);
+      reader.setProperty("http://xml.org/sax/properties/lexical-handler", this);
+      reader.parse(source);
+      return selected;
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+      out.startDocument();
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+      flushText();
+      out.endDocument();
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts)
+        throws SAXException {
+      if (skippedDepth > 0) {
+        skippedDepth++;
+        return;
+      }
+      if (depth == 0 && qName.equalsIgnoreCase("html")) {
+        // The serializer writes HTML for such a document, unless it knows the namespace.
+        throw new NotStreamableException("the document element is html");
+      }
+      List<String[]> attributes = new ArrayList<String[]>();
+      for (int i = 0; i < atts.getLength(); i++) {
+        attributes.add(new String[] {atts.getQName(i), atts.getURI(i), atts.getValue(i)});
+      }
+      int d = depth + 1;
+      boolean matched =
+          matchedDepth == d - 1
+              && d <= elementPath.length()
+              && elementPath.matches(d - 1, uri, localName);
+      if (matched && d == elementPath.length()) {
+        if (selectsAttribute()) {
+          editAttributes(attributes);
+        } else {
+          selected++;
+          if (action == Action.REMOVE) {
+            whitespace.setLength(0);
+            textHasContent = false;
+            skippedDepth = 1;
+            return;
+          }
+          if (action == Action.INSERT_BEFORE || action == Action.REPLACE) {
+            flushText();
+            writeElement(newElement);
+            if (action == Action.REPLACE) {
+              skippedDepth = 1;
+              return;
+            }
+          }
+        }
+      }
+      flushText();
+      depth = d;
+      if (matched) matchedDepth = d;
+      startElement(qName, uri, attributes);
+    }
+
+    private void editAttributes(List<String[]> attributes) {
+      for (int i = 0; i < attributes.size(); i++) {
+        String[] attribute = attributes.get(i);
+        if (!isNamespaceDeclaration(attribute[0])
+            && attributeLocalName.equals(localName(attribute[0]))
+            && attributeNamespaceUri.equals((attribute[1] == null) ? "" : attribute[1])) {
+          selected++;
+          if (action == Action.REPLACE) {
+            attributes.remove(i);
+          }
+          // like Element.setAttributeNode, this replaces an attribute with the same name.
+          attributes.removeIf(a -> a[0].equals(newAttribute[0]));
+          attributes.add(newAttribute);
+          return;
+        }
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+      if (skippedDepth > 0) {
+        skippedDepth--;
+        return;
+      }
+      flushText();
+      if (action == Action.APPEND
+          && !selectsAttribute()
+          && matchedDepth == depth
+          && depth == elementPath.length()) {
+        writeElement(newElement);
+      }
+      endElement(qName);
+      if (matchedDepth == depth) matchedDepth--;
+      depth--;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+      if (skippedDepth > 0) {
+        return;
+      }
+      if (action == Action.REMOVE && !inCdata && !textHasContent) {
+        if (isWhitespace(ch, start, length)) {
+          whitespace.append(ch, start, length);
+          return;
+        }
+        flushText();
+        textHasContent = true;
+      }
+      out.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+      // a DOM keeps this as text.
+      characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+      if (skippedDepth > 0 || inDtd) {
+        return;
+      }
+      flushText();
+      out.processingInstruction(target, data);
+    }
+
+    // The DOCTYPE is not serialized, nor is anything within it.
+    @Override
+    public void startDTD(String name, String publicId, String systemId) {
+      inDtd = true;
+    }
+
+    @Override
+    public void endDTD() {
+      inDtd = false;
+    }
+
+    @Override
+    public void startCDATA() throws SAXException {
+      if (skippedDepth > 0) {
+        return;
+      }
+      flushText();
+      inCdata = true;
+      out.startCDATA();
+    }
+
+    @Override
+    public void endCDATA() throws SAXException {
+      if (skippedDepth > 0) {
+        return;
+      }
+      inCdata = false;
+      out.endCDATA();
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+      if (skippedDepth > 0 || inDtd) {
+        return;
+      }
+      flushText();
+      out.comment(ch, start, length);
+    }
+
+    // Ends a run of text: writes any whitespace held back.
+    private void flushText() throws SAXException {
+      if (whitespace.length() > 0) {
+        char[] ch = whitespace.toString().toCharArray();
+        whitespace.setLength(0);
+        out.characters(ch, 0, ch.length);
+      }
+      textHasContent = false;
+    }
+
+    // Writes the start tag the way the serializer writes an element of a DOM: the namespace
+    // declarations first, then the other attributes, each in order of the qualified name. The
+    // serializer omits declarations that are already in scope, and declares the namespace of the
+    // element and of each attribute, if it is not in scope.
+    private void startElement(String qName, String uri, List<String[]> attributes)
+        throws SAXException {
+      scope.pushContext();
+      attributes.sort(byQName);
+      AttributesImpl atts = new AttributesImpl();
+      for (String[] attribute : attributes) {
+        if (isNamespaceDeclaration(attribute[0])) {
+          int colon = attribute[0].lastIndexOf(':');
+          declare((colon > 0) ? attribute[0].substring(colon + 1) : "", attribute[2], atts);
+        }
+      }
+      for (String[] attribute : attributes) {
+        if (!isNamespaceDeclaration(attribute[0])) {
+          if (attribute[1] != null && !attribute[1].isEmpty()) {
+            declare(prefix(attribute[0]), attribute[1], atts);
+          }
+          atts.addAttribute("", localName(attribute[0]), attribute[0], "CDATA", attribute[2]);
+        }
+      }
+      declare(prefix(qName), (uri == null) ? "" : uri, atts);
+      out.startElement(null, null, qName, atts);
+    }
+
+    private void endElement(String qName) throws SAXException {
+      out.endElement(null, null, qName);
+      scope.popContext();
+    }
+
+    private void declare(String prefix, String uri, AttributesImpl atts) {
+      // the serializer never declares a prefix that starts with xml.
+      if (prefix.startsWith("xml")) {
+        return;
+      }
+      String current = scope.getURI(prefix);
+      if (current == null && prefix.isEmpty()) {
+        current = "";
+      }
+      if (uri.equals(current)) {
+        return;
+      }
+      scope.declarePrefix(prefix, uri);
+      if (prefix.isEmpty()) {
+        atts.addAttribute("", "xmlns", "xmlns", "CDATA", uri);
+      } else if (!uri.isEmpty()) {
+        atts.addAttribute("", prefix, "xmlns:" + prefix, "CDATA", uri);
+      }
+    }
+
+    private void writeElement(Element element) throws SAXException {
+      List<String[]> attributes = new ArrayList<String[]>();
+      NamedNodeMap map = element.getAttributes();
+      for (int i = 0; i < map.getLength(); i++) {
+        Node attr = map.item(i);
+        attributes.add(
+            new String[] {attr.getNodeName(), attr.getNamespaceURI(), attr.getNodeValue()});
+      }
+      startElement(element.getNodeName(), element.getNamespaceURI(), attributes);
+      for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling()) {
+        writeNode(n);
+      }
+      endElement(element.getNodeName());
+    }
+
+    private void writeNode(Node node) throws SAXException {
+      switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          writeElement((Element) node);
+          break;
+        case Node.TEXT_NODE:
+          char[] text = node.getNodeValue().toCharArray();
+          out.characters(text, 0, text.length);
+          break;
+        case Node.CDATA_SECTION_NODE:
+          char[] cdata = node.getNodeValue().toCharArray();
+          out.startCDATA();
+          out.characters(cdata, 0, cdata.length);
+          out.endCDATA();
+          break;
+        case Node.COMMENT_NODE:
+          char[] comment = node.getNodeValue().toCharArray();
+          out.comment(comment, 0, comment.length);
+          break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+          out.processingInstruction(node.getNodeName(), node.getNodeValue());
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  private static String prefix(String qname) {
+    int colon = qname.indexOf(':');
+    return (colon < 0) ? "" : qname.substring(0, colon);
+  }
+
+  private static String localName(String qname) {
+    return qname.substring(qname.indexOf(':') + 1);
+  }
+}
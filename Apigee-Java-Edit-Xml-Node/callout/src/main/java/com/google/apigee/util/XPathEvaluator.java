@@ -18,9 +18,7 @@ import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -31,11 +29,8 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -50,15 +45,6 @@ public class XPathEvaluator {
   private Map<String, String> prefixi;
 
   private void init(Map<String, String> prefixes) throws Exception {
-
-    transformer = TransformerFactory.newInstance().newTransformer();
-    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-
-    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-    factory.setNamespaceAware(true);
-    docBuilder = factory.newDocumentBuilder();
-
     if (prefixes == null) {
       prefixi = new HashMap<String, String>();
     } else {
@@ -66,6 +52,29 @@ public class XPathEvaluator {
     }
   }
 
+  // The transformer and the builder are needed only for some methods; create them on first use.
+  private Transformer getTransformer() throws TransformerException {
+    if (transformer == null) {
+      transformer = TransformerFactory.newInstance().newTransformer();
+      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+      transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    }
+    return transformer;
+  }
+
+  private DocumentBuilder getDocBuilder() throws SAXException {
+    if (docBuilder == null) {
+      try {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        docBuilder = factory.newDocumentBuilder();
+      } catch (ParserConfigurationException ex) {
+        throw new SAXException(ex);
+      }
+    }
+    return docBuilder;
+  }
+
   public XPathEvaluator() throws Exception {
     init(null);
   }
@@ -103,7 +112,7 @@ public class XPathEvaluator {
 
         if (nodeValue == null) {
           StringWriter stringWriter = new StringWriter();
-          transformer.transform(new DOMSource(item), new StreamResult(stringWriter));
+          getTransformer().transform(new DOMSource(item), new StreamResult(stringWriter));
           sb.append(stringWriter.toString());
         } else {
           sb.append(item.getNodeValue()).append("\n");
@@ -118,7 +127,8 @@ public class XPathEvaluator {
   public Object evaluate(String xpath, String xml, QName ret)
       throws SAXException, IOException, XPathExpressionException {
 
-    Document sourceXML = docBuilder.parse(new InputSource(new CharArrayReader(xml.toCharArray())));
+    Document sourceXML =
+        getDocBuilder().parse(new InputSource(new CharArrayReader(xml.toCharArray())));
 
     // hack; found no way to get it working with default namespaces
     if (sourceXML.lookupNamespaceURI(null) != null) {
@@ -140,31 +150,6 @@ public class XPathEvaluator {
 
   public Object evaluate(String xpath, Document sourceXML, QName ret)
       throws SAXException, IOException, XPathExpressionException {
-    XPathFactory factory = XPathFactory.newInstance();
-    XPath xPath = factory.newXPath();
-    xPath.setNamespaceContext(new CustomNamespaceResolver(prefixi));
-    XPathExpression expr = xPath.compile(xpath);
-    return expr.evaluate(sourceXML, ret);
-  }
-
-  private static final class CustomNamespaceResolver implements NamespaceContext {
-    private Map<String, String> prefixes;
-
-    public CustomNamespaceResolver(Map<String, String> prefixi) {
-      prefixes = prefixi;
-    }
-
-    public String getNamespaceURI(String prefix) {
-      String ns = prefixes.get(prefix);
-      return ns;
-    }
-
-    public String getPrefix(String namespaceURI) {
-      throw new UnsupportedOperationException();
-    }
-
-    public Iterator getPrefixes(String namespaceURI) {
-      throw new UnsupportedOperationException();
-    }
+    return XPathCache.evaluate(xpath, prefixi, sourceXML, ret);
   }
 }
@@ -14,7 +14,6 @@
 //
 package com.google.apigee.util;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
@@ -25,7 +24,10 @@ import java.util.regex.Pattern;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -35,35 +37,76 @@ import org.w3c.dom.Document;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 public class XmlUtils {
 
-  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+  // DocumentBuilderFactory lookup is expensive, and neither factories nor
+  // builders are thread-safe. Each thread keeps one builder, configured once,
+  // and resets it before each use.
+  private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+  private static final ThreadLocal<SAXParser> saxParsers = new ThreadLocal<SAXParser>();
+  // Nor is a Transformer. An identity Transformer can be re-used after reset().
+  private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
+  private static final Pattern firstElementPattern =
+      Pattern.compile("^(\\s*)(<[\\w:_0-9]+)(\\s|>)");
+
+  // prevent DTD entities from being resolved.
+  private static final EntityResolver noEntities =
+      (publicId, systemId) -> new InputSource(new StringReader(""));
+
+  private static DocumentBuilder newBuilder() throws ParserConfigurationException {
     DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
     factory.setNamespaceAware(true);
     factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
     factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+    return factory.newDocumentBuilder();
+  }
 
-    DocumentBuilder builder = factory.newDocumentBuilder();
-    // prevent DTD entities from being resolved.
-    builder.setEntityResolver(
-        new EntityResolver() {
-          @Override
-          public InputSource resolveEntity(String publicId, String systemId)
-              throws SAXException, IOException {
-            return new InputSource(new StringReader(""));
-          }
-        });
-
+  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+    DocumentBuilder builder = builders.get();
+    if (builder == null) {
+      builder = newBuilder();
+      builders.set(builder);
+    } else {
+      builder.reset();
+    }
+    // reset() removes the entity resolver, so set it each time.
+    builder.setEntityResolver(noEntities);
     return builder;
   }
 
+  private static SAXParser newSaxParser() throws ParserConfigurationException, SAXException {
+    SAXParserFactory factory = SAXParserFactory.newInstance();
+    factory.setNamespaceAware(true);
+    // report the namespace declarations as attributes, as they appear in a DOM.
+    factory.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
+    factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+    return factory.newSAXParser();
+  }
+
+  /**
+   * Returns a namespace-aware XMLReader, configured like the DocumentBuilder used by parseXml, for
+   * reading a document without building a DOM.
+   */
+  public static XMLReader getXMLReader() throws ParserConfigurationException, SAXException {
+    SAXParser parser = saxParsers.get();
+    if (parser == null) {
+      parser = newSaxParser();
+      saxParsers.set(parser);
+    } else {
+      parser.reset();
+    }
+    XMLReader reader = parser.getXMLReader();
+    reader.setEntityResolver(noEntities);
+    return reader;
+  }
+
   public static Document parseXml(InputStream in)
       throws IOException, SAXException, ParserConfigurationException {
-    DocumentBuilder builder = getBuilder();
-    InputStream bin = new BufferedInputStream(in);
-    Document ret = builder.parse(new InputSource(bin));
-    return ret;
+    // The parser buffers its input, and decodes the bytes itself.
+    return getBuilder().parse(new InputSource(in));
   }
 
   public static Document parseXml(String s)
@@ -81,8 +124,7 @@ public class XmlUtils {
     InputSource is = new InputSource();
     if (!namespaces.isEmpty()) {
       // prepend the namespace decls to the toplevel element
-      Pattern firstWhitespacePattern = Pattern.compile("^(\\s*)(<[\\w:_0-9]+)(\\s|>)");
-      Matcher matcher = firstWhitespacePattern.matcher(fragment);
+      Matcher matcher = firstElementPattern.matcher(fragment);
       if (matcher.find()) {
         StringBuffer sb = new StringBuffer();
         matcher.appendReplacement(sb, "");
@@ -108,14 +150,27 @@ public class XmlUtils {
   }
 
   public static String toString(Document doc, boolean pretty) throws TransformerException {
-    DOMSource domSource = new DOMSource(doc);
     StringWriter writer = new StringWriter();
-    StreamResult result = new StreamResult(writer);
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer transformer = tf.newTransformer();
-    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-    if (pretty) transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-    transformer.transform(domSource, result);
+    serialize(doc, pretty, new StreamResult(writer));
     return writer.toString();
   }
+
+  /**
+   * Serializes the document, without an XML declaration, into the result. For a StreamResult with
+   * an OutputStream, the serializer writes UTF-8 bytes.
+   */
+  public static void serialize(Document doc, boolean pretty, Result result)
+      throws TransformerException {
+    Transformer transformer = transformers.get();
+    if (transformer == null) {
+      transformer = TransformerFactory.newInstance().newTransformer();
+      transformers.set(transformer);
+    } else {
+      transformer.reset();
+    }
+    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    // reset() does not restore the output properties in every JDK, so set both each time.
+    transformer.setOutputProperty(OutputKeys.INDENT, pretty ? "yes" : "no");
+    transformer.transform(new DOMSource(doc), result);
+  }
 }
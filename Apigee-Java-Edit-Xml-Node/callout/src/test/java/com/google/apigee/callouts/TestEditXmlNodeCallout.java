@@ -30,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Scanner;
 import mockit.Mock;
 import mockit.MockUp;
 import org.testng.Assert;
@@ -98,6 +99,13 @@ public class TestEditXmlNodeCallout {
           public InputStream getContentAsStream() {
             return new ByteArrayInputStream(messageContent.getBytes(StandardCharsets.UTF_8));
           }
+
+          @Mock()
+          public void setContent(InputStream in) {
+            try (Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A")) {
+              msgCtxt.setVariable("message.content", s.hasNext() ? s.next() : "");
+            }
+          }
         }.getMockInstance();
   }
 
@@ -189,4 +197,135 @@ public class TestEditXmlNodeCallout {
     }
     System.out.println("=========================================================");
   }
+
+  private static Map<String, String> appendConfig(String xpath, String text, String handoff) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("xpath", xpath);
+    props.put("action", "append");
+    props.put("new-node-type", "element");
+    props.put("new-node-text", text);
+    props.put("document-handoff", handoff);
+    return props;
+  }
+
+  @Test
+  public void test3_DocumentHandoff() {
+    String original = "<root><A>text1</A></root>";
+    msgCtxt.setVariable("message.content", original);
+
+    ExecutionResult result =
+        new EditXmlNode(appendConfig("/root", "<B/>", "defer")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    // the content is not serialized; the edited document is handed off.
+    Assert.assertEquals(msgCtxt.getVariable("message.content"), original);
+    Object handedOff = msgCtxt.getVariable("xml_handoff_document");
+    Assert.assertNotNull(handedOff);
+
+    result = new EditXmlNode(appendConfig("/root/B", "<C/>", "defer")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("message.content"), original);
+    Assert.assertSame(msgCtxt.getVariable("xml_handoff_document"), handedOff);
+
+    result = new EditXmlNode(appendConfig("/root", "<D/>", "final")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(
+        msgCtxt.getVariable("message.content"), "<root><A>text1</A><B><C/></B><D/></root>");
+    Assert.assertNull(msgCtxt.getVariable("xml_handoff_document"));
+  }
+
+  @Test
+  public void test4_DocumentHandoffIgnoredWhenContentChanges() {
+    msgCtxt.setVariable("message.content", "<root><A>text1</A></root>");
+    ExecutionResult result =
+        new EditXmlNode(appendConfig("/root", "<B/>", "true")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+
+    // something other than a callout sets the content
+    msgCtxt.setVariable("message.content", "<root><Z/></root>");
+    result = new EditXmlNode(appendConfig("/root", "<D/>", "final")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(msgCtxt.getVariable("message.content"), "<root><Z/><D/></root>");
+  }
+
+  @Test
+  public void test5_DocumentHandoffWritesThrough() {
+    msgCtxt.setVariable("message.content", "<root><A>text1</A></root>");
+    ExecutionResult result =
+        new EditXmlNode(appendConfig("/root", "<B/>", "true")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    // the content is current, and the document is handed off along with it.
+    Assert.assertEquals(msgCtxt.getVariable("message.content"), "<root><A>text1</A><B/></root>");
+    Object handedOff = msgCtxt.getVariable("xml_handoff_document");
+    Assert.assertNotNull(handedOff);
+    Assert.assertEquals(msgCtxt.getVariable("xml_handoff_pending"), Boolean.FALSE);
+
+    result = new EditXmlNode(appendConfig("/root/B", "<C/>", "true")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertSame(msgCtxt.getVariable("xml_handoff_document"), handedOff);
+    Assert.assertEquals(
+        msgCtxt.getVariable("message.content"), "<root><A>text1</A><B><C/></B></root>");
+  }
+
+  @Test
+  public void test6_DeferredChangesWrittenForAnotherSource() {
+    msgCtxt.setVariable("message.content", "<root><A>text1</A></root>");
+    msgCtxt.setVariable("other", "<other/>");
+    ExecutionResult result =
+        new EditXmlNode(appendConfig("/root", "<B/>", "defer")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+
+    Map<String, String> props = appendConfig("/other", "<X/>", "defer");
+    props.put("source", "other");
+    props.put("output-variable", "other");
+    result = new EditXmlNode(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    // the deferred change to the first source is not lost.
+    Assert.assertEquals(msgCtxt.getVariable("message.content"), "<root><A>text1</A><B/></root>");
+    Assert.assertEquals(msgCtxt.getVariable("xml_handoff_source"), "other");
+  }
+
+  @Test
+  public void test7_DeferredChangesConflict() {
+    msgCtxt.setVariable("message.content", "<root><A>text1</A></root>");
+    ExecutionResult result =
+        new EditXmlNode(appendConfig("/root", "<B/>", "defer")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+
+    // something other than a callout sets the content, while a change is deferred
+    msgCtxt.setVariable("message.content", "<root><Z/></root>");
+    result = new EditXmlNode(appendConfig("/root", "<D/>", "final")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertEquals(
+        msgCtxt.getVariable("editxml_error"),
+        "the XML in message.content changed while the handed-off document had deferred changes");
+    Assert.assertEquals(msgCtxt.getVariable("message.content"), "<root><Z/></root>");
+  }
+
+  @Test
+  public void test8_FailedEditIsNotHandedOff() {
+    msgCtxt.setVariable("message.content", "<root><A>text1</A></root>");
+    ExecutionResult result =
+        new EditXmlNode(appendConfig("/root", "<B/>", "true")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+
+    // the first edit of the batch changes the handed-off document; the second fails
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("document-handoff", "true");
+    props.put("xpath.1", "/root");
+    props.put("action.1", "append");
+    props.put("new-node-type.1", "element");
+    props.put("new-node-text.1", "<X/>");
+    props.put("xpath.2", "/root/nomatch");
+    props.put("action.2", "append");
+    props.put("new-node-type.2", "element");
+    props.put("new-node-text.2", "<Y/>");
+    result = new EditXmlNode(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.ABORT);
+    Assert.assertNull(msgCtxt.getVariable("xml_handoff_document"));
+
+    result = new EditXmlNode(appendConfig("/root", "<D/>", "final")).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(result, ExecutionResult.SUCCESS);
+    Assert.assertEquals(
+        msgCtxt.getVariable("message.content"), "<root><A>text1</A><B/><D/></root>");
+  }
 }
@@ -0,0 +1,66 @@
+// Copyright 2020-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXParseException;
+
+public class FragmentCacheTest {
+  private static final String fragment = "<ns1:Trace id='1'>value</ns1:Trace>";
+
+  private static Map<String, String> namespaces(String uri) {
+    Map<String, String> namespaces = new HashMap<String, String>();
+    namespaces.put("ns1", uri);
+    return namespaces;
+  }
+
+  @Test
+  public void testParsedOncePerTextAndNamespaces() throws Exception {
+    Element first = FragmentCache.getElement(fragment, namespaces("urn:one"));
+    Element second = FragmentCache.getElement(fragment, namespaces("urn:one"));
+    Assert.assertSame(second, first);
+    Element other = FragmentCache.getElement(fragment, namespaces("urn:two"));
+    Assert.assertNotSame(other, first);
+    Assert.assertEquals(first.getNamespaceURI(), "urn:one");
+    Assert.assertEquals(other.getNamespaceURI(), "urn:two");
+  }
+
+  @Test
+  public void testImportedCopiesAreIndependent() throws Exception {
+    Document doc = XmlUtils.parseXml("<root><A/></root>");
+    Element template = FragmentCache.getElement(fragment, namespaces("urn:one"));
+    Element copy1 = (Element) doc.importNode(template, true);
+    Element copy2 = (Element) doc.importNode(template, true);
+    doc.getDocumentElement().appendChild(copy1);
+    doc.getDocumentElement().appendChild(copy2);
+    copy1.setAttribute("id", "changed");
+    copy1.getFirstChild().setNodeValue("changed");
+    Assert.assertEquals(copy2.getAttribute("id"), "1");
+    Assert.assertEquals(template.getAttribute("id"), "1");
+    Assert.assertEquals(template.getTextContent(), "value");
+    Assert.assertNull(template.getParentNode().getParentNode());
+  }
+
+  @Test(expectedExceptions = SAXParseException.class)
+  public void testMalformedFragment() throws Exception {
+    FragmentCache.getElement("<unclosed>", namespaces("urn:one"));
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright 2020-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPathConstants;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+public class StreamingEditorTest {
+  private static final String[] documents = {
+    "<root><A attr1='fred'>text1</A><B/></root>",
+    "<?xml version='1.0'?>\n<!--before-->\n<root z='1' b=\"&quot;'\" a='x&#10;y&lt;'>\n"
+        + "  <A><![CDATA[<raw>]]><!--c--><?pi data?>t&amp;t</A>\n"
+        + "  <B xmlns:q='urn:q' q:at='2'>é</B>\n</root>\n<!--after-->",
+    "<!DOCTYPE root [<!ENTITY e 'EE'><!--in the dtd--><?dtd pi?>]><root><A>&e;</A><B>x</B></root>",
+    "<s:Envelope xmlns:s='urn:s'><s:Header><h/></s:Header>\n<s:Body>"
+        + "<p:A xmlns:p='urn:p' xmlns:s='urn:s'><c/></p:A><B/></s:Body></s:Envelope>",
+    "<root xmlns='urn:d' xmlns:s='urn:s'><A s:id='1'/><B xmlns=''><c/></B></root>",
+  };
+
+  private static final String[][] edits = {
+    // xpath, action, new element or attribute (name=value)
+    {"/*/A", "insert-before", "<new x='1'>seven</new>"},
+    {"/*/A", "append", "<new><!--c--><![CDATA[<cd>]]>text</new>"},
+    {"/*/A", "replace", "<s:new s:b='1' a='2'/>"},
+    {"/*/A", "remove", null},
+    {"/*/*/A", "remove", null},
+    {"/s:Envelope/s:Header", "remove", null},
+    {"/s:Envelope/s:Body/p:A", "append", "<s:x />"},
+    {"/d:root/d:A", "append", "<new/>"},
+    {"/d:root/d:A/@s:id", "replace", "id=2"},
+    {"/*/B", "insert-before", "<d:new />"},
+    {"/*/A/@attr1", "append", "attr0=a&b"},
+    {"/*/A/@attr1", "insert-before", "attr1=replaced"},
+    {"/*/A/@attr1", "replace", "zz=\"q\""},
+    {"/*/*/B/@q:at", "replace", "p:at=3"},
+  };
+
+  private static Map<String, String> namespaces() {
+    Map<String, String> namespaces = new HashMap<String, String>();
+    namespaces.put("s", "urn:s");
+    namespaces.put("p", "urn:p");
+    namespaces.put("q", "urn:q");
+    namespaces.put("d", "urn:d");
+    return namespaces;
+  }
+
+  private static StreamingEditor.Action action(String action) {
+    return StreamingEditor.Action.valueOf(action.toUpperCase().replace('-', '_'));
+  }
+
+  // The edit, as EditXmlNode applies it to the DOM. Returns null if the xpath does not select
+  // exactly one node.
+  private static String editDom(String xml, String[] edit, boolean pretty) throws Exception {
+    Document doc = XmlUtils.parseXml(xml);
+    Map<String, String> namespaces = namespaces();
+    org.w3c.dom.NodeList nodes =
+        (org.w3c.dom.NodeList) XPathCache.evaluate(edit[0], namespaces, doc, XPathConstants.NODESET);
+    if (nodes.getLength() != 1) {
+      return null;
+    }
+    Node current = nodes.item(0);
+    StreamingEditor.Action action = action(edit[1]);
+    if (current.getNodeType() == Node.ATTRIBUTE_NODE) {
+      String[] parts = edit[2].split("=", 2);
+      Attr attr = doc.createAttribute(parts[0]);
+      attr.setValue(parts[1]);
+      Element owner = ((Attr) current).getOwnerElement();
+      if (action == StreamingEditor.Action.REPLACE) {
+        owner.removeAttributeNode((Attr) current);
+      }
+      owner.setAttributeNode(attr);
+    } else if (action == StreamingEditor.Action.REMOVE) {
+      Node prev = current.getPreviousSibling();
+      if (prev != null
+          && prev.getNodeType() == Node.TEXT_NODE
+          && prev.getNodeValue().trim().isEmpty()) {
+        current.getParentNode().removeChild(prev);
+      }
+      current.getParentNode().removeChild(current);
+    } else {
+      Node newNode =
+          doc.importNode(XmlUtils.parseXml(edit[2], namespaces).getDocumentElement(), true);
+      if (action == StreamingEditor.Action.INSERT_BEFORE) {
+        current.getParentNode().insertBefore(newNode, current);
+      } else if (action == StreamingEditor.Action.APPEND) {
+        current.appendChild(newNode);
+      } else {
+        current.getParentNode().replaceChild(newNode, current);
+      }
+    }
+    return XmlUtils.toString(doc, pretty);
+  }
+
+  private static String editStream(String xml, String[] edit, boolean pretty) throws Exception {
+    StreamingEditor editor = StreamingEditor.forXpath(edit[0], namespaces());
+    Assert.assertNotNull(editor, edit[0]);
+    StringWriter out = new StringWriter();
+    InputSource source = new InputSource(new StringReader(xml));
+    StreamResult result = new StreamResult(out);
+    int selected;
+    if (editor.selectsAttribute()) {
+      String[] parts = edit[2].split("=", 2);
+      selected = editor.editAttribute(source, result, pretty, action(edit[1]), parts[0], parts[1]);
+    } else {
+      Element newElement =
+          (edit[2] == null) ? null : XmlUtils.parseXml(edit[2], namespaces()).getDocumentElement();
+      selected = editor.editElement(source, result, pretty, action(edit[1]), newElement);
+    }
+    return (selected == 1) ? out.toString() : null;
+  }
+
+  @Test
+  public void testSameOutputAsDomEdit() throws Exception {
+    int applied = 0;
+    for (String xml : documents) {
+      for (String[] edit : edits) {
+        for (boolean pretty : new boolean[] {false, true}) {
+          String expected = editDom(xml, edit, pretty);
+          String actual = editStream(xml, edit, pretty);
+          Assert.assertEquals(actual, expected, edit[0] + " " + edit[1] + " on " + xml);
+          if (expected != null) applied++;
+        }
+      }
+    }
+    // most of the edits select one node in some document
+    Assert.assertTrue(applied > 30, "applied=" + applied);
+  }
+
+  @Test
+  public void testCountsSelectedNodes() throws Exception {
+    String xml = "<root><A/><A a='1'/><B/></root>";
+    StreamingEditor editor = StreamingEditor.forXpath("/root/A", namespaces());
+    int selected =
+        editor.editElement(
+            new InputSource(new StringReader(xml)),
+            new StreamResult(new StringWriter()),
+            false,
+            StreamingEditor.Action.REMOVE,
+            null);
+    Assert.assertEquals(selected, 2);
+    editor = StreamingEditor.forXpath("/root/A/@a", namespaces());
+    selected =
+        editor.editAttribute(
+            new InputSource(new StringReader(xml)),
+            new StreamResult(new StringWriter()),
+            false,
+            StreamingEditor.Action.APPEND,
+            "b",
+            "2");
+    Assert.assertEquals(selected, 1);
+    editor = StreamingEditor.forXpath("/root/C", namespaces());
+    selected =
+        editor.editElement(
+            new InputSource(new StringReader(xml)),
+            new StreamResult(new StringWriter()),
+            false,
+            StreamingEditor.Action.REMOVE,
+            null);
+    Assert.assertEquals(selected, 0);
+  }
+
+  @Test
+  public void testOnlySimplePaths() {
+    Map<String, String> namespaces = namespaces();
+    Assert.assertNull(StreamingEditor.forXpath("/root", namespaces));
+    Assert.assertNull(StreamingEditor.forXpath("//A", namespaces));
+    Assert.assertNull(StreamingEditor.forXpath("/root/A[1]", namespaces));
+    Assert.assertNull(StreamingEditor.forXpath("/root/A/text()", namespaces));
+    Assert.assertNull(StreamingEditor.forXpath("/root/x:A", namespaces));
+    Assert.assertNull(StreamingEditor.forXpath("/root/A/@x:id", namespaces));
+    Assert.assertNotNull(StreamingEditor.forXpath("/root/A", namespaces));
+    Assert.assertNotNull(StreamingEditor.forXpath("/root/@id", namespaces));
+    Assert.assertTrue(StreamingEditor.forXpath("/s:root/*/@q:id", namespaces).selectsAttribute());
+  }
+}
@@ -15,8 +15,13 @@
 
 package com.google.apigee.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 import org.w3c.dom.Document;
 
@@ -69,4 +74,25 @@ public class XmlUtilsTest {
     String s = XmlUtils.toString(doc, true);
     // System.out.printf("xformed: %s\n", s);
   }
+
+  @Test
+  public void testReusedBuilderDoesNotResolveExternalEntities() throws Exception {
+    File secret = File.createTempFile("xmlutils", ".txt");
+    secret.deleteOnExit();
+    Files.write(secret.toPath(), "secret".getBytes(StandardCharsets.UTF_8));
+    String xml =
+        "<!DOCTYPE root [<!ENTITY ext SYSTEM '"
+            + secret.toURI()
+            + "'>]>\n"
+            + "<root>&ext;</root>";
+
+    // The first parse creates the builder for this thread; the others re-use it.
+    for (int i = 0; i < 3; i++) {
+      Document doc =
+          (i % 2 == 0)
+              ? XmlUtils.parseXml(xml)
+              : XmlUtils.parseXml(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+      Assert.assertEquals(doc.getDocumentElement().getTextContent(), "", "parse " + i);
+    }
+  }
 }
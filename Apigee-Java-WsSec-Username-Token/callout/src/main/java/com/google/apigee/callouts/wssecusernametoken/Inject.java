@@ -19,9 +19,8 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.DocumentHandoff;
 import com.google.apigee.xml.Namespaces;
-import java.io.ByteArrayOutputStream;
-import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.time.ZoneOffset;
@@ -30,13 +29,6 @@ import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.Base64;
 import java.util.Map;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -119,19 +111,19 @@ public class Inject extends WssecUsernameTokenCalloutBase implements Execution {
     //     .format(DateTimeFormatter.ISO_INSTANT);
   }
 
-  private String injectToken(Document doc, PolicyConfiguration policyConfiguration)
-      throws NoSuchAlgorithmException, TransformerConfigurationException, TransformerException {
+  private boolean injectToken(Document doc, PolicyConfiguration policyConfiguration)
+      throws NoSuchAlgorithmException {
     String soapns = Namespaces.SOAP10;
 
     NodeList nodes = doc.getElementsByTagNameNS(soapns, "Envelope");
     if (nodes.getLength() != 1) {
-      return null;
+      return false;
     }
     Element envelope = (Element) nodes.item(0);
 
     nodes = envelope.getElementsByTagNameNS(soapns, "Body");
     if (nodes.getLength() != 1) {
-      return null;
+      return false;
     }
 
     Element body = (Element) nodes.item(0);
@@ -196,13 +188,7 @@ public class Inject extends WssecUsernameTokenCalloutBase implements Execution {
         "EncodingType",
         "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-soap-message-security-1.0#Base64Binary");
     usernameToken.appendChild(nonce);
-
-    // emit the resulting document
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Transformer transformer = TransformerFactory.newInstance().newTransformer();
-    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-    transformer.transform(new DOMSource(doc), new StreamResult(baos));
-    return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    return true;
   }
 
   static class PolicyConfiguration {
@@ -221,22 +207,33 @@ public class Inject extends WssecUsernameTokenCalloutBase implements Execution {
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    DocumentHandoff handoff = null;
     try {
-      Document document = getDocument(msgCtxt);
+      handoff = getDocumentHandoff(msgCtxt);
+      Document document = getDocument(msgCtxt, handoff);
 
       PolicyConfiguration policyConfiguration =
           new PolicyConfiguration()
               .withUsername(getUsername(msgCtxt))
               .withPassword(getPassword(msgCtxt));
 
-      String resultingXmlString = injectToken(document, policyConfiguration);
-      String outputVar = getOutputVar(msgCtxt);
-      msgCtxt.setVariable(outputVar, resultingXmlString);
+      if (injectToken(document, policyConfiguration)) {
+        handoff.setOutput(getOutputVar(msgCtxt), document, false);
+      } else {
+        msgCtxt.setVariable(getOutputVar(msgCtxt), null);
+        handoff.release();
+      }
       return ExecutionResult.SUCCESS;
     } catch (IllegalStateException exc1) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       setExceptionVariables(exc1, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (Exception e) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       if (getDebug()) {
         String stacktrace = getStackTraceAsString(e);
         msgCtxt.setVariable(varName("stacktrace"), stacktrace);
@@ -16,6 +16,7 @@
 package com.google.apigee.callouts.wssecusernametoken;
 
 import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.DocumentHandoff;
 import com.google.apigee.util.XmlUtils;
 import java.io.ByteArrayInputStream;
 import java.io.PrintWriter;
@@ -57,8 +58,16 @@ public abstract class WssecUsernameTokenCalloutBase {
     return _varprefix + s;
   }
 
-  protected Document getDocument(MessageContext msgCtxt) throws Exception {
+  protected DocumentHandoff getDocumentHandoff(MessageContext msgCtxt) {
+    return new DocumentHandoff(msgCtxt, getSimpleOptionalProperty("document-handoff", msgCtxt));
+  }
+
+  protected Document getDocument(MessageContext msgCtxt, DocumentHandoff handoff)
+      throws Exception {
     String source = getSimpleOptionalProperty("source", msgCtxt);
+    if (handoff.isEnabled()) {
+      return handoff.getDocument((source == null) ? "message.content" : source);
+    }
     if (source == null) {
       return XmlUtils.parseXml(msgCtxt.getMessage().getContentAsStream());
     }
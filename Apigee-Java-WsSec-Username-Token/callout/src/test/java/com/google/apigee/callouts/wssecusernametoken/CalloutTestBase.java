@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Scanner;
 import mockit.Mock;
 import mockit.MockUp;
 import org.testng.annotations.BeforeMethod;
@@ -92,6 +93,13 @@ public abstract class CalloutTestBase {
             // new ByteArrayInputStream(messageContent.getBytes(StandardCharsets.UTF_8));
             return messageContentStream;
           }
+
+          @Mock()
+          public void setContent(InputStream in) {
+            try (Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A")) {
+              msgCtxt.setVariable("message.content", s.hasNext() ? s.next() : "");
+            }
+          }
         }.getMockInstance();
   }
 }
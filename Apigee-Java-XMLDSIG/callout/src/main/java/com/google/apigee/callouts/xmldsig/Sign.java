@@ -19,28 +19,34 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
-import com.google.apigee.util.ThrowingSideEffect;
-import com.google.apigee.util.ThrowingSupplier;
+import com.google.apigee.util.DocumentHandoff;
+import com.google.apigee.util.KeyCache;
 import com.google.apigee.xml.Namespaces;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
-import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyException;
+import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateEncodingException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Objects;
 import javax.naming.InvalidNameException;
 import javax.security.auth.x500.X500Principal;
 import javax.xml.crypto.MarshalException;
-import javax.xml.crypto.XMLStructure;
 import javax.xml.crypto.dom.DOMStructure;
 import javax.xml.crypto.dsig.CanonicalizationMethod;
 import javax.xml.crypto.dsig.DigestMethod;
@@ -56,13 +62,14 @@ import javax.xml.crypto.dsig.keyinfo.KeyInfo;
 import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
 import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
 import javax.xml.crypto.dsig.spec.TransformParameterSpec;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import org.bouncycastle.crypto.params.Ed25519PublicKeyParameters;
+import org.bouncycastle.jcajce.provider.asymmetric.util.EC5Util;
 import org.bouncycastle.openssl.PEMDecryptorProvider;
 import org.bouncycastle.openssl.PEMEncryptedKeyPair;
 import org.bouncycastle.openssl.PEMKeyPair;
@@ -79,177 +86,314 @@ import org.w3c.dom.Element;
 
 public class Sign extends XmlDsigCalloutBase implements Execution {
 
+  private static final int MAX_PLANS = 64;
+  private static final Map<PlanKey, SigningPlan> plans =
+      Collections.synchronizedMap(
+          new LinkedHashMap<PlanKey, SigningPlan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PlanKey, SigningPlan> eldest) {
+              return size() > MAX_PLANS;
+            }
+          });
+
   public Sign(Map properties) {
     super(properties);
   }
 
-  private static String sign_RSA(Document doc, SignConfiguration config, MessageContext msgCtxt)
-      throws InstantiationException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
-          KeyException, MarshalException, XMLSignatureException, TransformerException,
-          CertificateEncodingException, InvalidNameException {
-    XMLSignatureFactory signatureFactory = XMLSignatureFactory.getInstance("DOM");
-
-    ThrowingSideEffect<InvalidNameException> maybeCheckCert =
-        () -> {
-          if (config.certificate == null) {
-            throw new IllegalStateException("missing certificate");
-          }
-          emitCertificateInformation(config.certificate, msgCtxt);
-
-          if (!config.omitCertValidityCheck) {
-            checkCertificateValidity(config.certificate, msgCtxt);
-          }
-        };
-
-    ThrowingSupplier<Element, InvalidNameException> issuerSerialMaker =
-        () -> {
-          Element x509IssuerName = doc.createElementNS(Namespaces.XMLDSIG, "X509IssuerName");
-          if (config.issuerNameStyle == IssuerNameStyle.COMMON_NAME) {
-            x509IssuerName.setTextContent(
-                "CN=" + getCommonName(config.certificate.getSubjectX500Principal()));
-          } else {
-            x509IssuerName.setTextContent(config.certificate.getSubjectDN().getName());
-          }
-          Element x509SerialNumber = doc.createElementNS(Namespaces.XMLDSIG, "X509SerialNumber");
-          x509SerialNumber.setTextContent(config.certificate.getSerialNumber().toString());
-
-          Element x509IssuerSerial = doc.createElementNS(Namespaces.XMLDSIG, "X509IssuerSerial");
-          x509IssuerSerial.appendChild(x509IssuerName);
-          x509IssuerSerial.appendChild(x509SerialNumber);
-          return x509IssuerSerial;
-        };
-
-    String digestMethodUri =
-        ((config.digestMethod != null) && (config.digestMethod.toLowerCase().equals("sha256")))
-            ? DigestMethod.SHA256
-            : DigestMethod.SHA1;
-    DigestMethod digestMethod = signatureFactory.newDigestMethod(digestMethodUri, null);
-
-    Transform transform =
-        signatureFactory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null);
-    // Transform transform =
-    //     signatureFactory.newTransform(
-    //         "http://www.w3.org/2001/10/xml-exc-c14n#", (TransformParameterSpec) null);
-    Reference reference =
-        signatureFactory.newReference(
-            "", digestMethod, Collections.singletonList(transform), null, null);
-
-    // add <SignatureMethod Algorithm="..."?>
-    String signingMethodUri =
-        ((config.signingMethod != null) && (config.signingMethod.toLowerCase().equals("rsa-sha1")))
-            ? RSA_SHA1
-            : RSA_SHA256;
-
-    SignatureMethod signatureMethod = signatureFactory.newSignatureMethod(signingMethodUri, null);
-
-    CanonicalizationMethod canonicalizationMethod =
-        signatureFactory.newCanonicalizationMethod(
-            CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null);
-
-    // Create the SignedInfo
-    SignedInfo signedInfo =
-        signatureFactory.newSignedInfo(
-            canonicalizationMethod, signatureMethod, Collections.singletonList(reference));
-
-    KeyInfoFactory kif = signatureFactory.getKeyInfoFactory();
-    KeyInfo keyInfo = null;
-    if (config.keyIdentifierType == KeyIdentifierType.RSA_KEY_VALUE) {
-      // <KeyInfo>
-      //   <KeyValue>
-      //     <RSAKeyValue>
-      //       <Modulus>B6PenDyT58LjZlG6LYD27IFCh1yO+4...yCP9YNDtsLZftMLoQ==</Modulus>
-      //       <Exponent>AQAB</Exponent>
-      //     </RSAKeyValue>
-      //   </KeyValue>
-      // </KeyInfo>
-      Element keyValue = doc.createElementNS(Namespaces.XMLDSIG, "KeyValue");
-      Element rsaKeyValue = doc.createElementNS(Namespaces.XMLDSIG, "RSAKeyValue");
-      Element modulus = doc.createElementNS(Namespaces.XMLDSIG, "Modulus");
-      Element exponent = doc.createElementNS(Namespaces.XMLDSIG, "Exponent");
-
-      RSAPrivateKey configPrivateKey = (RSAPrivateKey) config.privatekey;
-      final byte[] keyModulus = configPrivateKey.getModulus().toByteArray();
-      String encodedModulus = Base64.getEncoder().encodeToString(keyModulus);
-      modulus.setTextContent(encodedModulus);
-      // final byte[] publicExponent = configPrivateKey.getPublicExponent().toByteArray();
-      // String encodedPublicExponent = Base64.getEncoder().encodeToString(publicExponent);
-      exponent.setTextContent("AQAB");
-      rsaKeyValue.appendChild(modulus);
-      rsaKeyValue.appendChild(exponent);
-      keyValue.appendChild(rsaKeyValue);
-      XMLStructure structure = new DOMStructure(keyValue);
-      keyInfo = kif.newKeyInfo(Collections.singletonList(structure));
-
-    } else if ((config.keyIdentifierType == KeyIdentifierType.X509_CERT_DIRECT)
-        || (config.keyIdentifierType == KeyIdentifierType.X509_CERT_DIRECT_AND_ISSUER_SERIAL)) {
-      // <KeyInfo>
-      //   <X509Data>
-      //     <X509Certificate>MIICAjCCAWugAw....AQnI7IYAAKzz7BQnulQ=</X509Certificate>
-      //   </X509Data>
-      // </KeyInfo>
-      //
-      // -or-
-      //
-      // <KeyInfo>
-      //   <X509Data>
-      //     <X509IssuerSerial>
-      //       <X509IssuerName>CN=creditoexpress</X509IssuerName>
-      //       <X509SerialNumber>1323432320</X509SerialNumber>
-      //     </X509IssuerSerial>
-      //     <X509Certificate>MIICAjCCAWugAw....AQnI7IYAAKzz7BQnulQ=</X509Certificate>
-      //   </X509Data>
-      // </KeyInfo>
-      //
-      maybeCheckCert.invoke();
+  /**
+   * Everything about a signature that depends only on the configuration: the algorithms, and the
+   * content of the KeyInfo. A plan is built once for each configuration and kept.
+   *
+   * <p>The javax.xml.crypto.dsig objects themselves - the Reference, the Transform, the
+   * SignatureMethod - record state about the document they sign, and so cannot be shared between
+   * requests. The plan creates new ones for each signature, from the settled values.
+   */
+  static final class SigningPlan {
+    final String digestMethodUri;
+    final String signingMethodUri;
+    final XMLSignatureFactory signatureFactory;
+    final KeyInfoFactory keyInfoFactory;
+    final KeyIdentifierType keyIdentifierType;
+    final String modulus; // for RSA_KEY_VALUE, with an RSA key
+    final PublicKey ecPublicKey; // for RSA_KEY_VALUE, with an EC key
+    final String derEncodedPublicKey; // for RSA_KEY_VALUE, with an Ed25519 key
+    final String encodedCertificate; // for X509_CERT_DIRECT*
+    final String issuerName; // for *ISSUER_SERIAL
+    final String serialNumber; // for *ISSUER_SERIAL
+
+    private SigningPlan(SignConfiguration config)
+        throws GeneralSecurityException, InvalidNameException, IOException {
+      digestMethodUri =
+          ((config.digestMethod != null) && (config.digestMethod.toLowerCase().equals("sha256")))
+              ? DigestMethod.SHA256
+              : DigestMethod.SHA1;
+      String keyType = keyType(config.privatekey);
+      signingMethodUri =
+          (config.signingMethod != null)
+              ? signingMethodUri(config.signingMethod)
+              : defaultSigningMethodUri(config.privatekey);
+      if (!keyTypeFor(signingMethodUri).equals(keyType)) {
+        throw new IllegalStateException(
+            "the signing-method does not suit the " + keyType + " private key");
+      }
+      signatureFactory = signatureFactoryFor(signingMethodUri);
+      keyInfoFactory = signatureFactory.getKeyInfoFactory();
+      try {
+        signatureFactory.newSignatureMethod(signingMethodUri, null);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(
+            "this Java runtime does not support " + keyType + " signatures");
+      }
+      keyIdentifierType = config.keyIdentifierType;
+
+      boolean keyValue = (keyIdentifierType == KeyIdentifierType.RSA_KEY_VALUE);
+      modulus =
+          (keyValue && keyType.equals("RSA"))
+              ? Base64.getEncoder()
+                  .encodeToString(((RSAPrivateKey) config.privatekey).getModulus().toByteArray())
+              : null;
+      ecPublicKey =
+          (keyValue && keyType.equals("EC"))
+              ? ecPublicKey((ECPrivateKey) config.privatekey)
+              : null;
+      derEncodedPublicKey =
+          (keyValue && keyType.equals("Ed25519"))
+              ? Base64.getEncoder().encodeToString(ed25519PublicKey(config.privatekey))
+              : null;
+
+      if ((keyIdentifierType == KeyIdentifierType.X509_CERT_DIRECT)
+          || (keyIdentifierType == KeyIdentifierType.X509_CERT_DIRECT_AND_ISSUER_SERIAL)) {
+        encodedCertificate = Base64.getEncoder().encodeToString(config.certificate.getEncoded());
+      } else {
+        encodedCertificate = null;
+      }
 
-      Element x509Data = doc.createElementNS(Namespaces.XMLDSIG, "X509Data");
-      if (config.keyIdentifierType == KeyIdentifierType.X509_CERT_DIRECT_AND_ISSUER_SERIAL) {
-        x509Data.appendChild(issuerSerialMaker.get());
+      if ((keyIdentifierType == KeyIdentifierType.X509_ISSUER_SERIAL)
+          || (keyIdentifierType == KeyIdentifierType.X509_CERT_DIRECT_AND_ISSUER_SERIAL)) {
+        issuerName =
+            (config.issuerNameStyle == IssuerNameStyle.COMMON_NAME)
+                ? "CN=" + getCommonName(config.certificate.getSubjectX500Principal())
+                : config.certificate.getSubjectDN().getName();
+        serialNumber = config.certificate.getSerialNumber().toString();
+      } else {
+        issuerName = null;
+        serialNumber = null;
+      }
+    }
+
+    static SigningPlan forConfiguration(SignConfiguration config)
+        throws GeneralSecurityException, InvalidNameException, IOException {
+      PlanKey key = new PlanKey(config);
+      SigningPlan plan = plans.get(key);
+      if (plan == null) {
+        plan = new SigningPlan(config);
+        plans.put(key, plan);
+      }
+      return plan;
+    }
+
+    SignedInfo newSignedInfo() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+      DigestMethod digestMethod = signatureFactory.newDigestMethod(digestMethodUri, null);
+      Transform transform =
+          signatureFactory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null);
+      // Transform transform =
+      //     signatureFactory.newTransform(
+      //         "http://www.w3.org/2001/10/xml-exc-c14n#", (TransformParameterSpec) null);
+      Reference reference =
+          signatureFactory.newReference(
+              "", digestMethod, Collections.singletonList(transform), null, null);
+
+      // add <SignatureMethod Algorithm="..."?>
+      SignatureMethod signatureMethod = signatureFactory.newSignatureMethod(signingMethodUri, null);
+
+      CanonicalizationMethod canonicalizationMethod =
+          signatureFactory.newCanonicalizationMethod(
+              CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null);
+
+      return signatureFactory.newSignedInfo(
+          canonicalizationMethod, signatureMethod, Collections.singletonList(reference));
+    }
+
+    KeyInfo newKeyInfo(Document doc) throws KeyException {
+      if (ecPublicKey != null) {
+        // <KeyInfo>
+        //   <KeyValue>
+        //     <dsig11:ECKeyValue xmlns:dsig11="http://www.w3.org/2009/xmldsig11#">
+        //       <dsig11:NamedCurve URI="urn:oid:1.2.840.10045.3.1.7"/>
+        //       <dsig11:PublicKey>BLyN3RIwcgavk7u7P4vWe...</dsig11:PublicKey>
+        //     </dsig11:ECKeyValue>
+        //   </KeyValue>
+        // </KeyInfo>
+        return keyInfoFactory.newKeyInfo(
+            Collections.singletonList(keyInfoFactory.newKeyValue(ecPublicKey)));
+      }
+      if (derEncodedPublicKey != null) {
+        // XML Signature 1.1 defines no KeyValue for Ed25519; use the
+        // SubjectPublicKeyInfo, as for any other key:
+        // <KeyInfo>
+        //   <dsig11:DEREncodedKeyValue xmlns:dsig11="http://www.w3.org/2009/xmldsig11#">
+        //     MCowBQYDK2VwAyEA...
+        //   </dsig11:DEREncodedKeyValue>
+        // </KeyInfo>
+        Element derEncodedKeyValue =
+            doc.createElementNS(Namespaces.XMLDSIG11, "dsig11:DEREncodedKeyValue");
+        derEncodedKeyValue.setAttributeNS(
+            Namespaces.XMLNS, "xmlns:dsig11", Namespaces.XMLDSIG11);
+        derEncodedKeyValue.setTextContent(derEncodedPublicKey);
+        return keyInfoFactory.newKeyInfo(
+            Collections.singletonList(new DOMStructure(derEncodedKeyValue)));
+      }
+      if (keyIdentifierType == KeyIdentifierType.RSA_KEY_VALUE) {
+        // <KeyInfo>
+        //   <KeyValue>
+        //     <RSAKeyValue>
+        //       <Modulus>B6PenDyT58LjZlG6LYD27IFCh1yO+4...yCP9YNDtsLZftMLoQ==</Modulus>
+        //       <Exponent>AQAB</Exponent>
+        //     </RSAKeyValue>
+        //   </KeyValue>
+        // </KeyInfo>
+        Element keyValue = doc.createElementNS(Namespaces.XMLDSIG, "KeyValue");
+        Element rsaKeyValue = doc.createElementNS(Namespaces.XMLDSIG, "RSAKeyValue");
+        Element modulusElement = doc.createElementNS(Namespaces.XMLDSIG, "Modulus");
+        Element exponent = doc.createElementNS(Namespaces.XMLDSIG, "Exponent");
+        modulusElement.setTextContent(modulus);
+        exponent.setTextContent("AQAB");
+        rsaKeyValue.appendChild(modulusElement);
+        rsaKeyValue.appendChild(exponent);
+        keyValue.appendChild(rsaKeyValue);
+        return keyInfoFactory.newKeyInfo(Collections.singletonList(new DOMStructure(keyValue)));
       }
 
-      Element x509Certificate = doc.createElementNS(Namespaces.XMLDSIG, "X509Certificate");
-      x509Certificate.setTextContent(
-          Base64.getEncoder().encodeToString(config.certificate.getEncoded()));
-      x509Data.appendChild(x509Certificate);
-      XMLStructure structure = new DOMStructure(x509Data);
-      keyInfo = kif.newKeyInfo(Collections.singletonList(structure));
-    } else if (config.keyIdentifierType == KeyIdentifierType.X509_ISSUER_SERIAL) {
       // <KeyInfo>
       //   <X509Data>
       //     <X509IssuerSerial>
       //       <X509IssuerName>CN=creditoexpress</X509IssuerName>
       //       <X509SerialNumber>1323432320</X509SerialNumber>
       //     </X509IssuerSerial>
+      //     <X509Certificate>MIICAjCCAWugAw....AQnI7IYAAKzz7BQnulQ=</X509Certificate>
       //   </X509Data>
       // </KeyInfo>
       //
-      maybeCheckCert.invoke();
+      // With X509_CERT_DIRECT there is no X509IssuerSerial, and with
+      // X509_ISSUER_SERIAL there is no X509Certificate.
       Element x509Data = doc.createElementNS(Namespaces.XMLDSIG, "X509Data");
-      x509Data.appendChild(issuerSerialMaker.get());
-      XMLStructure structure = new DOMStructure(x509Data);
-      keyInfo = kif.newKeyInfo(Collections.singletonList(structure));
-    } else {
-      throw new IllegalStateException("unsupported KeyInfo format");
+      if (issuerName != null) {
+        Element x509IssuerName = doc.createElementNS(Namespaces.XMLDSIG, "X509IssuerName");
+        x509IssuerName.setTextContent(issuerName);
+        Element x509SerialNumber = doc.createElementNS(Namespaces.XMLDSIG, "X509SerialNumber");
+        x509SerialNumber.setTextContent(serialNumber);
+        Element x509IssuerSerial = doc.createElementNS(Namespaces.XMLDSIG, "X509IssuerSerial");
+        x509IssuerSerial.appendChild(x509IssuerName);
+        x509IssuerSerial.appendChild(x509SerialNumber);
+        x509Data.appendChild(x509IssuerSerial);
+      }
+      if (encodedCertificate != null) {
+        Element x509Certificate = doc.createElementNS(Namespaces.XMLDSIG, "X509Certificate");
+        x509Certificate.setTextContent(encodedCertificate);
+        x509Data.appendChild(x509Certificate);
+      }
+      return keyInfoFactory.newKeyInfo(Collections.singletonList(new DOMStructure(x509Data)));
     }
+  }
 
-    // DOMSignContext signingContext = new DOMSignContext(config.privatekey,
-    // wssecHeader);
-    DOMSignContext signingContext = new DOMSignContext(config.privatekey, doc.getDocumentElement());
-    XMLSignature signature = signatureFactory.newXMLSignature(signedInfo, keyInfo);
-    signature.sign(signingContext);
+  // Without a signing-method, the key decides: the digest in ECDSA matches the
+  // size of the curve.
+  private static String defaultSigningMethodUri(PrivateKey key) {
+    String keyType = keyType(key);
+    if (keyType.equals("EC")) {
+      int fieldSize = ((ECPrivateKey) key).getParams().getCurve().getField().getFieldSize();
+      return (fieldSize > 384) ? ECDSA_SHA512 : (fieldSize > 256) ? ECDSA_SHA384 : ECDSA_SHA256;
+    }
+    return keyType.equals("Ed25519") ? ED25519 : RSA_SHA256;
+  }
 
-    TransformerFactory tf = TransformerFactory.newInstance();
-    Transformer trans = tf.newTransformer();
+  // The public point of an EC private key is its scalar times the generator.
+  private static PublicKey ecPublicKey(ECPrivateKey privateKey) throws GeneralSecurityException {
+    ECParameterSpec params = privateKey.getParams();
+    org.bouncycastle.math.ec.ECPoint q =
+        EC5Util.convertSpec(params).getG().multiply(privateKey.getS()).normalize();
+    ECPoint w =
+        new ECPoint(q.getAffineXCoord().toBigInteger(), q.getAffineYCoord().toBigInteger());
+    return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(w, params));
+  }
 
-    // emit the resulting document
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Transformer transformer = TransformerFactory.newInstance().newTransformer();
-    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-    transformer.transform(new DOMSource(doc), new StreamResult(baos));
-    return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+  // The SubjectPublicKeyInfo for an Ed25519 private key.
+  private static byte[] ed25519PublicKey(PrivateKey privateKey) throws IOException {
+    PrivateKeyInfo privateKeyInfo = PrivateKeyInfo.getInstance(privateKey.getEncoded());
+    byte[] seed = ASN1OctetString.getInstance(privateKeyInfo.parsePrivateKey()).getOctets();
+    Ed25519PublicKeyParameters publicKey =
+        new Ed25519PrivateKeyParameters(seed, 0).generatePublicKey();
+    return new SubjectPublicKeyInfo(
+            new AlgorithmIdentifier(EdECObjectIdentifiers.id_Ed25519), publicKey.getEncoded())
+        .getEncoded();
   }
 
-  private static RSAPrivateKey decodeKey(String privateKeyPemString, String password)
+  // Identifies a SigningPlan. The key and certificate are compared by identity:
+  // KeyCache returns the same objects for the same PEM, and comparing them by
+  // value would mean encoding them on every request.
+  private static final class PlanKey {
+    final String signingMethod;
+    final String digestMethod;
+    final KeyIdentifierType keyIdentifierType;
+    final IssuerNameStyle issuerNameStyle;
+    final PrivateKey privatekey;
+    final X509Certificate certificate;
+
+    PlanKey(SignConfiguration config) {
+      signingMethod = config.signingMethod;
+      digestMethod = config.digestMethod;
+      keyIdentifierType = config.keyIdentifierType;
+      issuerNameStyle = config.issuerNameStyle;
+      privatekey = config.privatekey;
+      certificate = config.certificate;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PlanKey)) return false;
+      PlanKey other = (PlanKey) o;
+      return Objects.equals(signingMethod, other.signingMethod)
+          && Objects.equals(digestMethod, other.digestMethod)
+          && keyIdentifierType == other.keyIdentifierType
+          && issuerNameStyle == other.issuerNameStyle
+          && privatekey == other.privatekey
+          && certificate == other.certificate;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          signingMethod,
+          digestMethod,
+          keyIdentifierType,
+          issuerNameStyle,
+          System.identityHashCode(privatekey),
+          System.identityHashCode(certificate));
+    }
+  }
+
+  private static void sign(Document doc, SignConfiguration config, MessageContext msgCtxt)
+      throws GeneralSecurityException, MarshalException, XMLSignatureException,
+          InvalidNameException, IOException {
+    if (config.keyIdentifierType != KeyIdentifierType.RSA_KEY_VALUE) {
+      if (config.certificate == null) {
+        throw new IllegalStateException("missing certificate");
+      }
+      emitCertificateInformation(config.certificate, msgCtxt);
+
+      if (!config.omitCertValidityCheck) {
+        checkCertificateValidity(config.certificate, msgCtxt);
+      }
+    }
+
+    SigningPlan plan = SigningPlan.forConfiguration(config);
+    DOMSignContext signingContext = new DOMSignContext(config.privatekey, doc.getDocumentElement());
+    XMLSignature signature =
+        plan.signatureFactory.newXMLSignature(plan.newSignedInfo(), plan.newKeyInfo(doc));
+    signature.sign(signingContext);
+  }
+
+  private static PrivateKey decodeKey(String privateKeyPemString, String password)
       throws IOException, OperatorCreationException, PKCSException, InvalidKeySpecException,
           NoSuchAlgorithmException {
     if (privateKeyPemString == null) {
@@ -278,12 +422,13 @@ public class Sign extends XmlDsigCalloutBase implements Execution {
 
       if (o instanceof PEMKeyPair) {
         // eg, "openssl genrsa -out keypair-rsa-2048-unencrypted.pem 2048"
-        return (RSAPrivateKey) converter.getPrivateKey(((PEMKeyPair) o).getPrivateKeyInfo());
+        return converter.getPrivateKey(((PEMKeyPair) o).getPrivateKeyInfo());
       }
 
       if (o instanceof PrivateKeyInfo) {
         // eg, "openssl genpkey  -algorithm rsa -pkeyopt rsa_keygen_bits:2048 -out keypair.pem"
-        return (RSAPrivateKey) converter.getPrivateKey((PrivateKeyInfo) o);
+        // or "openssl genpkey -algorithm ed25519 -out keypair.pem"
+        return converter.getPrivateKey((PrivateKeyInfo) o);
       }
 
       if (o instanceof PKCS8EncryptedPrivateKeyInfo) {
@@ -297,7 +442,7 @@ public class Sign extends XmlDsigCalloutBase implements Execution {
             decryptorProviderBuilder.build(password.toCharArray());
         PrivateKeyInfo privateKeyInfo =
             pkcs8EncryptedPrivateKeyInfo.decryptPrivateKeyInfo(decryptorProvider);
-        return (RSAPrivateKey) converter.getPrivateKey(privateKeyInfo);
+        return converter.getPrivateKey(privateKeyInfo);
       }
 
       if (o instanceof PEMEncryptedKeyPair) {
@@ -305,7 +450,7 @@ public class Sign extends XmlDsigCalloutBase implements Execution {
         PEMDecryptorProvider decProv =
             new JcePEMDecryptorProviderBuilder().setProvider("BC").build(password.toCharArray());
         KeyPair keyPair = converter.getKeyPair(((PEMEncryptedKeyPair) o).decryptKeyPair(decProv));
-        return (RSAPrivateKey) keyPair.getPrivate();
+        return keyPair.getPrivate();
       }
     } finally {
       if (pr != null) {
@@ -315,33 +460,33 @@ public class Sign extends XmlDsigCalloutBase implements Execution {
     throw new IllegalStateException("unknown PEM object");
   }
 
-  private RSAPrivateKey getPrivateKey(MessageContext msgCtxt) throws Exception {
+  private PrivateKey getPrivateKey(MessageContext msgCtxt) throws Exception {
     String privateKeyPemString = getSimpleRequiredProperty("private-key", msgCtxt);
-    privateKeyPemString = privateKeyPemString.trim();
-
-    // clear any leading whitespace on each line
-    privateKeyPemString = reformIndents(privateKeyPemString);
     String privateKeyPassword = getSimpleOptionalProperty("private-key-password", msgCtxt);
-    if (privateKeyPassword == null) privateKeyPassword = "";
-    return decodeKey(privateKeyPemString, privateKeyPassword);
+    String password = (privateKeyPassword == null) ? "" : privateKeyPassword;
+    // clear any leading whitespace on each line
+    return KeyCache.get(
+        "private-key",
+        privateKeyPemString,
+        password,
+        () -> decodeKey(reformIndents(privateKeyPemString.trim()), password));
   }
 
   protected X509Certificate getCertificate(MessageContext msgCtxt)
-      throws NoSuchAlgorithmException, InvalidNameException, KeyException,
-          CertificateEncodingException {
+      throws GeneralSecurityException, InvalidNameException {
     String certificateString = getSimpleOptionalProperty("certificate", msgCtxt);
     if (certificateString == null) return null;
-    certificateString = certificateString.trim();
-    X509Certificate certificate = (X509Certificate) certificateFromPEM(certificateString);
+    ParsedCertificate parsedCertificate = parsedCertificateFromPEM(certificateString);
+    X509Certificate certificate = parsedCertificate.certificate;
     X500Principal principal = certificate.getIssuerX500Principal();
     msgCtxt.setVariable(varName("cert-issuer-cn"), getCommonName(principal));
-    msgCtxt.setVariable(varName("cert-sha1-thumbprint"), getThumbprintHex(certificate));
-    msgCtxt.setVariable(varName("cert-sha256-thumbprint"), getThumbprintHexSha256(certificate));
+    msgCtxt.setVariable(varName("cert-sha1-thumbprint"), parsedCertificate.thumbprintSha1Hex);
+    msgCtxt.setVariable(varName("cert-sha256-thumbprint"), parsedCertificate.thumbprintSha256Hex);
     return certificate;
   }
 
   static class SignConfiguration {
-    public RSAPrivateKey privatekey; // required
+    public PrivateKey privatekey; // required
     public X509Certificate certificate; // required
     public String signingMethod;
     public String digestMethod;
@@ -353,7 +498,7 @@ public class Sign extends XmlDsigCalloutBase implements Execution {
       keyIdentifierType = KeyIdentifierType.RSA_KEY_VALUE;
     }
 
-    public SignConfiguration withKey(RSAPrivateKey key) {
+    public SignConfiguration withKey(PrivateKey key) {
       this.privatekey = key;
       return this;
     }
@@ -390,8 +535,10 @@ public class Sign extends XmlDsigCalloutBase implements Execution {
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    DocumentHandoff handoff = null;
     try {
-      Document document = getDocument(msgCtxt);
+      handoff = getDocumentHandoff(msgCtxt);
+      Document document = getDocument(msgCtxt, handoff);
       SignConfiguration signConfiguration =
           new SignConfiguration()
               .withKey(getPrivateKey(msgCtxt))
@@ -402,14 +549,19 @@ public class Sign extends XmlDsigCalloutBase implements Execution {
               .withDigestMethod(getDigestMethod(msgCtxt))
               .withOmitCertValidityCheck(getOmitCertValidityCheck(msgCtxt));
 
-      String resultingXmlString = sign_RSA(document, signConfiguration, msgCtxt);
-      String outputVar = getOutputVar(msgCtxt);
-      msgCtxt.setVariable(outputVar, resultingXmlString);
+      sign(document, signConfiguration, msgCtxt);
+      handoff.setOutput(getOutputVar(msgCtxt), document, false);
       return ExecutionResult.SUCCESS;
     } catch (IllegalStateException exc1) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       setExceptionVariables(exc1, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (Exception e) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       if (getDebug()) {
         String stacktrace = getStackTraceAsString(e);
         msgCtxt.setVariable(varName("stacktrace"), stacktrace);
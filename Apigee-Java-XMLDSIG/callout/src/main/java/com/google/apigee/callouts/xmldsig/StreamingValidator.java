@@ -0,0 +1,665 @@
+// Copyright 2018-2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xmldsig;
+
+import com.google.apigee.util.XmlUtils;
+import com.google.apigee.xml.StreamingCanonicalizer;
+import com.google.apigee.xml.StreamingCanonicalizer.Attribute;
+import com.google.apigee.xml.StreamingCanonicalizer.Mode;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.XMLConstants;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Reads a signed document once, with StAX, and digests the elements the signature refers to as
+ * they go by, without building a DOM of the document. Only the first ds:Signature element is kept,
+ * as a small DOM of its own, so that the SignedInfo can be verified afterwards with the usual
+ * JSR-105 API.
+ *
+ * <p>By default, as with the DOM, the Signature must be a child of the document element, and each
+ * Reference must have URI="" with the enveloped signature transform, optionally followed by
+ * Canonical XML 1.0 or Exclusive XML Canonicalization 1.0.
+ *
+ * <p>With a set of accepted paths, the Signature may be anywhere, and a Reference may also have
+ * URI="#id" with no transform, or with one of those two canonicalizations, as long as the element
+ * with that Id, ID, or id attribute is at one of the accepted paths: at each step, the first child
+ * element with that name. A signed element that has been moved elsewhere, as in a signature
+ * wrapping attack, is then not accepted. The digest must be SHA-1 or SHA-256. Other Reference
+ * forms, and documents with a DTD, are rejected.
+ *
+ * <p>The Signature may come before or after the content it signs. Until its SignedInfo has been
+ * read, the reader cannot know which elements it refers to, nor how they are canonicalized and
+ * digested, so it digests the document, and each element with an ID at an accepted path, each way
+ * it might need to. Because each accepted path identifies at most one element, that is a small,
+ * fixed amount of work per byte. Once the SignedInfo is known, only the referenced elements are
+ * digested, only the one way.
+ */
+final class StreamingValidator {
+  // IDs seen before the Signature is read, that are kept until it is.
+  private static final int MAX_PENDING = 1024;
+  // Elements with an ID, nested one in another, digested at once before the Signature is read.
+  private static final int MAX_NESTED_PENDING = 8;
+
+  private static final Map<String, String> digestNames = new LinkedHashMap<String, String>();
+
+  static {
+    digestNames.put(DigestMethod.SHA1, "SHA-1");
+    digestNames.put(DigestMethod.SHA256, "SHA-256");
+  }
+
+  // what to compute for an element while the SignedInfo is not yet known
+  private static final Map<Mode, Set<String>> everyWay = new EnumMap<Mode, Set<String>>(Mode.class);
+
+  static {
+    everyWay.put(Mode.INCLUSIVE, digestNames.keySet());
+    everyWay.put(Mode.EXCLUSIVE, digestNames.keySet());
+  }
+
+  /** A Reference from the SignedInfo, in a form that can be digested from the stream. */
+  static final class Plan {
+    final String uri;
+    final Mode mode;
+    final String digestAlgorithm;
+
+    private Plan(String uri, Mode mode, String digestAlgorithm) {
+      this.uri = uri;
+      this.mode = mode;
+      this.digestAlgorithm = digestAlgorithm;
+    }
+
+    static Plan of(String uri, List<String> transforms, String digestAlgorithm) {
+      List<String> canonicalization = transforms;
+      if (uri.equals("")) {
+        if (transforms.isEmpty() || !Transform.ENVELOPED.equals(transforms.get(0))) {
+          throw unsupported("a Reference to the whole document without the enveloped transform");
+        }
+        canonicalization = transforms.subList(1, transforms.size());
+      } else if (!uri.startsWith("#") || uri.length() == 1 || uri.startsWith("#xpointer(")) {
+        throw unsupported("the Reference URI '" + uri + "'");
+      }
+      Mode mode = Mode.INCLUSIVE;
+      if (canonicalization.size() == 1
+          && CanonicalizationMethod.EXCLUSIVE.equals(canonicalization.get(0))) {
+        mode = Mode.EXCLUSIVE;
+      } else if (canonicalization.size() > 1
+          || (canonicalization.size() == 1
+              && !CanonicalizationMethod.INCLUSIVE.equals(canonicalization.get(0)))) {
+        throw unsupported("the transforms " + transforms);
+      }
+      if (!digestNames.containsKey(digestAlgorithm)) {
+        throw unsupported("the DigestMethod " + digestAlgorithm);
+      }
+      return new Plan(uri, mode, digestAlgorithm);
+    }
+
+    String resultKey() {
+      return mode.name() + " " + digestAlgorithm;
+    }
+  }
+
+  /** The name of an element, as it appears in an accepted path. */
+  static String expandedName(String namespaceURI, String localName) {
+    return "{" + orEmpty(namespaceURI) + "}" + localName;
+  }
+
+  private static RuntimeException unsupported(String what) {
+    return new RuntimeException("Streaming validation does not support " + what);
+  }
+
+  // Passes the canonical bytes to each digest still wanted.
+  private static final class DigestingOutputStream extends OutputStream {
+    private final Collection<MessageDigest> digests;
+
+    DigestingOutputStream(Collection<MessageDigest> digests) {
+      this.digests = digests;
+    }
+
+    @Override
+    public void write(int b) {
+      for (MessageDigest digest : digests) {
+        digest.update((byte) b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      for (MessageDigest digest : digests) {
+        digest.update(b, off, len);
+      }
+    }
+  }
+
+  // One canonicalization of one element, and its digests.
+  private static final class Variant {
+    final Mode mode;
+    final Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+    final Writer writer;
+    final StreamingCanonicalizer canonicalizer;
+
+    Variant(Mode mode, Set<String> digestAlgorithms, List<Attribute> inheritedXmlAttributes)
+        throws NoSuchAlgorithmException {
+      this.mode = mode;
+      for (String algorithm : digestAlgorithms) {
+        digests.put(algorithm, MessageDigest.getInstance(digestNames.get(algorithm)));
+      }
+      this.writer =
+          new OutputStreamWriter(
+              new DigestingOutputStream(digests.values()), StandardCharsets.UTF_8);
+      this.canonicalizer = new StreamingCanonicalizer(mode, writer);
+      canonicalizer.setInheritedXmlAttributes(inheritedXmlAttributes);
+    }
+  }
+
+  // The document (uri "") or an element with an ID (uri "#id"), being digested.
+  private static final class Candidate {
+    final String uri;
+    final String path; // for an element, the accepted path at which it is
+    final int depth;
+    final List<Variant> variants = new ArrayList<Variant>(2);
+
+    Candidate(String uri, String path, int depth) {
+      this.uri = uri;
+      this.path = path;
+      this.depth = depth;
+    }
+
+    boolean prune(Map<Mode, Set<String>> wanted) {
+      if (wanted == null) return false;
+      for (Iterator<Variant> it = variants.iterator(); it.hasNext(); ) {
+        Variant variant = it.next();
+        Set<String> algorithms = wanted.get(variant.mode);
+        if (algorithms == null) {
+          it.remove();
+        } else {
+          variant.digests.keySet().retainAll(algorithms);
+        }
+      }
+      return true;
+    }
+  }
+
+  private final Deque<Map<String, String>> scopes = new ArrayDeque<Map<String, String>>();
+  private final Deque<List<Attribute>> xmlAttributes = new ArrayDeque<List<Attribute>>();
+  private final List<Candidate> active = new ArrayList<Candidate>();
+  private final Map<String, Map<String, byte[]>> results =
+      new HashMap<String, Map<String, byte[]>>();
+  private final Map<String, String> resultPaths = new HashMap<String, String>();
+  private final Set<String> ids = new HashSet<String>();
+  private final Set<String> duplicates = new HashSet<String>();
+  private Candidate document;
+  private int depth;
+
+  // accepted path, as a list of expanded names, to the path as configured; or
+  // null if only the whole document may be signed
+  private final Map<List<String>, String> acceptedPaths;
+  // the expanded names of the open elements, from the document element down
+  private final List<String> names = new ArrayList<String>();
+  // for each open element, the number of its child elements so far, by name
+  private final Deque<Map<String, Integer>> childCounts = new ArrayDeque<Map<String, Integer>>();
+  // the number of open elements that are not the first child with their name
+  private int notFirst;
+  private final Deque<Boolean> firstOfName = new ArrayDeque<Boolean>();
+
+  private Document signatureDocument;
+  private Element signatureElement;
+  private Node captureParent;
+  private int signatureDepth; // while reading the Signature, its depth; otherwise 0
+
+  // null until the SignedInfo is read
+  private List<Plan> plans;
+  private Map<String, Map<Mode, Set<String>>> wanted;
+
+  private StreamingValidator(Map<List<String>, String> acceptedPaths) {
+    this.acceptedPaths = acceptedPaths;
+    scopes.push(Collections.<String, String>emptyMap());
+    childCounts.push(new HashMap<String, Integer>());
+  }
+
+  /**
+   * Reads the document, and closes the reader. With acceptedPaths null, only a Signature that is a
+   * child of the document element, over the whole document, is accepted.
+   */
+  static StreamingValidator read(XMLStreamReader reader, Map<List<String>, String> acceptedPaths)
+      throws XMLStreamException, IOException, NoSuchAlgorithmException,
+          ParserConfigurationException {
+    StreamingValidator validator = new StreamingValidator(acceptedPaths);
+    try {
+      validator.readDocument(reader);
+    } finally {
+      reader.close();
+    }
+    return validator;
+  }
+
+  Element getSignatureElement() {
+    return signatureElement;
+  }
+
+  List<Plan> getPlans() {
+    return plans;
+  }
+
+  /** The digest of the content that the Reference at this index in the SignedInfo refers to. */
+  byte[] digestOf(int index) {
+    Plan plan = plans.get(index);
+    if (duplicates.contains(plan.uri)) {
+      throw new IllegalStateException(
+          "the ID '" + plan.uri.substring(1) + "' appears more than once");
+    }
+    Map<String, byte[]> digests = results.get(plan.uri);
+    if (digests == null) {
+      throw new RuntimeException(
+          "Invalid signature. The Reference '"
+              + plan.uri
+              + ((ids.contains(plan.uri))
+                  ? "' identifies an element that is not at an accepted path."
+                  : "' does not identify an element."));
+    }
+    return digests.get(plan.resultKey());
+  }
+
+  /**
+   * The accepted path of the element that the Reference at this index refers to, as configured, or
+   * null if the Reference is to the whole document.
+   */
+  String pathOf(int index) {
+    return resultPaths.get(plans.get(index).uri);
+  }
+
+  private void readDocument(XMLStreamReader reader)
+      throws XMLStreamException, IOException, NoSuchAlgorithmException,
+          ParserConfigurationException {
+    document = startCandidate("", null, everyWay);
+    while (reader.hasNext()) {
+      switch (reader.next()) {
+        case XMLStreamConstants.START_ELEMENT:
+          startElement(reader);
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          endElement(reader);
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+          characters(reader);
+          break;
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          processingInstruction(reader);
+          break;
+        case XMLStreamConstants.COMMENT:
+          if (signatureDepth > 0) {
+            captureParent.appendChild(signatureDocument.createComment(reader.getText()));
+          }
+          break;
+        case XMLStreamConstants.DTD:
+          throw new RuntimeException("Streaming validation does not support a DTD");
+        case XMLStreamConstants.END_DOCUMENT:
+          if (active.contains(document)) {
+            finishCandidate(document);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    if (signatureElement == null) {
+      throw new RuntimeException("Couldn't find 'Signature' element");
+    }
+  }
+
+  private void startElement(XMLStreamReader reader)
+      throws IOException, NoSuchAlgorithmException, ParserConfigurationException {
+    depth++;
+    String name = expandedName(reader.getNamespaceURI(), reader.getLocalName());
+    names.add(name);
+    boolean first = childCounts.peek().merge(name, 1, Integer::sum) == 1;
+    firstOfName.push(first);
+    if (!first) notFirst++;
+    childCounts.push(new HashMap<String, Integer>());
+    Map<String, String> scope = scopes.peek();
+    if (reader.getNamespaceCount() > 0) {
+      scope = new HashMap<String, String>(scope);
+      for (int i = 0; i < reader.getNamespaceCount(); i++) {
+        scope.put(orEmpty(reader.getNamespacePrefix(i)), orEmpty(reader.getNamespaceURI(i)));
+      }
+    }
+    scopes.push(scope);
+
+    String prefix = orEmpty(reader.getPrefix());
+    String localName = reader.getLocalName();
+    String namespaceURI = orEmpty(reader.getNamespaceURI());
+    List<Attribute> attributes = new ArrayList<Attribute>(reader.getAttributeCount());
+    List<Attribute> ownXmlAttributes = Collections.emptyList();
+    String id = null;
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String attributeNamespace = orEmpty(reader.getAttributeNamespace(i));
+      String attributeName = reader.getAttributeLocalName(i);
+      Attribute attribute =
+          new Attribute(
+              reader.getAttributePrefix(i),
+              attributeName,
+              attributeNamespace,
+              reader.getAttributeValue(i));
+      attributes.add(attribute);
+      if (attributeNamespace.equals(XMLConstants.XML_NS_URI)) {
+        if (ownXmlAttributes.isEmpty()) ownXmlAttributes = new ArrayList<Attribute>(2);
+        ownXmlAttributes.add(attribute);
+      }
+      if (attributeName.equals("Id") || attributeName.equals("ID") || attributeName.equals("id")) {
+        id = reader.getAttributeValue(i);
+      }
+    }
+    xmlAttributes.push(ownXmlAttributes);
+
+    if (signatureDepth > 0) {
+      captureParent = captureParent.appendChild(copyElement(reader, null, attributes));
+    } else if (signatureElement == null
+        && localName.equals("Signature")
+        && namespaceURI.equals(XMLSignature.XMLNS)
+        && (acceptedPaths != null || depth == 2)) {
+      // keep a copy of the Signature, with the namespaces and xml:* attributes it inherits
+      signatureDocument = XmlUtils.newDocument();
+      signatureElement = copyElement(reader, scope, attributes);
+      for (Attribute inherited : inheritedXmlAttributes()) {
+        if (!signatureElement.hasAttributeNS(XMLConstants.XML_NS_URI, inherited.localName())) {
+          signatureElement.setAttributeNS(
+              XMLConstants.XML_NS_URI, "xml:" + inherited.localName(), inherited.value());
+        }
+      }
+      signatureDocument.appendChild(signatureElement);
+      captureParent = signatureElement;
+      signatureDepth = depth;
+    } else if (id != null) {
+      noteId("#" + id);
+    }
+
+    for (Candidate candidate : active) {
+      if (candidate.uri.isEmpty() && signatureDepth > 0) continue; // enveloped
+      for (Variant variant : candidate.variants) {
+        variant.canonicalizer.startElement(prefix, localName, scope, attributes);
+      }
+    }
+  }
+
+  private Element copyElement(
+      XMLStreamReader reader, Map<String, String> declarations, List<Attribute> attributes) {
+    String namespaceURI = reader.getNamespaceURI();
+    Element element =
+        signatureDocument.createElementNS(
+            (namespaceURI == null || namespaceURI.isEmpty()) ? null : namespaceURI,
+            qname(orEmpty(reader.getPrefix()), reader.getLocalName()));
+    if (declarations == null) {
+      declarations = new HashMap<String, String>();
+      for (int i = 0; i < reader.getNamespaceCount(); i++) {
+        declarations.put(orEmpty(reader.getNamespacePrefix(i)), orEmpty(reader.getNamespaceURI(i)));
+      }
+    }
+    for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+      element.setAttributeNS(
+          XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+          declaration.getKey().isEmpty() ? "xmlns" : "xmlns:" + declaration.getKey(),
+          declaration.getValue());
+    }
+    for (Attribute attribute : attributes) {
+      element.setAttributeNS(
+          attribute.namespaceURI().isEmpty() ? null : attribute.namespaceURI(),
+          qname(attribute.prefix(), attribute.localName()),
+          attribute.value());
+    }
+    return element;
+  }
+
+  // the xml:* attributes of the ancestors of the current element, the nearest taking precedence
+  private List<Attribute> inheritedXmlAttributes() {
+    Map<String, Attribute> inherited = new LinkedHashMap<String, Attribute>();
+    Iterator<List<Attribute>> outermostFirst = xmlAttributes.descendingIterator();
+    for (int level = 1; level < xmlAttributes.size(); level++) {
+      for (Attribute attribute : outermostFirst.next()) {
+        inherited.put(attribute.localName(), attribute);
+      }
+    }
+    return new ArrayList<Attribute>(inherited.values());
+  }
+
+  // Records the ID, to detect duplicates, and starts digesting the element if
+  // it is at an accepted path, and it might be, or is, referenced.
+  private void noteId(String uri) throws NoSuchAlgorithmException {
+    if (acceptedPaths == null || (plans != null && !wanted.containsKey(uri))) return;
+    if (!ids.add(uri)) {
+      duplicates.add(uri);
+      return;
+    }
+    if (plans == null && ids.size() > MAX_PENDING) {
+      throw unsupported("more than " + MAX_PENDING + " elements with an ID before the Signature");
+    }
+    String path = acceptedPath();
+    if (path == null) return;
+    if (plans == null) {
+      if (active.size() - (active.contains(document) ? 1 : 0) >= MAX_NESTED_PENDING) {
+        throw unsupported(
+            "more than " + MAX_NESTED_PENDING + " nested elements with an ID before the Signature");
+      }
+      startCandidate(uri, path, everyWay);
+    } else {
+      startCandidate(uri, path, wanted.get(uri));
+    }
+  }
+
+  // The accepted path, as configured, at which the current element is, or null.
+  private String acceptedPath() {
+    if (acceptedPaths == null || notFirst > 0) return null;
+    return acceptedPaths.get(names);
+  }
+
+  private Candidate startCandidate(String uri, String path, Map<Mode, Set<String>> ways)
+      throws NoSuchAlgorithmException {
+    Candidate candidate = new Candidate(uri, path, depth);
+    List<Attribute> inherited =
+        uri.isEmpty() ? Collections.<Attribute>emptyList() : inheritedXmlAttributes();
+    for (Map.Entry<Mode, Set<String>> way : ways.entrySet()) {
+      candidate.variants.add(new Variant(way.getKey(), way.getValue(), inherited));
+    }
+    active.add(candidate);
+    return candidate;
+  }
+
+  private void finishCandidate(Candidate candidate) throws IOException {
+    Map<String, byte[]> digests = new HashMap<String, byte[]>();
+    for (Variant variant : candidate.variants) {
+      variant.writer.flush();
+      for (Map.Entry<String, MessageDigest> entry : variant.digests.entrySet()) {
+        digests.put(variant.mode.name() + " " + entry.getKey(), entry.getValue().digest());
+      }
+    }
+    results.put(candidate.uri, digests);
+    if (candidate.path != null) {
+      resultPaths.put(candidate.uri, candidate.path);
+    }
+    active.remove(candidate);
+  }
+
+  private void endElement(XMLStreamReader reader) throws IOException {
+    String prefix = orEmpty(reader.getPrefix());
+    String localName = reader.getLocalName();
+    for (Candidate candidate : active) {
+      if (candidate.uri.isEmpty() && signatureDepth > 0) continue; // enveloped
+      for (Variant variant : candidate.variants) {
+        variant.canonicalizer.endElement(prefix, localName);
+      }
+    }
+    for (int i = active.size() - 1; i >= 0; i--) {
+      if (active.get(i).depth == depth) {
+        finishCandidate(active.get(i));
+      }
+    }
+    if (signatureDepth > 0) {
+      if (depth == signatureDepth) {
+        signatureDepth = 0;
+        captureParent = null;
+        planReferences();
+      } else {
+        captureParent = captureParent.getParentNode();
+      }
+    }
+    scopes.pop();
+    xmlAttributes.pop();
+    childCounts.pop();
+    if (!firstOfName.pop()) notFirst--;
+    names.remove(names.size() - 1);
+    depth--;
+  }
+
+  private void characters(XMLStreamReader reader) throws IOException {
+    if (signatureDepth > 0) {
+      captureParent.appendChild(signatureDocument.createTextNode(reader.getText()));
+    }
+    for (Candidate candidate : active) {
+      if (candidate.uri.isEmpty() && signatureDepth > 0) continue;
+      for (Variant variant : candidate.variants) {
+        variant.canonicalizer.characters(
+            reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+      }
+    }
+  }
+
+  private void processingInstruction(XMLStreamReader reader) throws IOException {
+    if (signatureDepth > 0) {
+      captureParent.appendChild(
+          signatureDocument.createProcessingInstruction(
+              reader.getPITarget(), orEmpty(reader.getPIData())));
+    }
+    for (Candidate candidate : active) {
+      if (candidate.uri.isEmpty() && signatureDepth > 0) continue;
+      for (Variant variant : candidate.variants) {
+        variant.canonicalizer.processingInstruction(reader.getPITarget(), reader.getPIData());
+      }
+    }
+  }
+
+  // Reads the References from the SignedInfo, just read, and from here on
+  // digests only what they need.
+  private void planReferences() {
+    Element signedInfo = child(signatureElement, "SignedInfo");
+    if (signedInfo == null) {
+      throw new RuntimeException("Couldn't find 'SignedInfo' element");
+    }
+    plans = new ArrayList<Plan>();
+    wanted = new HashMap<String, Map<Mode, Set<String>>>();
+    for (Node node = signedInfo.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (!isDsigElement(node, "Reference")) continue;
+      Element reference = (Element) node;
+      if (!reference.hasAttribute("URI")) {
+        throw new RuntimeException(
+            "Invalid signature. There is no URI attribute on the Reference element.");
+      }
+      List<String> transforms = new ArrayList<String>();
+      Element transformsElement = child(reference, "Transforms");
+      if (transformsElement != null) {
+        for (Node t = transformsElement.getFirstChild(); t != null; t = t.getNextSibling()) {
+          if (!isDsigElement(t, "Transform")) continue;
+          if (child((Element) t, null) != null) {
+            throw unsupported("a Transform with parameters");
+          }
+          transforms.add(((Element) t).getAttribute("Algorithm"));
+        }
+      }
+      Element digestMethod = child(reference, "DigestMethod");
+      String uri = reference.getAttribute("URI");
+      if (acceptedPaths == null && !uri.isEmpty()) {
+        throw new RuntimeException(
+            "Invalid signature. The signature does not apply to the root element.");
+      }
+      Plan plan =
+          Plan.of(
+              uri,
+              transforms,
+              (digestMethod == null) ? "" : digestMethod.getAttribute("Algorithm"));
+      plans.add(plan);
+      wanted
+          .computeIfAbsent(plan.uri, k -> new EnumMap<Mode, Set<String>>(Mode.class))
+          .computeIfAbsent(plan.mode, k -> new LinkedHashSet<String>())
+          .add(plan.digestAlgorithm);
+    }
+    if (plans.isEmpty()) {
+      throw new RuntimeException("Couldn't find 'Reference' element");
+    }
+    results.keySet().retainAll(wanted.keySet());
+    ids.retainAll(wanted.keySet());
+    duplicates.retainAll(wanted.keySet());
+    for (Iterator<Candidate> it = active.iterator(); it.hasNext(); ) {
+      Candidate candidate = it.next();
+      if (!candidate.prune(wanted.get(candidate.uri))) {
+        it.remove();
+      }
+    }
+  }
+
+  private static boolean isDsigElement(Node node, String localName) {
+    return node.getNodeType() == Node.ELEMENT_NODE
+        && localName.equals(node.getLocalName())
+        && XMLSignature.XMLNS.equals(node.getNamespaceURI());
+  }
+
+  // the first child element with this name in the signature namespace, or if
+  // the name is null, the first child element of any name
+  private static Element child(Element parent, String localName) {
+    for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node.getNodeType() == Node.ELEMENT_NODE
+          && (localName == null || isDsigElement(node, localName))) {
+        return (Element) node;
+      }
+    }
+    return null;
+  }
+
+  private static String qname(String prefix, String localName) {
+    return prefix.isEmpty() ? localName : prefix + ":" + localName;
+  }
+
+  private static String orEmpty(String s) {
+    return (s == null) ? "" : s;
+  }
+}
@@ -19,32 +19,118 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.DocumentHandoff;
+import com.google.apigee.util.KeyCache;
 import java.io.IOException;
 import java.io.StringReader;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import javax.xml.XMLConstants;
 import javax.xml.crypto.KeySelector;
 import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
 import javax.xml.crypto.dsig.XMLSignature;
 import javax.xml.crypto.dsig.XMLSignatureFactory;
 import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.edec.EdECObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
 import org.bouncycastle.asn1.pkcs.RSAPublicKey;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
 import org.bouncycastle.openssl.PEMParser;
+import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 public class Validate extends XmlDsigCalloutBase implements Execution {
 
+  private static final int MAX_THUMBPRINT_SETS = 64;
+  private static final Map<String, Set<String>> thumbprintSets =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+              return size() > MAX_THUMBPRINT_SETS;
+            }
+          });
+
+  // The certificates embedded in signed documents, kept apart from the configured keys, so that
+  // messages cannot evict those. A certificate is kept only after its thumbprint has been
+  // accepted, so this holds only trusted certificates, keyed by their encoded text.
+  private static final int MAX_ACCEPTED_CERTIFICATES = 64;
+  private static final Map<String, ParsedCertificate> acceptedCertificates =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, ParsedCertificate>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ParsedCertificate> eldest) {
+              return size() > MAX_ACCEPTED_CERTIFICATES;
+            }
+          });
+
+  // Validating several signatures uses a small pool shared by all policies. When every thread
+  // is busy and the queue is full, the thread of the request validates the signature itself.
+  private static final int POOL_SIZE =
+      Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+  private static final ExecutorService validationPool =
+      new ThreadPoolExecutor(
+          POOL_SIZE,
+          POOL_SIZE,
+          60L,
+          TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(256),
+          new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "xmldsig-validate-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          },
+          new ThreadPoolExecutor.CallerRunsPolicy());
+
+  // XPath is not thread-safe.
+  private static final ThreadLocal<XPath> xpaths =
+      ThreadLocal.withInitial(() -> XPathFactory.newInstance().newXPath());
+
   public Validate(Map properties) {
     super(properties);
   }
@@ -55,47 +141,164 @@ public class Validate extends XmlDsigCalloutBase implements Execution {
     Object o = pr.readObject();
     if (o instanceof SubjectPublicKeyInfo) {
       SubjectPublicKeyInfo subjectPublicKeyInfo = (SubjectPublicKeyInfo) o;
-      RSAPublicKey pubKey = RSAPublicKey.getInstance(subjectPublicKeyInfo.parsePublicKey());
+      ASN1ObjectIdentifier algorithm = subjectPublicKeyInfo.getAlgorithm().getAlgorithm();
+      if (algorithm.equals(PKCSObjectIdentifiers.rsaEncryption)) {
+        RSAPublicKey pubKey = RSAPublicKey.getInstance(subjectPublicKeyInfo.parsePublicKey());
 
-      PublicKey publicKey =
-          KeyFactory.getInstance("RSA")
-              .generatePublic(
-                  new RSAPublicKeySpec(pubKey.getModulus(), pubKey.getPublicExponent()));
+        PublicKey publicKey =
+            KeyFactory.getInstance("RSA")
+                .generatePublic(
+                    new RSAPublicKeySpec(pubKey.getModulus(), pubKey.getPublicExponent()));
 
-      return publicKey;
+        return publicKey;
+      }
+      String keyType =
+          algorithm.equals(X9ObjectIdentifiers.id_ecPublicKey)
+              ? "EC"
+              : algorithm.equals(EdECObjectIdentifiers.id_Ed25519) ? "Ed25519" : null;
+      if (keyType != null) {
+        return KeyFactory.getInstance(keyType)
+            .generatePublic(new X509EncodedKeySpec(subjectPublicKeyInfo.getEncoded()));
+      }
     }
-    throw new IllegalStateException("Didn't find an RSA Public Key");
+    throw new IllegalStateException("Didn't find an RSA, EC, or Ed25519 Public Key");
   }
 
   private PublicKey getPublicKey(MessageContext msgCtxt) throws Exception {
     String publicKeyPemString = getSimpleOptionalProperty("public-key", msgCtxt);
     if (publicKeyPemString == null) return null;
-    publicKeyPemString = publicKeyPemString.trim();
+    return KeyCache.get(
+        "public-key",
+        publicKeyPemString,
+        null,
+        () ->
+            // clear any leading whitespace on each line
+            decodePublicKey(publicKeyPemString.trim().replaceAll("([\\r|\\n] +)", "\n")));
+  }
 
-    // clear any leading whitespace on each line
-    publicKeyPemString = publicKeyPemString.replaceAll("([\\r|\\n] +)", "\n");
-    return decodePublicKey(publicKeyPemString);
+  // The thumbprint lists are usually constants, so each distinct list is
+  // parsed once into a set.
+  private static Set<String> thumbprintSet(String nameList) {
+    Set<String> thumbprints = thumbprintSets.get(nameList);
+    if (thumbprints == null) {
+      thumbprints =
+          Collections.unmodifiableSet(
+              Arrays.asList(nameList.trim().split(",[ ]*")).stream()
+                  .map(String::toLowerCase)
+                  .collect(Collectors.toSet()));
+      thumbprintSets.put(nameList, thumbprints);
+    }
+    return thumbprints;
   }
 
-  private List<String> getCertificateThumbprints(MessageContext msgCtxt) throws Exception {
+  private Set<String> getCertificateThumbprints(MessageContext msgCtxt) throws Exception {
     String nameList = getSimpleOptionalProperty("certificate-thumbprints", msgCtxt);
     if (nameList == null) {
       nameList = getSimpleOptionalProperty("certificate-thumbprint", msgCtxt);
     }
     if (nameList == null) return null;
-    nameList = nameList.trim();
-    return Arrays.asList(nameList.split(",[ ]*")).stream()
-        .map(String::toLowerCase)
-        .collect(Collectors.toList());
+    return thumbprintSet(nameList);
   }
 
-  private List<String> getCertificateThumbprints_S256(MessageContext msgCtxt) throws Exception {
+  private Set<String> getCertificateThumbprints_S256(MessageContext msgCtxt) throws Exception {
     String nameList = getSimpleOptionalProperty("certificate-thumbprints-s256", msgCtxt);
     if (nameList == null) return null;
-    nameList = nameList.trim();
-    return Arrays.asList(nameList.split(",[ ]*")).stream()
-        .map(String::toLowerCase)
-        .collect(Collectors.toList());
+    return thumbprintSet(nameList);
+  }
+
+  private boolean getValidateAll(MessageContext msgCtxt) {
+    String value = getSimpleOptionalProperty("validate-all-signatures", msgCtxt);
+    return (value != null) && value.toLowerCase().equals("true");
+  }
+
+  // Streaming applies to the simple case: one signature, in a document that is
+  // not handed off from another callout, with the SignedInfo as received.
+  private boolean getStreaming(MessageContext msgCtxt, DocumentHandoff handoff) {
+    String value = getSimpleOptionalProperty("streaming-validation", msgCtxt);
+    return (value != null)
+        && value.toLowerCase().equals("true")
+        && !handoff.isEnabled()
+        && !getValidateAll(msgCtxt)
+        && getSimpleOptionalProperty("signature-xpath", msgCtxt) == null
+        && !"true".equals(getSimpleOptionalProperty("reform-signedinfo", msgCtxt));
+  }
+
+  // The paths at which streaming validation, and the validation of several
+  // signatures, accept an element signed by reference to its ID, keyed by the
+  // expanded names of the steps, or null if only a signature over the whole
+  // document is accepted.
+  private Map<List<String>, String> getIdReferencePaths(MessageContext msgCtxt) {
+    String value = getSimpleOptionalProperty("id-reference-paths", msgCtxt);
+    if (value == null) return null;
+    Map<String, String> namespaces = getNamespaces(msgCtxt);
+    Map<List<String>, String> paths = new HashMap<List<String>, String>();
+    for (String path : value.trim().split("[,\\s]+")) {
+      if (!path.startsWith("/") || path.length() == 1) {
+        throw badIdReferencePaths();
+      }
+      List<String> names = new ArrayList<String>();
+      for (String step : path.substring(1).split("/", -1)) {
+        int colon = step.indexOf(':');
+        String prefix = (colon < 0) ? null : step.substring(0, colon);
+        String localName = step.substring(colon + 1);
+        String namespaceURI = (prefix == null) ? "" : namespaces.get(prefix);
+        if (localName.isEmpty() || namespaceURI == null) {
+          throw badIdReferencePaths();
+        }
+        names.add(StreamingValidator.expandedName(namespaceURI, localName));
+      }
+      paths.put(names, path);
+    }
+    return paths;
+  }
+
+  private static IllegalStateException badIdReferencePaths() {
+    return new IllegalStateException(
+        "id-reference-paths must list absolute paths of element names, with declared prefixes");
+  }
+
+  // prefixes for signature-xpath, from properties like xmlns:soap. The prefix
+  // ds is always bound to the XML Digital Signature namespace.
+  private Map<String, String> getNamespaces(MessageContext msgCtxt) {
+    Map<String, String> namespaces = new HashMap<String, String>();
+    namespaces.put("ds", XMLSignature.XMLNS);
+    for (Object key : properties.keySet()) {
+      String k = (String) key;
+      if (k.startsWith("xmlns:")) {
+        namespaces.put(k.substring("xmlns:".length()), getSimpleRequiredProperty(k, msgCtxt));
+      }
+    }
+    return namespaces;
+  }
+
+  private static class MapNamespaceContext implements NamespaceContext {
+    private final Map<String, String> namespaces;
+
+    MapNamespaceContext(Map<String, String> namespaces) {
+      this.namespaces = namespaces;
+    }
+
+    @Override
+    public String getNamespaceURI(String prefix) {
+      String uri = namespaces.get(prefix);
+      return (uri != null) ? uri : XMLConstants.NULL_NS_URI;
+    }
+
+    @Override
+    public String getPrefix(String namespaceURI) {
+      for (Map.Entry<String, String> entry : namespaces.entrySet()) {
+        if (entry.getValue().equals(namespaceURI)) return entry.getKey();
+      }
+      return null;
+    }
+
+    @Override
+    public Iterator<String> getPrefixes(String namespaceURI) {
+      String prefix = getPrefix(namespaceURI);
+      return (prefix == null)
+          ? Collections.<String>emptyIterator()
+          : Collections.singletonList(prefix).iterator();
+    }
   }
 
   private static Element childByTagNameNS(
@@ -128,33 +331,22 @@ public class Validate extends XmlDsigCalloutBase implements Execution {
     return currentElement;
   }
 
-  private static boolean validate_RSA(
+  private static boolean validate(
       Document doc, ValidateConfiguration config, MessageContext msgCtxt) throws Exception {
 
     // Validate just the first signature. Will not handle multiple
-    // distinct signatures.
+    // distinct signatures; see validateAll for that.
     Element signatureElement = xmlDsigElementByPath(doc.getDocumentElement(), "Signature");
+    return validateSignature(signatureElement, config, false, msgCtxt::setVariable);
+  }
 
-    Element signedInfo = xmlDsigElementByPath(signatureElement, "SignedInfo");
-
-    // check that the signature applies to the root element
-    Element reference = xmlDsigElementByPath(signedInfo, "Reference");
-    String referenceURI = reference.getAttribute("URI");
-    if (referenceURI == null) {
-      throw new RuntimeException(
-          "Invalid signature. There is no URI attribute on the Reference element.");
-    }
-    if (!"".equals(referenceURI)) {
-      throw new RuntimeException(
-          "Invalid signature. The signature does not apply to the root element.");
-    }
-
+  private static void checkAlgorithms(Element signedInfo, ValidateConfiguration config)
+      throws Exception {
     if ((config.signingMethod != null) || (config.digestMethod != null)) {
       if (config.signingMethod != null) {
         Element signatureMethod = xmlDsigElementByPath(signedInfo, "SignatureMethod");
         String algorithm = signatureMethod.getAttribute("Algorithm");
-        if ((config.signingMethod.equals("rsa-sha1") && !RSA_SHA1.equals(algorithm))
-            || (config.signingMethod.equals("rsa-sha256") && !RSA_SHA256.equals(algorithm))) {
+        if (!signingMethodUri(config.signingMethod).equals(algorithm)) {
           throw new RuntimeException("Unacceptable SignatureMethod Algorithm");
         }
       }
@@ -168,30 +360,47 @@ public class Validate extends XmlDsigCalloutBase implements Execution {
         }
       }
     }
+  }
+
+  // The factory that implements the SignatureMethod of the signature.
+  private static XMLSignatureFactory signatureFactoryFor(Element signedInfo) {
+    Element signatureMethod = childByTagNameNS(signedInfo, "SignatureMethod", XMLSignature.XMLNS);
+    return signatureFactoryFor(
+        (signatureMethod == null) ? null : signatureMethod.getAttribute("Algorithm"));
+  }
+
+  // The key from the certificate in the KeyInfo, if its thumbprint is
+  // acceptable, or else the key in the configuration.
+  private static PublicKey selectPublicKey(
+      Element signatureElement, ValidateConfiguration config, BiConsumer<String, Object> variables)
+      throws Exception {
     PublicKey publicKey = null;
     if (config.keyIdentifierType == KeyIdentifierType.X509_CERT_DIRECT) {
       // obtain public key from cert at this xpath: Signature/KeyInfo/X509Data/X509Certificate
       Element x509CertElement =
           xmlDsigElementByPath(signatureElement, "KeyInfo/X509Data/X509Certificate");
 
-      X509Certificate embeddedCertificate =
-          (X509Certificate) certificateFromEncoded(x509CertElement.getTextContent());
-      emitCertificateInformation(embeddedCertificate, msgCtxt);
+      String encoded = x509CertElement.getTextContent();
+      ParsedCertificate cached = acceptedCertificates.get(encoded);
+      ParsedCertificate parsedCertificate =
+          (cached != null) ? cached : parsedCertificateFromEncoded(encoded);
+      X509Certificate embeddedCertificate = parsedCertificate.certificate;
+      emitCertificateInformation(embeddedCertificate, variables);
 
       if (!config.omitCertValidityCheck) {
-        checkCertificateValidity(embeddedCertificate, msgCtxt);
+        checkCertificateValidity(embeddedCertificate, null);
       }
 
       if (config.acceptableCertificateThumbprints_sha256 != null) {
-        String thumbprint_sha256 = getThumbprintHexSha256(embeddedCertificate);
-        msgCtxt.setVariable(varName("cert-sha256-thumbprint"), thumbprint_sha256);
+        String thumbprint_sha256 = parsedCertificate.thumbprintSha256Hex;
+        variables.accept(varName("cert-sha256-thumbprint"), thumbprint_sha256);
 
         if (!config.acceptableCertificateThumbprints_sha256.contains(thumbprint_sha256)) {
           throw new RuntimeException("Untrusted thumbprint on certificate");
         }
       } else if (config.acceptableCertificateThumbprints_sha1 != null) {
-        String thumbprint_sha1 = getThumbprintHex(embeddedCertificate);
-        msgCtxt.setVariable(varName("cert-sha1-thumbprint"), thumbprint_sha1);
+        String thumbprint_sha1 = parsedCertificate.thumbprintSha1Hex;
+        variables.accept(varName("cert-sha1-thumbprint"), thumbprint_sha1);
 
         if (!config.acceptableCertificateThumbprints_sha1.contains(thumbprint_sha1)) {
           throw new RuntimeException("Untrusted thumbprint on certificate");
@@ -199,6 +408,9 @@ public class Validate extends XmlDsigCalloutBase implements Execution {
       } else {
         throw new RuntimeException("No way to validate thumbprint on certificate");
       }
+      if (cached == null) {
+        acceptedCertificates.put(encoded, parsedCertificate);
+      }
       publicKey = embeddedCertificate.getPublicKey();
     } else {
       // KeyIdentifierType.RSA_KEY_VALUE
@@ -207,21 +419,315 @@ public class Validate extends XmlDsigCalloutBase implements Execution {
       }
       publicKey = config.publicKey;
     }
+    return publicKey;
+  }
+
+  private static boolean validateSignature(
+      Element signatureElement,
+      ValidateConfiguration config,
+      boolean allowIdReferences,
+      BiConsumer<String, Object> variables)
+      throws Exception {
+    Element signedInfo = xmlDsigElementByPath(signatureElement, "SignedInfo");
+
+    // check that the signature applies to the root element, or, when validating
+    // several signatures with id-reference-paths, to an element identified by
+    // an ID attribute, at one of those paths.
+    Element reference = xmlDsigElementByPath(signedInfo, "Reference");
+    String referenceURI = reference.getAttribute("URI");
+    if (referenceURI == null) {
+      throw new RuntimeException(
+          "Invalid signature. There is no URI attribute on the Reference element.");
+    }
+    Set<String> referencedIds = referencedIds(signatureElement);
+    boolean acceptIds = allowIdReferences && config.idReferencePaths != null;
+    if (!"".equals(referenceURI) && !referenceURI.startsWith("#")
+        || !referencedIds.isEmpty() && !acceptIds) {
+      throw new RuntimeException(
+          "Invalid signature. The signature does not apply to the root element.");
+    }
+    variables.accept(varName("reference"), referenceURI);
+    checkAlgorithms(signedInfo, config);
+    PublicKey publicKey = selectPublicKey(signatureElement, config, variables);
     KeySelector ks = KeySelector.singletonKeySelector(publicKey);
     DOMValidateContext vc = new DOMValidateContext(ks, signatureElement);
-    XMLSignatureFactory signatureFactory = XMLSignatureFactory.getInstance("DOM");
-    XMLSignature signature = signatureFactory.unmarshalXMLSignature(vc);
+    if (!referencedIds.isEmpty()) {
+      Map<String, Element> signed =
+          registerIds(signatureElement.getOwnerDocument(), referencedIds, vc);
+      for (String id : referencedIds) {
+        if (!signed.containsKey(id)) {
+          throw new RuntimeException(
+              "Invalid signature. The Reference '#" + id + "' does not identify an element.");
+        }
+        String path = acceptedPath(signed.get(id), config.idReferencePaths);
+        if (path == null) {
+          throw new RuntimeException(
+              "Invalid signature. The Reference '#"
+                  + id
+                  + "' identifies an element that is not at an accepted path.");
+        }
+        if (referenceURI.equals("#" + id)) {
+          variables.accept(varName("reference_path"), path);
+        }
+      }
+    }
+    XMLSignature signature = signatureFactoryFor(signedInfo).unmarshalXMLSignature(vc);
     return signature.validate(vc);
   }
 
+  /**
+   * Validates the first signature while reading the document once, as a stream. The referenced
+   * content is digested as it is read; only the Signature element is kept in memory. The
+   * SignatureValue is then checked over the SignedInfo, and each Reference against the digest
+   * computed from the stream.
+   */
+  @SuppressWarnings("unchecked")
+  private static boolean validateStreaming(
+      XMLStreamReader reader, ValidateConfiguration config, MessageContext msgCtxt)
+      throws Exception {
+    StreamingValidator streamed = StreamingValidator.read(reader, config.idReferencePaths);
+    Element signatureElement = streamed.getSignatureElement();
+    Element signedInfo = xmlDsigElementByPath(signatureElement, "SignedInfo");
+    msgCtxt.setVariable(varName("reference"), streamed.getPlans().get(0).uri);
+    if (streamed.pathOf(0) != null) {
+      msgCtxt.setVariable(varName("reference_path"), streamed.pathOf(0));
+    }
+    checkAlgorithms(signedInfo, config);
+    PublicKey publicKey = selectPublicKey(signatureElement, config, msgCtxt::setVariable);
+    DOMValidateContext vc =
+        new DOMValidateContext(KeySelector.singletonKeySelector(publicKey), signatureElement);
+    XMLSignature signature = signatureFactoryFor(signedInfo).unmarshalXMLSignature(vc);
+    List<Reference> references = signature.getSignedInfo().getReferences();
+    for (int i = 0; i < references.size(); i++) {
+      if (!MessageDigest.isEqual(streamed.digestOf(i), references.get(i).getDigestValue())) {
+        return false;
+      }
+    }
+    return signature.getSignatureValue().validate(vc);
+  }
+
+  // the IDs named by the References of the signature, like "body" for URI="#body"
+  private static Set<String> referencedIds(Element signatureElement) {
+    Set<String> ids = new HashSet<String>();
+    Element signedInfo = childByTagNameNS(signatureElement, "SignedInfo", XMLSignature.XMLNS);
+    if (signedInfo == null) {
+      return ids;
+    }
+    NodeList references = signedInfo.getElementsByTagNameNS(XMLSignature.XMLNS, "Reference");
+    for (int i = 0; i < references.getLength(); i++) {
+      String uri = ((Element) references.item(i)).getAttribute("URI");
+      if (uri.startsWith("#")) {
+        ids.add(uri.substring(1));
+      }
+    }
+    return ids;
+  }
+
+  // Tells the context which attributes are the referenced IDs, so that a
+  // Reference like URI="#body" resolves. A referenced ID that appears on more
+  // than one element is rejected, because the signature could then be made to
+  // apply to an element other than the one that was signed. Other IDs are
+  // not examined. The context marks each registered attribute as an ID in the
+  // document itself. Returns the element for each ID that was found.
+  private static Map<String, Element> registerIds(
+      Document doc, Set<String> ids, DOMValidateContext vc) {
+    Map<String, Element> seen = new HashMap<String, Element>();
+    for (Element element = doc.getDocumentElement();
+        element != null;
+        element = nextElement(element)) {
+      NamedNodeMap attributes = element.getAttributes();
+      for (int i = 0; i < attributes.getLength(); i++) {
+        Attr attr = (Attr) attributes.item(i);
+        String localName = (attr.getLocalName() != null) ? attr.getLocalName() : attr.getName();
+        if ((localName.equals("Id") || localName.equals("ID") || localName.equals("id"))
+            && ids.contains(attr.getValue())) {
+          if (seen.put(attr.getValue(), element) != null) {
+            throw new IllegalStateException(
+                "the ID '" + attr.getValue() + "' appears more than once");
+          }
+          vc.setIdAttributeNS(element, attr.getNamespaceURI(), localName);
+        }
+      }
+    }
+    return seen;
+  }
+
+  // The accepted path at which the element sits, or null if it is at none. As
+  // in streaming validation, each step of the path must be the first child
+  // element with that name, so that a signed element cannot be moved into a
+  // wrapper, with an unsigned element put in its place.
+  private static String acceptedPath(Element element, Map<List<String>, String> acceptedPaths) {
+    LinkedList<String> names = new LinkedList<String>();
+    for (Node node = element;
+        node != null && node.getNodeType() == Node.ELEMENT_NODE;
+        node = node.getParentNode()) {
+      String name = StreamingValidator.expandedName(node.getNamespaceURI(), node.getLocalName());
+      for (Node sibling = node.getPreviousSibling();
+          sibling != null;
+          sibling = sibling.getPreviousSibling()) {
+        if (sibling.getNodeType() == Node.ELEMENT_NODE
+            && name.equals(
+                StreamingValidator.expandedName(
+                    sibling.getNamespaceURI(), sibling.getLocalName()))) {
+          return null;
+        }
+      }
+      names.addFirst(name);
+    }
+    return acceptedPaths.get(names);
+  }
+
+  // the next element in document order, or null
+  private static Element nextElement(Element element) {
+    Node node = element;
+    Node next = firstChildElement(node);
+    while (next == null && node != null) {
+      next = nextSiblingElement(node);
+      node = node.getParentNode();
+      if (node != null && node.getNodeType() != Node.ELEMENT_NODE) {
+        node = null;
+      }
+    }
+    return (Element) next;
+  }
+
+  private static Node firstChildElement(Node node) {
+    Node child = node.getFirstChild();
+    while (child != null && child.getNodeType() != Node.ELEMENT_NODE) {
+      child = child.getNextSibling();
+    }
+    return child;
+  }
+
+  private static Node nextSiblingElement(Node node) {
+    Node sibling = node.getNextSibling();
+    while (sibling != null && sibling.getNodeType() != Node.ELEMENT_NODE) {
+      sibling = sibling.getNextSibling();
+    }
+    return sibling;
+  }
+
+  private static List<Element> selectSignatures(Document doc, ValidateConfiguration config)
+      throws XPathExpressionException {
+    List<Element> signatures = new ArrayList<Element>();
+    NodeList nl;
+    if (config.signatureXpath != null) {
+      XPath xpath = xpaths.get();
+      xpath.setNamespaceContext(new MapNamespaceContext(config.namespaces));
+      nl = (NodeList) xpath.evaluate(config.signatureXpath, doc, XPathConstants.NODESET);
+    } else {
+      nl = doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+    }
+    for (int i = 0; i < nl.getLength(); i++) {
+      Node node = nl.item(i);
+      if (!(node instanceof Element)
+          || !"Signature".equals(node.getLocalName())
+          || !XMLSignature.XMLNS.equals(node.getNamespaceURI())) {
+        throw new IllegalStateException("signature-xpath selects something other than a Signature");
+      }
+      signatures.add((Element) node);
+    }
+    if (signatures.isEmpty()) {
+      throw new RuntimeException("Couldn't find 'Signature' element");
+    }
+    return signatures;
+  }
+
+  // The position of a node, as the index of each ancestor among its siblings.
+  private static List<Integer> pathOf(Node node) {
+    LinkedList<Integer> path = new LinkedList<Integer>();
+    for (Node n = node; n.getParentNode() != null; n = n.getParentNode()) {
+      int index = 0;
+      for (Node s = n.getPreviousSibling(); s != null; s = s.getPreviousSibling()) {
+        index++;
+      }
+      path.addFirst(index);
+    }
+    return path;
+  }
+
+  private static Node nodeAt(Document doc, List<Integer> path) {
+    Node node = doc;
+    for (int index : path) {
+      node = node.getChildNodes().item(index);
+    }
+    return node;
+  }
+
+  static class SignatureResult {
+    final Map<String, Object> variables = new LinkedHashMap<String, Object>();
+    boolean valid;
+    Exception exception;
+  }
+
+  /**
+   * Validates each selected signature, concurrently. A DOM is not safe for use by concurrent
+   * threads, even for reading, so each signature but the last is validated against its own copy of
+   * the document; copying a parsed document costs much less than parsing it, or than
+   * canonicalizing and digesting it. The last is validated against a copy too, if it refers to an
+   * ID, because registering the ID marks the attribute in the document, which may be handed off to
+   * a later callout. The results are set as context variables afterwards, on the
+   * thread of the request, with a suffix of _1, _2, and so on, in document order.
+   */
+  private boolean validateAll(
+      Document doc, ValidateConfiguration config, MessageContext msgCtxt) throws Exception {
+    List<Element> signatures = selectSignatures(doc, config);
+    int count = signatures.size();
+    List<Future<SignatureResult>> futures = new ArrayList<Future<SignatureResult>>(count);
+    for (int i = 0; i < count; i++) {
+      Element signatureElement =
+          (i == count - 1 && referencedIds(signatures.get(i)).isEmpty())
+              ? signatures.get(i)
+              : (Element) nodeAt((Document) doc.cloneNode(true), pathOf(signatures.get(i)));
+      futures.add(
+          validationPool.submit(
+              () -> {
+                SignatureResult result = new SignatureResult();
+                try {
+                  result.valid =
+                      validateSignature(signatureElement, config, true, result.variables::put);
+                } catch (Exception e) {
+                  result.exception = e;
+                }
+                return result;
+              }));
+    }
+
+    msgCtxt.setVariable(varName("signature_count"), count);
+    boolean allValid = true;
+    for (int i = 0; i < count; i++) {
+      String suffix = "_" + (i + 1);
+      SignatureResult result;
+      try {
+        result = futures.get(i).get();
+      } catch (ExecutionException e) {
+        throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+      }
+      for (Map.Entry<String, Object> entry : result.variables.entrySet()) {
+        msgCtxt.setVariable(entry.getKey() + suffix, entry.getValue());
+      }
+      if (result.exception != null) {
+        setExceptionVariables(result.exception, msgCtxt, suffix);
+      }
+      msgCtxt.setVariable(varName("valid" + suffix), result.valid);
+      allValid = allValid && result.valid;
+    }
+    return allValid;
+  }
+
   static class ValidateConfiguration {
     public PublicKey publicKey;
-    public List<String> acceptableCertificateThumbprints_sha1;
-    public List<String> acceptableCertificateThumbprints_sha256;
+    public Set<String> acceptableCertificateThumbprints_sha1;
+    public Set<String> acceptableCertificateThumbprints_sha256;
     public String signingMethod;
     public String digestMethod;
     public KeyIdentifierType keyIdentifierType;
     public boolean omitCertValidityCheck;
+    public boolean validateAll;
+    public boolean streaming;
+    public Map<List<String>, String> idReferencePaths;
+    public String signatureXpath;
+    public Map<String, String> namespaces;
 
     public ValidateConfiguration() {
       keyIdentifierType = KeyIdentifierType.RSA_KEY_VALUE;
@@ -237,13 +743,13 @@ public class Validate extends XmlDsigCalloutBase implements Execution {
       return this;
     }
 
-    public ValidateConfiguration withCertificateThumbprints(List<String> certificateThumbprints) {
+    public ValidateConfiguration withCertificateThumbprints(Set<String> certificateThumbprints) {
       this.acceptableCertificateThumbprints_sha1 = certificateThumbprints;
       return this;
     }
 
     public ValidateConfiguration withCertificateThumbprints_S256(
-        List<String> certificateThumbprints) {
+        Set<String> certificateThumbprints) {
       this.acceptableCertificateThumbprints_sha256 = certificateThumbprints;
       return this;
     }
@@ -262,12 +768,35 @@ public class Validate extends XmlDsigCalloutBase implements Execution {
       this.omitCertValidityCheck = omitCertValidityCheck;
       return this;
     }
+
+    public ValidateConfiguration withValidateAll(boolean validateAll) {
+      this.validateAll = validateAll;
+      return this;
+    }
+
+    public ValidateConfiguration withStreaming(boolean streaming) {
+      this.streaming = streaming;
+      return this;
+    }
+
+    public ValidateConfiguration withIdReferencePaths(Map<List<String>, String> idReferencePaths) {
+      this.idReferencePaths = idReferencePaths;
+      return this;
+    }
+
+    public ValidateConfiguration withSignatureXpath(
+        String signatureXpath, Map<String, String> namespaces) {
+      this.signatureXpath = signatureXpath;
+      this.namespaces = namespaces;
+      return this;
+    }
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    DocumentHandoff handoff = null;
     try {
       msgCtxt.setVariable(varName("valid"), false);
-      Document document = getDocument(msgCtxt);
+      handoff = getDocumentHandoff(msgCtxt);
       ValidateConfiguration validateConfiguration =
           new ValidateConfiguration()
               .withKeyIdentifierType(getKeyIdentifierType(msgCtxt))
@@ -276,16 +805,36 @@ public class Validate extends XmlDsigCalloutBase implements Execution {
               .withCertificateThumbprints_S256(getCertificateThumbprints_S256(msgCtxt))
               .withSigningMethod(getSigningMethod(msgCtxt))
               .withDigestMethod(getDigestMethod(msgCtxt))
-              .withOmitCertValidityCheck(getOmitCertValidityCheck(msgCtxt));
-
-      PublicKey publicKey = getPublicKey(msgCtxt);
-      boolean isValid = validate_RSA(document, validateConfiguration, msgCtxt);
+              .withOmitCertValidityCheck(getOmitCertValidityCheck(msgCtxt))
+              .withValidateAll(getValidateAll(msgCtxt))
+              .withStreaming(getStreaming(msgCtxt, handoff))
+              .withIdReferencePaths(getIdReferencePaths(msgCtxt))
+              .withSignatureXpath(
+                  getSimpleOptionalProperty("signature-xpath", msgCtxt), getNamespaces(msgCtxt));
+
+      boolean isValid;
+      if (validateConfiguration.streaming) {
+        isValid = validateStreaming(getStreamReader(msgCtxt), validateConfiguration, msgCtxt);
+      } else {
+        Document document = getDocument(msgCtxt, handoff);
+        isValid =
+            (validateConfiguration.validateAll || validateConfiguration.signatureXpath != null)
+                ? validateAll(document, validateConfiguration, msgCtxt)
+                : validate(document, validateConfiguration, msgCtxt);
+      }
       msgCtxt.setVariable(varName("valid"), isValid);
+      handoff.release();
       return ExecutionResult.SUCCESS;
     } catch (IllegalStateException exc1) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       setExceptionVariables(exc1, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (Exception e) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       if (getDebug()) {
         String stacktrace = getStackTraceAsString(e);
         msgCtxt.setVariable(varName("stacktrace"), stacktrace);
@@ -16,11 +16,16 @@
 package com.google.apigee.callouts.xmldsig;
 
 import com.apigee.flow.message.MessageContext;
+import com.google.apigee.util.DocumentHandoff;
+import com.google.apigee.util.KeyCache;
 import com.google.apigee.util.XmlUtils;
 import java.io.ByteArrayInputStream;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.KeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -30,9 +35,13 @@ import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
 import java.time.format.DateTimeFormatter;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.naming.InvalidNameException;
@@ -41,6 +50,10 @@ import javax.naming.ldap.Rdn;
 import javax.security.auth.x500.X500Principal;
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.jcp.xml.dsig.internal.dom.XMLDSigRI;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -55,6 +68,22 @@ public abstract class XmlDsigCalloutBase {
 
   public static final String RSA_SHA1 = "http://www.w3.org/2000/09/xmldsig#rsa-sha1";
   public static final String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+  public static final String ECDSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256";
+  public static final String ECDSA_SHA384 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha384";
+  public static final String ECDSA_SHA512 = "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha512";
+  public static final String ED25519 = "http://www.w3.org/2021/04/xmldsig-more#eddsa-ed25519";
+
+  // the values of signing-method, and the algorithm URI of each
+  private static final Map<String, String> signingMethodUris = new HashMap<String, String>();
+
+  static {
+    signingMethodUris.put("rsa-sha1", RSA_SHA1);
+    signingMethodUris.put("rsa-sha256", RSA_SHA256);
+    signingMethodUris.put("ecdsa-sha256", ECDSA_SHA256);
+    signingMethodUris.put("ecdsa-sha384", ECDSA_SHA384);
+    signingMethodUris.put("ecdsa-sha512", ECDSA_SHA512);
+    signingMethodUris.put("ed25519", ED25519);
+  }
 
   public XmlDsigCalloutBase(Map properties) {
     this.properties = properties;
@@ -64,8 +93,17 @@ public abstract class XmlDsigCalloutBase {
     return _varprefix + s;
   }
 
-  protected Document getDocument(MessageContext msgCtxt) throws Exception {
+  protected DocumentHandoff getDocumentHandoff(MessageContext msgCtxt) {
+    return new DocumentHandoff(msgCtxt, getSimpleOptionalProperty("document-handoff", msgCtxt));
+  }
+
+  protected Document getDocument(MessageContext msgCtxt, DocumentHandoff handoff)
+      throws Exception {
     String source = getSimpleOptionalProperty("source", msgCtxt);
+    if (handoff.isEnabled()) {
+      Document doc = handoff.getDocument((source == null) ? "message.content" : source);
+      return (source == null) ? doc : maybeReformSignedInfo(doc, true, msgCtxt);
+    }
     if (source == null) {
       return XmlUtils.parseXml(msgCtxt.getMessage().getContentAsStream());
     }
@@ -73,9 +111,29 @@ public abstract class XmlDsigCalloutBase {
     if (text == null) {
       throw new IllegalStateException("source variable resolves to null");
     }
-    Document doc = XmlUtils.parseXml(text);
+    return maybeReformSignedInfo(XmlUtils.parseXml(text), false, msgCtxt);
+  }
+
+  // The source, to be read once, as a stream of events, rather than as a Document.
+  protected XMLStreamReader getStreamReader(MessageContext msgCtxt) throws XMLStreamException {
+    String source = getSimpleOptionalProperty("source", msgCtxt);
+    if (source == null) {
+      return XmlUtils.newStreamReader(msgCtxt.getMessage().getContentAsStream());
+    }
+    String text = (String) msgCtxt.getVariable(source);
+    if (text == null) {
+      throw new IllegalStateException("source variable resolves to null");
+    }
+    return XmlUtils.newStreamReader(new StringReader(text));
+  }
+
+  private Document maybeReformSignedInfo(Document doc, boolean shared, MessageContext msgCtxt) {
     String reformSignedInfo = getSimpleOptionalProperty("reform-signedinfo", msgCtxt);
     if ("true".equals(reformSignedInfo)) {
+      if (shared) {
+        // A handed-off document may be used by later callouts; reform a copy.
+        doc = (Document) doc.cloneNode(true);
+      }
       NodeList nl = doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
       if (nl.getLength() == 0) {
         throw new RuntimeException("Couldn't find 'Signature' element");
@@ -175,14 +233,18 @@ public abstract class XmlDsigCalloutBase {
   }
 
   protected void setExceptionVariables(Exception exc1, MessageContext msgCtxt) {
+    setExceptionVariables(exc1, msgCtxt, "");
+  }
+
+  protected void setExceptionVariables(Exception exc1, MessageContext msgCtxt, String suffix) {
     String error = exc1.toString();
-    msgCtxt.setVariable(varName("exception"), error);
+    msgCtxt.setVariable(varName("exception" + suffix), error);
     // System.out.printf("Exception: %s\n", error);
     int ch = error.lastIndexOf(':');
     if (ch >= 0) {
-      msgCtxt.setVariable(varName("error"), error.substring(ch + 2).trim());
+      msgCtxt.setVariable(varName("error" + suffix), error.substring(ch + 2).trim());
     } else {
-      msgCtxt.setVariable(varName("error"), error);
+      msgCtxt.setVariable(varName("error" + suffix), error);
     }
   }
 
@@ -236,14 +298,49 @@ public abstract class XmlDsigCalloutBase {
     if (signingMethod == null) return null;
     signingMethod = signingMethod.trim();
     // warn on invalid values
-    if (!signingMethod.toLowerCase().equals("rsa-sha1")
-        && !signingMethod.toLowerCase().equals("rsa-sha256")) {
+    if (!signingMethodUris.containsKey(signingMethod.toLowerCase())) {
       msgCtxt.setVariable(varName("WARNING"), "invalid value for signing-method");
       return "rsa-sha256";
     }
     return signingMethod;
   }
 
+  static String signingMethodUri(String signingMethod) {
+    return signingMethodUris.get(signingMethod.toLowerCase());
+  }
+
+  /** The kind of key a signing method uses: RSA, EC, or Ed25519. */
+  static String keyTypeFor(String signingMethodUri) {
+    if (signingMethodUri.equals(RSA_SHA1) || signingMethodUri.equals(RSA_SHA256)) return "RSA";
+    if (signingMethodUri.equals(ED25519)) return "Ed25519";
+    return "EC";
+  }
+
+  // The factories are thread-safe, and finding them means a search of the
+  // security providers, so look them up once. JSR 105 in the JDK supports
+  // Ed25519 only from Java 21, so Ed25519 signatures use the implementation
+  // from Apache Santuario, which supports it on any runtime that provides an
+  // Ed25519 Signature, like BouncyCastle. Other signatures use the JDK.
+  private static final XMLSignatureFactory jdkSignatureFactory =
+      XMLSignatureFactory.getInstance("DOM");
+  private static final XMLSignatureFactory eddsaSignatureFactory =
+      XMLSignatureFactory.getInstance("DOM", new XMLDSigRI());
+
+  /** The factory for signatures with the given signing method. */
+  static XMLSignatureFactory signatureFactoryFor(String signingMethodUri) {
+    return ED25519.equals(signingMethodUri) ? eddsaSignatureFactory : jdkSignatureFactory;
+  }
+
+  /** The kind of a key: RSA, EC, or Ed25519. Providers name the same kind differently. */
+  static String keyType(Key key) {
+    if (key instanceof RSAKey) return "RSA";
+    if (key instanceof ECKey) return "EC";
+    if (key.getAlgorithm().equals("Ed25519") || key.getAlgorithm().equals("EdDSA")) {
+      return "Ed25519";
+    }
+    return key.getAlgorithm();
+  }
+
   protected String getDigestMethod(MessageContext msgCtxt) throws Exception {
     String digestMethod = getSimpleOptionalProperty("digest-method", msgCtxt);
     if (digestMethod == null) return null;
@@ -278,19 +375,25 @@ public abstract class XmlDsigCalloutBase {
 
   protected static void emitCertificateInformation(
       X509Certificate certificate, MessageContext msgCtxt) throws InvalidNameException {
-    msgCtxt.setVariable(
+    emitCertificateInformation(certificate, msgCtxt::setVariable);
+  }
+
+  protected static void emitCertificateInformation(
+      X509Certificate certificate, BiConsumer<String, Object> variables)
+      throws InvalidNameException {
+    variables.accept(
         varName("cert-notAfter"),
         DateTimeFormatter.ISO_INSTANT.format(certificate.getNotAfter().toInstant()));
-    msgCtxt.setVariable(
+    variables.accept(
         varName("cert-notBefore"),
         DateTimeFormatter.ISO_INSTANT.format(certificate.getNotBefore().toInstant()));
-    msgCtxt.setVariable(
+    variables.accept(
         varName("cert-subject-cn"), getCommonName(certificate.getSubjectX500Principal()));
-    msgCtxt.setVariable(varName("cert-subject"), certificate.getSubjectX500Principal().toString());
-    msgCtxt.setVariable(
+    variables.accept(varName("cert-subject"), certificate.getSubjectX500Principal().toString());
+    variables.accept(
         varName("cert-issuer-cn"), getCommonName(certificate.getIssuerX500Principal()));
-    msgCtxt.setVariable(varName("cert-issuer"), certificate.getIssuerX500Principal().toString());
-    msgCtxt.setVariable(varName("cert-serial"), certificate.getSerialNumber().toString(16));
+    variables.accept(varName("cert-issuer"), certificate.getIssuerX500Principal().toString());
+    variables.accept(varName("cert-serial"), certificate.getSerialNumber().toString(16));
   }
 
   protected static String reformIndents(String s) {
@@ -327,6 +430,41 @@ public abstract class XmlDsigCalloutBase {
     }
   }
 
+  /**
+   * A certificate, with its thumbprints. Parsing a certificate, and digesting it, are each done
+   * once for a given encoding; see KeyCache, and the accepted certificates in Validate.
+   */
+  protected static final class ParsedCertificate {
+    final X509Certificate certificate;
+    final String thumbprintSha1Hex;
+    final String thumbprintSha256Hex;
+
+    ParsedCertificate(X509Certificate certificate)
+        throws NoSuchAlgorithmException, CertificateEncodingException {
+      this.certificate = certificate;
+      this.thumbprintSha1Hex = getThumbprintHex(certificate);
+      this.thumbprintSha256Hex = getThumbprintHexSha256(certificate);
+    }
+  }
+
+  // the base64-encoded DER, as in a ds:X509Certificate element. This comes
+  // from the message, so it is not kept in the KeyCache, along with the
+  // configured keys; see Validate for the certificates that are kept.
+  protected static ParsedCertificate parsedCertificateFromEncoded(String encoded)
+      throws GeneralSecurityException {
+    return new ParsedCertificate((X509Certificate) certificateFromEncoded(encoded));
+  }
+
+  protected static ParsedCertificate parsedCertificateFromPEM(String certificateString)
+      throws GeneralSecurityException {
+    return KeyCache.get(
+        "certificate",
+        certificateString,
+        null,
+        () ->
+            new ParsedCertificate((X509Certificate) certificateFromPEM(certificateString.trim())));
+  }
+
   protected static String getThumbprintBase64(X509Certificate certificate)
       throws NoSuchAlgorithmException, CertificateEncodingException {
     return Base64.getEncoder()
@@ -0,0 +1,86 @@
+// Copyright 2018-2022 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps decoded keys and certificates, such as a PublicKey decoded from a PEM string, for re-use.
+ * The PEM in a policy configuration is usually a constant, or comes from a KVM, so the same text
+ * would otherwise be parsed, and perhaps decrypted, on every request.
+ *
+ * <p>Keys and certificates are immutable, so one bounded set is shared by all threads. Entries
+ * are keyed by a SHA-256 digest of the kind, the PEM text, and the password, so the cache does
+ * not retain the password itself. A decoding failure is not cached.
+ */
+public final class KeyCache {
+  private static final int MAX_ENTRIES = 256;
+  private static final Map<String, Object> entries =
+      Collections.synchronizedMap(
+          new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+              return size() > MAX_ENTRIES;
+            }
+          });
+
+  private KeyCache() {}
+
+  /**
+   * Returns the object previously decoded from the same kind, PEM, and password, or else calls the
+   * decoder, and keeps what it returns.
+   *
+   * @param kind distinguishes the kinds of object that may be decoded from one PEM string, for
+   *     example "public-key" and "certificate"
+   * @param pem the PEM text, as configured
+   * @param password the password for an encrypted key. May be null.
+   * @param decoder decodes the PEM
+   */
+  @SuppressWarnings("unchecked")
+  public static <T, E extends Exception> T get(
+      String kind, String pem, String password, ThrowingSupplier<T, E> decoder) throws E {
+    String key = digest(kind, pem, password);
+    Object value = entries.get(key);
+    if (value == null) {
+      // Two threads may both decode a new key; the result is the same.
+      value = decoder.get();
+      entries.put(key, value);
+    }
+    return (T) value;
+  }
+
+  private static String digest(String kind, String pem, String password) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(kind.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+      md.update(pem.getBytes(StandardCharsets.UTF_8));
+      if (password != null) {
+        md.update((byte) 0);
+        md.update(password.getBytes(StandardCharsets.UTF_8));
+      }
+      return Base64.getEncoder().encodeToString(md.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
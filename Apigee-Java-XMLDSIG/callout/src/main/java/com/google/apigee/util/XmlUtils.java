@@ -14,15 +14,19 @@
 //
 package com.google.apigee.util;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.io.StringReader;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -35,30 +39,66 @@ import org.w3c.dom.Document;
 
 public class XmlUtils {
 
-    private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+    // DocumentBuilderFactory lookup is expensive, and neither factories nor
+    // builders are thread-safe. Each thread keeps one builder, configured once,
+    // and resets it before each use.
+    private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+    // Nor is a Transformer. An identity Transformer can be re-used after reset().
+    private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
+
+    // Nor is an XMLInputFactory guaranteed to be. The factory never reads a DTD.
+    private static final ThreadLocal<XMLInputFactory> inputFactories =
+            ThreadLocal.withInitial(XmlUtils::newInputFactory);
+
+    // prevent DTD entities from being resolved.
+    private static final EntityResolver noEntities =
+            (publicId, systemId) -> new InputSource(new StringReader(""));
+
+    private static DocumentBuilder newBuilder() throws ParserConfigurationException {
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setNamespaceAware(true);
         factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
         factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        return factory.newDocumentBuilder();
+    }
 
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        // prevent DTD entities from being resolved.
-        builder.setEntityResolver(new EntityResolver() {
-            @Override
-            public InputSource resolveEntity(String publicId, String systemId)
-                    throws SAXException, IOException {
-                return new InputSource(new StringReader(""));
-            }
-        });
-
+    private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = builders.get();
+        if (builder == null) {
+            builder = newBuilder();
+            builders.set(builder);
+        } else {
+            builder.reset();
+        }
+        // reset() removes the entity resolver, so set it each time.
+        builder.setEntityResolver(noEntities);
         return builder;
     }
+
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    public static XMLStreamReader newStreamReader(InputStream in) throws XMLStreamException {
+        // The reader detects the encoding of the bytes itself.
+        return inputFactories.get().createXMLStreamReader(in);
+    }
+
+    public static XMLStreamReader newStreamReader(Reader in) throws XMLStreamException {
+        return inputFactories.get().createXMLStreamReader(in);
+    }
+
+    public static Document newDocument() throws ParserConfigurationException {
+        return getBuilder().newDocument();
+    }
+
     public static Document parseXml(InputStream in)
         throws IOException, SAXException, ParserConfigurationException {
-        DocumentBuilder builder = getBuilder();
-        InputStream bin = new BufferedInputStream(in);
-        Document ret = builder.parse(new InputSource(bin));
-        return ret;
+        // The parser buffers its input, and decodes the bytes itself.
+        return getBuilder().parse(new InputSource(in));
     }
     public static Document parseXml(String s)
         throws IOException, SAXException, ParserConfigurationException {
@@ -74,15 +114,27 @@ public class XmlUtils {
     }
 
     public static String toString(Document doc, boolean pretty) throws TransformerException {
-        DOMSource domSource = new DOMSource(doc);
         StringWriter writer = new StringWriter();
-        StreamResult result = new StreamResult(writer);
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer transformer = tf.newTransformer();
-        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        if (pretty)
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-        transformer.transform(domSource, result);
+        serialize(doc, pretty, new StreamResult(writer));
         return writer.toString();
     }
+
+    /**
+     * Serializes the document into the result. When the result is a byte stream, the
+     * serializer encodes the XML as UTF-8, without an intermediate String.
+     */
+    public static void serialize(Document doc, boolean pretty, Result result)
+        throws TransformerException {
+        Transformer transformer = transformers.get();
+        if (transformer == null) {
+            transformer = TransformerFactory.newInstance().newTransformer();
+            transformers.set(transformer);
+        } else {
+            transformer.reset();
+        }
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        // reset() does not restore the output properties in every JDK, so set both each time.
+        transformer.setOutputProperty(OutputKeys.INDENT, pretty ? "yes" : "no");
+        transformer.transform(new DOMSource(doc), result);
+    }
 }
@@ -28,6 +28,7 @@ public class Namespaces {
   public static final String WSSEC = "http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-secext-1.0.xsd";
   public static final String XMLNS = "http://www.w3.org/2000/xmlns/";
   public static final String XMLDSIG = "http://www.w3.org/2000/09/xmldsig#";
+  public static final String XMLDSIG11 = "http://www.w3.org/2009/xmldsig11#";
 
   public static final Map<String,String> defaultPrefixes;
 
@@ -37,6 +38,7 @@ public class Namespaces {
     map1.put(SOAP10,"soap10");
     map1.put(WSSEC,"wssec");
     map1.put(XMLDSIG,"ds");
+    map1.put(XMLDSIG11,"dsig11");
 
     defaultPrefixes = Collections.synchronizedMap(map1);
   }
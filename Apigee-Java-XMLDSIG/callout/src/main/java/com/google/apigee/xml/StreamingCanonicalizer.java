@@ -0,0 +1,286 @@
+// Copyright 2020-2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.xml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes the canonical form of an element subtree, or of a whole document, as it is read, one
+ * event at a time, without a DOM. Implements Canonical XML 1.0 and Exclusive XML Canonicalization
+ * 1.0, both without comments, for a node-set that is an element and all its descendants, or the
+ * whole document, less any subtrees the caller chooses not to pass in (as for the enveloped
+ * signature transform).
+ *
+ * <p>The caller tracks the namespaces in scope, and passes them with each element: a map of
+ * prefix to namespace URI, with "" for the default namespace. A document with a DTD is not
+ * supported; the caller must reject it.
+ */
+public final class StreamingCanonicalizer {
+  public enum Mode {
+    INCLUSIVE,
+    EXCLUSIVE
+  }
+
+  /** An attribute of an element, other than a namespace declaration. */
+  public static final class Attribute {
+    final String prefix;
+    final String localName;
+    final String namespaceURI;
+    final String value;
+
+    public Attribute(String prefix, String localName, String namespaceURI, String value) {
+      this.prefix = (prefix == null) ? "" : prefix;
+      this.localName = localName;
+      this.namespaceURI = (namespaceURI == null) ? "" : namespaceURI;
+      this.value = value;
+    }
+
+    public String prefix() {
+      return prefix;
+    }
+
+    public String localName() {
+      return localName;
+    }
+
+    public String namespaceURI() {
+      return namespaceURI;
+    }
+
+    public String value() {
+      return value;
+    }
+
+    String qname() {
+      return prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+  }
+
+  private static final String XML_NS = "http://www.w3.org/XML/1998/namespace";
+  private static final Comparator<Attribute> attributeOrder =
+      Comparator.<Attribute, String>comparing(a -> a.namespaceURI)
+          .thenComparing(a -> a.localName);
+
+  private final Mode mode;
+  private final Writer out;
+  // for each open element, the namespaces rendered on it or on an ancestor
+  private final Deque<Map<String, String>> rendered = new ArrayDeque<Map<String, String>>();
+  private List<Attribute> inheritedXmlAttributes = Collections.emptyList();
+  private boolean afterDocumentElement;
+
+  public StreamingCanonicalizer(Mode mode, Writer out) {
+    this.mode = mode;
+    this.out = out;
+  }
+
+  /**
+   * In Canonical XML 1.0 (not the exclusive form), the xml:* attributes of the ancestors of the
+   * apex element, like xml:lang, are rendered on the apex, unless it has its own.
+   */
+  public void setInheritedXmlAttributes(List<Attribute> attributes) {
+    this.inheritedXmlAttributes = attributes;
+  }
+
+  public void startElement(
+      String prefix, String localName, Map<String, String> inScope, List<Attribute> attributes)
+      throws IOException {
+    prefix = (prefix == null) ? "" : prefix;
+    Map<String, String> parentRendered =
+        rendered.isEmpty() ? Collections.<String, String>emptyMap() : rendered.peek();
+    // sorted by prefix; the default namespace, "", sorts first.
+    TreeMap<String, String> declarations = new TreeMap<String, String>();
+
+    if (mode == Mode.INCLUSIVE) {
+      for (Map.Entry<String, String> entry : inScope.entrySet()) {
+        String p = entry.getKey();
+        if (!p.equals("xml")) {
+          maybeDeclare(p, entry.getValue(), parentRendered, declarations);
+        }
+      }
+    } else {
+      maybeDeclare(prefix, inScope.get(prefix), parentRendered, declarations);
+      for (Attribute attribute : attributes) {
+        if (!attribute.prefix.isEmpty() && !attribute.prefix.equals("xml")) {
+          maybeDeclare(
+              attribute.prefix, inScope.get(attribute.prefix), parentRendered, declarations);
+        }
+      }
+    }
+
+    List<Attribute> sorted = new ArrayList<Attribute>(attributes);
+    if (rendered.isEmpty() && mode == Mode.INCLUSIVE) {
+      for (Attribute inherited : inheritedXmlAttributes) {
+        if (!hasAttribute(attributes, XML_NS, inherited.localName)) {
+          sorted.add(inherited);
+        }
+      }
+    }
+    Collections.sort(sorted, attributeOrder);
+
+    out.write('<');
+    out.write(qname(prefix, localName));
+    for (Map.Entry<String, String> declaration : declarations.entrySet()) {
+      String p = declaration.getKey();
+      out.write(p.isEmpty() ? " xmlns=\"" : " xmlns:" + p + "=\"");
+      writeAttributeValue(declaration.getValue());
+      out.write('"');
+    }
+    for (Attribute attribute : sorted) {
+      out.write(' ');
+      out.write(attribute.qname());
+      out.write("=\"");
+      writeAttributeValue(attribute.value);
+      out.write('"');
+    }
+    out.write('>');
+
+    if (declarations.isEmpty()) {
+      rendered.push(parentRendered);
+    } else {
+      Map<String, String> now = new HashMap<String, String>(parentRendered);
+      now.putAll(declarations);
+      rendered.push(now);
+    }
+  }
+
+  // Declares the prefix on this element, unless the nearest ancestor in the
+  // output has already declared it with the same value. An unbound default
+  // namespace is the same as "".
+  private static void maybeDeclare(
+      String prefix,
+      String uri,
+      Map<String, String> parentRendered,
+      Map<String, String> declarations) {
+    if (uri == null) uri = "";
+    if (prefix.isEmpty()) {
+      String parentDefault = parentRendered.get("");
+      if (!uri.equals((parentDefault == null) ? "" : parentDefault)) {
+        declarations.put("", uri);
+      }
+    } else if (!uri.isEmpty() && !uri.equals(parentRendered.get(prefix))) {
+      declarations.put(prefix, uri);
+    }
+  }
+
+  private static boolean hasAttribute(List<Attribute> attributes, String ns, String localName) {
+    for (Attribute a : attributes) {
+      if (a.namespaceURI.equals(ns) && a.localName.equals(localName)) return true;
+    }
+    return false;
+  }
+
+  public void endElement(String prefix, String localName) throws IOException {
+    out.write("</");
+    out.write(qname((prefix == null) ? "" : prefix, localName));
+    out.write('>');
+    rendered.pop();
+    if (rendered.isEmpty()) {
+      afterDocumentElement = true;
+    }
+  }
+
+  public void characters(char[] text, int start, int length) throws IOException {
+    if (rendered.isEmpty()) {
+      // whitespace outside the document element is not part of the canonical form
+      return;
+    }
+    // write each run of characters that need no escaping at once
+    int end = start + length;
+    int run = start;
+    for (int i = start; i < end; i++) {
+      String escaped;
+      switch (text[i]) {
+        case '&':
+          escaped = "&amp;";
+          break;
+        case '<':
+          escaped = "&lt;";
+          break;
+        case '>':
+          escaped = "&gt;";
+          break;
+        case '\r':
+          escaped = "&#xD;";
+          break;
+        default:
+          continue;
+      }
+      out.write(text, run, i - run);
+      out.write(escaped);
+      run = i + 1;
+    }
+    out.write(text, run, end - run);
+  }
+
+  public void processingInstruction(String target, String data) throws IOException {
+    boolean outside = rendered.isEmpty();
+    if (outside && afterDocumentElement) {
+      out.write('\n');
+    }
+    out.write("<?");
+    out.write(target);
+    if (data != null && !data.isEmpty()) {
+      out.write(' ');
+      out.write(data);
+    }
+    out.write("?>");
+    if (outside && !afterDocumentElement) {
+      out.write('\n');
+    }
+  }
+
+  private void writeAttributeValue(String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '&':
+          out.write("&amp;");
+          break;
+        case '<':
+          out.write("&lt;");
+          break;
+        case '"':
+          out.write("&quot;");
+          break;
+        case '\t':
+          out.write("&#x9;");
+          break;
+        case '\n':
+          out.write("&#xA;");
+          break;
+        case '\r':
+          out.write("&#xD;");
+          break;
+        default:
+          out.write(c);
+      }
+    }
+  }
+
+  private static String qname(String prefix, String localName) {
+    return prefix.isEmpty() ? localName : prefix + ":" + localName;
+  }
+}
@@ -25,6 +25,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Scanner;
 import java.util.stream.IntStream;
 import mockit.Mock;
 import mockit.MockUp;
@@ -108,6 +109,13 @@ public class TestBase {
             // new ByteArrayInputStream(messageContent.getBytes(StandardCharsets.UTF_8));
             return messageContentStream;
           }
+
+          @Mock()
+          public void setContent(InputStream in) {
+            try (Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A")) {
+              msgCtxt.setVariable("message.content", s.hasNext() ? s.next() : "");
+            }
+          }
         }.getMockInstance();
   }
 
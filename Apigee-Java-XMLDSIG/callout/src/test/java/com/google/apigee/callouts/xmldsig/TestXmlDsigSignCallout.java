@@ -20,7 +20,11 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -473,4 +477,157 @@ public class TestXmlDsigSignCallout extends TestBase {
     System.out.println("=========================================================");
   }
 
+  @Test
+  public void sameConfigurationSignsEachDocument() throws Exception {
+    final String testName = "sameConfigurationSignsEachDocument";
+    String privateKeyString =
+        getResourceFileContents("keys-and-certs", "rsa-private-key-20220916.pem");
+    String publicKeyString =
+        getResourceFileContents("keys-and-certs", "rsa-public-key-20220916.pem");
+    msgCtxt.setVariable("my-private-key", privateKeyString);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("private-key", "{my-private-key}");
+    props.put("digest-method", "sha256");
+    props.put("output-variable", "output");
+    Sign callout = new Sign(props);
+
+    Map<String, String> validateProps = new HashMap<String, String>();
+    validateProps.put("source", "output");
+    validateProps.put("public-key", publicKeyString);
+    Validate validate = new Validate(validateProps);
+
+    String[] documents = {simpleXml1, "<order id='2'><item>different</item></order>"};
+    String[] digestValues = new String[documents.length];
+    for (int i = 0; i < documents.length; i++) {
+      msgCtxt.setVariable("message.content", documents[i]);
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertNull(msgCtxt.getVariable("xmldsig_exception"), testName + "() exception");
+
+      String output = (String) msgCtxt.getVariable("output");
+      Document doc =
+          docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+      NodeList nl = doc.getElementsByTagNameNS(XMLSignature.XMLNS, "DigestValue");
+      Assert.assertEquals(nl.getLength(), 1, testName + "() DigestValue element");
+      digestValues[i] = nl.item(0).getTextContent();
+
+      actualResult = validate.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "validate result");
+      Assert.assertEquals(
+          msgCtxt.getVariable("xmldsig_valid"), Boolean.TRUE, testName + "() valid");
+    }
+    Assert.assertNotEquals(digestValues[1], digestValues[0], testName + "() digests");
+  }
+
+  private static String pem(String type, byte[] encoded) {
+    return "-----BEGIN " + type + "-----\n"
+        + Base64.getMimeEncoder().encodeToString(encoded)
+        + "\n-----END " + type + "-----\n";
+  }
+
+  @DataProvider(name = "ecdsa")
+  protected Object[][] getEcdsaCases() {
+    return new Object[][] {
+      // curve, signing-method, the expected SignatureMethod
+      {"secp256r1", null, XmlDsigCalloutBase.ECDSA_SHA256},
+      {"secp384r1", null, XmlDsigCalloutBase.ECDSA_SHA384},
+      {"secp256r1", "ecdsa-sha384", XmlDsigCalloutBase.ECDSA_SHA384},
+      {"secp384r1", "ecdsa-sha512", XmlDsigCalloutBase.ECDSA_SHA512},
+    };
+  }
+
+  @Test(dataProvider = "ecdsa")
+  public void ecdsa(String curve, String signingMethod, String expectedAlgorithm)
+      throws Exception {
+    final String testName = "ecdsa";
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec(curve));
+    KeyPair keyPair = generator.generateKeyPair();
+
+    msgCtxt.setVariable("message.content", simpleXml1);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("private-key", pem("PRIVATE KEY", keyPair.getPrivate().getEncoded()));
+    if (signingMethod != null) {
+      props.put("signing-method", signingMethod);
+    }
+    props.put("output-variable", "output");
+    ExecutionResult actualResult = new Sign(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNull(msgCtxt.getVariable("xmldsig_exception"), testName + "() exception");
+
+    String output = (String) msgCtxt.getVariable("output");
+    Document doc =
+        docFromStream(new ByteArrayInputStream(output.getBytes(StandardCharsets.UTF_8)));
+    Element signatureMethod =
+        (Element) doc.getElementsByTagNameNS(XMLSignature.XMLNS, "SignatureMethod").item(0);
+    Assert.assertEquals(signatureMethod.getAttribute("Algorithm"), expectedAlgorithm);
+    NodeList nl = doc.getElementsByTagNameNS("http://www.w3.org/2009/xmldsig11#", "ECKeyValue");
+    Assert.assertEquals(nl.getLength(), 1, testName + "() ECKeyValue element");
+
+    Map<String, String> validateProps = new HashMap<String, String>();
+    validateProps.put("source", "output");
+    validateProps.put("public-key", pem("PUBLIC KEY", keyPair.getPublic().getEncoded()));
+    validateProps.put("signing-method", (signingMethod != null) ? signingMethod : "ecdsa-sha256");
+    actualResult = new Validate(validateProps).execute(msgCtxt, exeCtxt);
+    if (expectedAlgorithm.equals(XmlDsigCalloutBase.ECDSA_SHA256) || signingMethod != null) {
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "validate result");
+      Assert.assertEquals(
+          msgCtxt.getVariable("xmldsig_valid"), Boolean.TRUE, testName + "() valid");
+    } else {
+      // the signature uses a method other than the one required
+      Assert.assertEquals(actualResult, ExecutionResult.ABORT, "validate result");
+      Assert.assertEquals(
+          msgCtxt.getVariable("xmldsig_error"), "Unacceptable SignatureMethod Algorithm");
+    }
+
+    msgCtxt.setVariable("output", output.replace("Alice Smith", "Alice Smythe"));
+    validateProps.remove("signing-method");
+    actualResult = new Validate(validateProps).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "validate result");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xmldsig_valid"), Boolean.FALSE, testName + "() modified");
+  }
+
+  @Test
+  public void signingMethodDoesNotSuitKey() throws Exception {
+    msgCtxt.setVariable("message.content", simpleXml1);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put(
+        "private-key", getResourceFileContents("keys-and-certs", "rsa-private-key-20220916.pem"));
+    props.put("signing-method", "ecdsa-sha256");
+    ExecutionResult actualResult = new Sign(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(
+        msgCtxt.getVariable("xmldsig_error"),
+        "the signing-method does not suit the RSA private key");
+  }
+
+  @Test
+  public void ed25519() throws Exception {
+    final String testName = "ed25519";
+    KeyPair keyPair = KeyPairGenerator.getInstance("Ed25519", "BC").generateKeyPair();
+    msgCtxt.setVariable("message.content", simpleXml1);
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("private-key", pem("PRIVATE KEY", keyPair.getPrivate().getEncoded()));
+    props.put("digest-method", "sha256");
+    props.put("output-variable", "output");
+    ExecutionResult actualResult = new Sign(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    String output = (String) msgCtxt.getVariable("output");
+    Assert.assertTrue(output.contains(XmlDsigCalloutBase.ED25519), testName + "() SignatureMethod");
+    Assert.assertTrue(output.contains("DEREncodedKeyValue"), testName + "() KeyInfo");
+
+    Map<String, String> validateProps = new HashMap<String, String>();
+    validateProps.put("source", "output");
+    validateProps.put("public-key", pem("PUBLIC KEY", keyPair.getPublic().getEncoded()));
+    validateProps.put("signing-method", "ed25519");
+    actualResult = new Validate(validateProps).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "validate result");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.TRUE, testName + "() valid");
+  }
 }
@@ -0,0 +1,317 @@
+// Copyright 2018-2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xmldsig;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.util.XmlUtils;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class TestXmlDsigStreamingValidation extends TestBase {
+  // namespaces declared and re-declared at several levels, xml:lang, a default
+  // namespace and its undeclaration, attributes and text that need escaping, CDATA,
+  // comments, and processing instructions inside and outside the document element.
+  private static final String unsignedXml =
+      "<?xml version='1.0' encoding='UTF-8'?>\n"
+          + "<?before the document?>\n"
+          + "<soap:Envelope xmlns:soap='http://schemas.xmlsoap.org/soap/envelope/'"
+          + " xmlns:wsu='urn:wsu' xmlns:unused='urn:unused' xml:lang='en'>\n"
+          + "  <soap:Header><h:Stamp xmlns:h='urn:h' wsu:Id='stamp'>2022</h:Stamp></soap:Header>\n"
+          + "  <soap:Body wsu:Id='body' xmlns:p='urn:p'>\n"
+          + "    <p:order z='1' a='x&#10;y&lt;&quot;' p:b='&amp;'><!-- a comment -->\n"
+          + "      <item xmlns='urn:default'>café &amp; <![CDATA[<raw>]]>&#13;</item>\n"
+          + "      <item xmlns=''><?pi inside?>plain &gt; text</item>\n"
+          + "      <p:note xmlns:p='urn:p' xmlns:q='urn:q' q:at='2' xml:space='preserve'/>\n"
+          + "    </p:order>\n"
+          + "  </soap:Body>\n"
+          + "</soap:Envelope>\n"
+          + "<?after the document?>";
+
+  private KeyPair keyPair;
+  private String publicKeyPem;
+
+  @BeforeClass
+  public void generateKey() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    keyPair = generator.generateKeyPair();
+    publicKeyPem =
+        "-----BEGIN PUBLIC KEY-----\n"
+            + Base64.getMimeEncoder().encodeToString(keyPair.getPublic().getEncoded())
+            + "\n-----END PUBLIC KEY-----\n";
+  }
+
+  // Signs the document. With a null id, the signature applies to the whole
+  // document and is appended to the root; otherwise it applies to the element
+  // with that wsu:Id, and goes into the SOAP Header, before the Body.
+  private String sign(String id, String canonicalization, String digestMethod)
+      throws Exception {
+    Document doc = XmlUtils.parseXml(unsignedXml);
+    XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+    List<Transform> transforms = new ArrayList<Transform>();
+    if (id == null) {
+      transforms.add(factory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null));
+    }
+    if (canonicalization != null) {
+      transforms.add(factory.newTransform(canonicalization, (TransformParameterSpec) null));
+    }
+    Reference reference =
+        factory.newReference(
+            (id == null) ? "" : "#" + id,
+            factory.newDigestMethod(digestMethod, null),
+            transforms,
+            null,
+            null);
+    SignedInfo signedInfo =
+        factory.newSignedInfo(
+            factory.newCanonicalizationMethod(
+                CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null),
+            factory.newSignatureMethod(XmlDsigCalloutBase.RSA_SHA256, null),
+            Collections.singletonList(reference));
+    Element root = doc.getDocumentElement();
+    Element header = (Element) root.getElementsByTagNameNS("*", "Header").item(0);
+    DOMSignContext signContext =
+        new DOMSignContext(keyPair.getPrivate(), (id == null) ? root : header);
+    for (String local : new String[] {"Stamp", "Body"}) {
+      Element element = (Element) root.getElementsByTagNameNS("*", local).item(0);
+      signContext.setIdAttributeNS(element, "urn:wsu", "Id");
+    }
+    factory.newXMLSignature(signedInfo, null).sign(signContext);
+    return XmlUtils.toString(doc);
+  }
+
+  private static final String acceptedPaths =
+      "/soap:Envelope/soap:Body, /soap:Envelope/soap:Header/h:Stamp";
+
+  private Map<String, String> props(boolean streaming) {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("public-key", publicKeyPem);
+    if (streaming) {
+      props.put("streaming-validation", "true");
+      props.put("xmlns:soap", "http://schemas.xmlsoap.org/soap/envelope/");
+      props.put("xmlns:h", "urn:h");
+      props.put("id-reference-paths", acceptedPaths);
+    }
+    return props;
+  }
+
+  private Object validate(String xml, boolean streaming) {
+    return validate(xml, props(streaming));
+  }
+
+  private Object validate(String xml, Map<String, String> props) {
+    msgCtxt.setVariable("message.content", xml);
+    msgCtxt.setVariable("xmldsig_error", null);
+    msgCtxt.setVariable("xmldsig_reference_path", null);
+    ExecutionResult actualResult = new Validate(props).execute(msgCtxt, exeCtxt);
+    return (actualResult == ExecutionResult.SUCCESS)
+        ? msgCtxt.getVariable("xmldsig_valid")
+        : msgCtxt.getVariable("xmldsig_error");
+  }
+
+  @DataProvider(name = "shapes")
+  protected Object[][] getShapes() {
+    String[] canonicalizations = {
+      null, CanonicalizationMethod.INCLUSIVE, CanonicalizationMethod.EXCLUSIVE
+    };
+    List<Object[]> shapes = new ArrayList<Object[]>();
+    for (String id : new String[] {null, "body", "stamp"}) {
+      for (String canonicalization : canonicalizations) {
+        for (String digest : new String[] {DigestMethod.SHA1, DigestMethod.SHA256}) {
+          shapes.add(new Object[] {id, canonicalization, digest});
+        }
+      }
+    }
+    return shapes.toArray(new Object[shapes.size()][]);
+  }
+
+  @Test(dataProvider = "shapes")
+  public void sameResultAsDom(String id, String canonicalization, String digest)
+      throws Exception {
+    String signed = sign(id, canonicalization, digest);
+    Assert.assertEquals(validate(signed, true), Boolean.TRUE, "streaming");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_reference"), (id == null) ? "" : "#" + id);
+    String path =
+        (id == null)
+            ? null
+            : id.equals("body") ? "/soap:Envelope/soap:Body" : "/soap:Envelope/soap:Header/h:Stamp";
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_reference_path"), path);
+
+    String tampered = signed.replace("plain &gt; text", "plain &gt; text!");
+    // the change is in the Body, outside the Stamp
+    boolean stillValid = "stamp".equals(id);
+    Assert.assertEquals(validate(tampered, true), Boolean.valueOf(stillValid), "tampered");
+    if (id == null) {
+      // the DOM validation accepts only a signature over the whole document
+      Assert.assertEquals(validate(signed, false), Boolean.TRUE, "dom");
+      Assert.assertEquals(validate(tampered, false), Boolean.FALSE, "dom, tampered");
+    }
+  }
+
+  @Test
+  public void fromMessageStream() throws Exception {
+    String signed = sign(null, CanonicalizationMethod.EXCLUSIVE, DigestMethod.SHA256);
+    messageContentStream = new ByteArrayInputStream(signed.getBytes(StandardCharsets.UTF_8));
+    Map<String, String> props = props(true);
+    props.remove("source");
+    ExecutionResult actualResult = new Validate(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.TRUE);
+  }
+
+  @Test
+  public void modifiedSignatureValue() throws Exception {
+    String signed = sign("body", null, DigestMethod.SHA256);
+    Document doc = XmlUtils.parseXml(signed);
+    Node value = doc.getElementsByTagNameNS("*", "SignatureValue").item(0);
+    String original = value.getTextContent().replaceAll("\\s", "");
+    byte[] bytes = Base64.getDecoder().decode(original);
+    bytes[0] ^= 1;
+    value.setTextContent(Base64.getEncoder().encodeToString(bytes));
+    Assert.assertEquals(validate(XmlUtils.toString(doc), true), Boolean.FALSE);
+  }
+
+  @Test
+  public void duplicateId() throws Exception {
+    String signed =
+        sign("stamp", null, DigestMethod.SHA256)
+            .replace("</soap:Body>", "<x wsu:Id='stamp'>2022</x></soap:Body>");
+    Assert.assertEquals(validate(signed, true), "the ID 'stamp' appears more than once");
+  }
+
+  @Test
+  public void unresolvedReference() throws Exception {
+    String signed = sign("body", null, DigestMethod.SHA256).replace("wsu:Id=\"body\"", "");
+    Assert.assertEquals(
+        validate(signed, true),
+        "Invalid signature. The Reference '#body' does not identify an element.");
+  }
+
+  @Test
+  public void doctypeRejected() throws Exception {
+    String signed = sign(null, null, DigestMethod.SHA256);
+    signed = "<!DOCTYPE soap:Envelope [<!ENTITY e 'x'>]>" + signed;
+    Assert.assertEquals(validate(signed, true), "Streaming validation does not support a DTD");
+  }
+
+  @Test
+  public void noSignature() throws Exception {
+    Assert.assertEquals(validate(unsignedXml, true), "Couldn't find 'Signature' element");
+  }
+
+  @Test
+  public void idReferenceNeedsAcceptedPaths() throws Exception {
+    Map<String, String> props = props(true);
+    props.remove("id-reference-paths");
+    // as with the DOM, only a Signature that is a child of the document element
+    String signed = sign("body", null, DigestMethod.SHA256);
+    Assert.assertEquals(validate(signed, props), "Couldn't find 'Signature' element");
+
+    // and only a signature over the whole document
+    Document doc = XmlUtils.parseXml(signed);
+    Node signature = doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").item(0);
+    doc.getDocumentElement().appendChild(signature);
+    Assert.assertEquals(
+        validate(XmlUtils.toString(doc), props),
+        "Invalid signature. The signature does not apply to the root element.");
+  }
+
+  @Test
+  public void badIdReferencePaths() throws Exception {
+    String signed = sign("body", null, DigestMethod.SHA256);
+    String expected =
+        "id-reference-paths must list absolute paths of element names, with declared prefixes";
+    for (String paths : new String[] {"soap:Envelope/soap:Body", "/soap:Envelope/x:Body"}) {
+      Map<String, String> props = props(true);
+      props.put("id-reference-paths", paths);
+      Assert.assertEquals(validate(signed, props), expected, paths);
+    }
+  }
+
+  @Test
+  public void signatureWrapping() throws Exception {
+    String signed = sign("body", null, DigestMethod.SHA256);
+    String expected =
+        "Invalid signature. The Reference '#body' identifies an element that is not at an"
+            + " accepted path.";
+
+    // the signed Body moved into a wrapper in the Header, and an unsigned Body in its place
+    Document doc = XmlUtils.parseXml(signed);
+    Element root = doc.getDocumentElement();
+    Element body = (Element) root.getElementsByTagNameNS("*", "Body").item(0);
+    Element unsigned = (Element) body.cloneNode(false);
+    unsigned.removeAttributeNS("urn:wsu", "Id");
+    unsigned.setTextContent("transfer everything");
+    Element wrapper = doc.createElementNS("urn:wrapper", "w:Wrapper");
+    root.getElementsByTagNameNS("*", "Header").item(0).appendChild(wrapper);
+    wrapper.appendChild(body);
+    root.appendChild(unsigned);
+    Assert.assertEquals(validate(XmlUtils.toString(doc), true), expected);
+
+    // the signed Body after an unsigned one
+    doc = XmlUtils.parseXml(signed);
+    root = doc.getDocumentElement();
+    body = (Element) root.getElementsByTagNameNS("*", "Body").item(0);
+    unsigned = (Element) body.cloneNode(false);
+    unsigned.removeAttributeNS("urn:wsu", "Id");
+    root.insertBefore(unsigned, body);
+    Assert.assertEquals(validate(XmlUtils.toString(doc), true), expected);
+  }
+
+  @Test
+  public void nestedIdsBeforeSignature() throws Exception {
+    // many nested elements with an ID, ahead of a Signature at the end of the
+    // document; only the Body is at an accepted path, so only it is digested
+    // besides the document.
+    StringBuilder nested = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      nested.append("<n id='n").append(i).append("'>");
+    }
+    for (int i = 0; i < 200; i++) {
+      nested.append("</n>");
+    }
+    String signed =
+        sign(null, CanonicalizationMethod.EXCLUSIVE, DigestMethod.SHA256)
+            .replace("plain &gt; text", "plain &gt; text" + nested);
+    Assert.assertEquals(validate(signed, true), Boolean.FALSE);
+  }
+}
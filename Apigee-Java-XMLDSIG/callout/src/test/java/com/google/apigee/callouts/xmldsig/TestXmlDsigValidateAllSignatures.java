@@ -0,0 +1,208 @@
+// Copyright 2018-2022 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xmldsig;
+
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.apigee.util.XmlUtils;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import org.testng.Assert;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class TestXmlDsigValidateAllSignatures extends TestBase {
+  private static final String unsignedXml =
+      "<order><buyer Id='buyer'>acme</buyer><seller Id='seller'>globex</seller>"
+          + "<terms Id='terms'>net 30</terms></order>";
+
+  private KeyPair keyPair;
+  private String publicKeyPem;
+
+  @BeforeClass
+  public void generateKey() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    keyPair = generator.generateKeyPair();
+    publicKeyPem =
+        "-----BEGIN PUBLIC KEY-----\n"
+            + Base64.getMimeEncoder().encodeToString(keyPair.getPublic().getEncoded())
+            + "\n-----END PUBLIC KEY-----\n";
+  }
+
+  // Each party signs its own element, referring to it by ID; the signatures
+  // are appended to the root.
+  private String signEachParty(String xml) throws Exception {
+    Document doc = XmlUtils.parseXml(xml);
+    XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+    for (String id : new String[] {"buyer", "seller", "terms"}) {
+      Reference reference =
+          factory.newReference(
+              "#" + id, factory.newDigestMethod(DigestMethod.SHA256, null), null, null, null);
+      SignedInfo signedInfo =
+          factory.newSignedInfo(
+              factory.newCanonicalizationMethod(
+                  CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null),
+              factory.newSignatureMethod(XmlDsigCalloutBase.RSA_SHA256, null),
+              Collections.singletonList(reference));
+      DOMSignContext signContext =
+          new DOMSignContext(keyPair.getPrivate(), doc.getDocumentElement());
+      Element root = doc.getDocumentElement();
+      for (int i = 0; i < root.getChildNodes().getLength(); i++) {
+        Element child = (Element) root.getChildNodes().item(i);
+        if (child.hasAttribute("Id")) {
+          signContext.setIdAttributeNS(child, null, "Id");
+        }
+      }
+      factory.newXMLSignature(signedInfo, null).sign(signContext);
+    }
+    return XmlUtils.toString(doc);
+  }
+
+  private Map<String, String> validateAllProps() {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("public-key", publicKeyPem);
+    props.put("validate-all-signatures", "true");
+    props.put("id-reference-paths", "/order/buyer /order/seller /order/terms");
+    return props;
+  }
+
+  @Test
+  public void allValid() throws Exception {
+    msgCtxt.setVariable("message.content", signEachParty(unsignedXml));
+    ExecutionResult actualResult = new Validate(validateAllProps()).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNull(msgCtxt.getVariable("xmldsig_exception"), "exception");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_signature_count"), Integer.valueOf(3));
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.TRUE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_1"), Boolean.TRUE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_2"), Boolean.TRUE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_3"), Boolean.TRUE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_reference_1"), "#buyer");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_reference_3"), "#terms");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_reference_path_1"), "/order/buyer");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_reference_path_3"), "/order/terms");
+  }
+
+  @Test
+  public void oneTampered() throws Exception {
+    String signed = signEachParty(unsignedXml).replace("globex", "initech");
+    msgCtxt.setVariable("message.content", signed);
+    ExecutionResult actualResult = new Validate(validateAllProps()).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.FALSE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_1"), Boolean.TRUE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_2"), Boolean.FALSE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_3"), Boolean.TRUE);
+  }
+
+  @Test
+  public void selectedByXpath() throws Exception {
+    msgCtxt.setVariable("message.content", signEachParty(unsignedXml));
+    Map<String, String> props = validateAllProps();
+    props.remove("validate-all-signatures");
+    props.put("signature-xpath", "/order/ds:Signature[ds:SignedInfo/ds:Reference/@URI='#terms']");
+    ExecutionResult actualResult = new Validate(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_signature_count"), Integer.valueOf(1));
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.TRUE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_reference_1"), "#terms");
+  }
+
+  @Test
+  public void duplicateId() throws Exception {
+    // a second element with the ID of a signed element
+    String signed =
+        signEachParty(unsignedXml)
+            .replace("</order>", "<seller Id='seller'>initech</seller></order>");
+    msgCtxt.setVariable("message.content", signed);
+    ExecutionResult actualResult = new Validate(validateAllProps()).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.FALSE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_1"), Boolean.TRUE);
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_2"), Boolean.FALSE);
+    Assert.assertEquals(
+        msgCtxt.getVariable("xmldsig_error_2"), "the ID 'seller' appears more than once");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_3"), Boolean.TRUE);
+  }
+
+  @Test
+  public void duplicateUnreferencedId() throws Exception {
+    // IDs that no signature refers to may repeat
+    String signed =
+        signEachParty(unsignedXml)
+            .replace("</order>", "<note id='n'>one</note><note id='n'>two</note></order>");
+    msgCtxt.setVariable("message.content", signed);
+    ExecutionResult actualResult = new Validate(validateAllProps()).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNull(msgCtxt.getVariable("xmldsig_error_1"), "error");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.TRUE);
+  }
+
+  @Test
+  public void idReferencesNeedAcceptedPaths() throws Exception {
+    msgCtxt.setVariable("message.content", signEachParty(unsignedXml));
+    Map<String, String> props = validateAllProps();
+    props.remove("id-reference-paths");
+    ExecutionResult actualResult = new Validate(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.FALSE);
+    Assert.assertEquals(
+        msgCtxt.getVariable("xmldsig_error_1"),
+        "Invalid signature. The signature does not apply to the root element.");
+  }
+
+  @Test
+  public void signatureWrapping() throws Exception {
+    String signed = signEachParty(unsignedXml);
+    String expected =
+        "Invalid signature. The Reference '#seller' identifies an element that is not at an"
+            + " accepted path.";
+    String[] wrapped = {
+      // the signed seller moved into a wrapper, and an unsigned seller in its place
+      signed.replace(
+          "<seller Id=\"seller\">globex</seller>",
+          "<seller>initech</seller><w><seller Id=\"seller\">globex</seller></w>"),
+      // the signed seller after an unsigned one
+      signed.replace(
+          "<seller Id=\"seller\">globex</seller>",
+          "<seller>initech</seller><seller Id=\"seller\">globex</seller>")
+    };
+    for (String xml : wrapped) {
+      Assert.assertNotEquals(xml, signed);
+      msgCtxt.setVariable("message.content", xml);
+      ExecutionResult actualResult = new Validate(validateAllProps()).execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.FALSE);
+      Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_1"), Boolean.TRUE);
+      Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid_2"), Boolean.FALSE);
+      Assert.assertEquals(msgCtxt.getVariable("xmldsig_error_2"), expected);
+    }
+  }
+}
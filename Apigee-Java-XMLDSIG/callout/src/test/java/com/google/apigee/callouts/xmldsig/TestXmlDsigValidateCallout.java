@@ -260,7 +260,7 @@ public class TestXmlDsigValidateCallout extends TestBase {
 
   @Test
   public void rubbishPublicKey() throws Exception {
-    String expectedError = "Didn't find an RSA Public Key";
+    String expectedError = "Didn't find an RSA, EC, or Ed25519 Public Key";
     msgCtxt.setVariable("message.content", signedXml1);
 
     Map<String, String> props = new HashMap<String, String>();
@@ -477,6 +477,42 @@ public class TestXmlDsigValidateCallout extends TestBase {
     System.out.println("=========================================================");
   }
 
+  @Test
+  public void embeddedCert_thumbprintList() throws Exception {
+    String signedXml =
+        getResourceFileContents("documents", "signed--key-identifier-x509-cert-direct.xml");
+    String trustedThumbprint = "0067b84f4d5f8425888cc28b99238a3c71b5c50274a22d336695f462ffe169ed";
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "message.content");
+    props.put("key-identifier-type", "x509_cert_direct");
+    props.put(
+        "certificate-thumbprints-s256",
+        "1111b84f4d5f8425888cc28b99238a3c71b5c50274a22d336695f462ffe16900, "
+            + trustedThumbprint.toUpperCase());
+    Validate callout = new Validate(props);
+
+    // the same certificate, and the same list, on successive requests
+    for (int i = 0; i < 2; i++) {
+      msgCtxt.setVariable("message.content", signedXml);
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+      Assert.assertNull(msgCtxt.getVariable("xmldsig_exception"), "exception");
+      Assert.assertEquals(msgCtxt.getVariable("xmldsig_valid"), Boolean.TRUE, "valid");
+      Assert.assertEquals(
+          msgCtxt.getVariable("xmldsig_cert-sha256-thumbprint"), trustedThumbprint, "thumbprint");
+    }
+
+    props.put(
+        "certificate-thumbprints-s256",
+        "1111b84f4d5f8425888cc28b99238a3c71b5c50274a22d336695f462ffe16900");
+    msgCtxt.setVariable("message.content", signedXml);
+    ExecutionResult actualResult = new Validate(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.ABORT, "result not as expected");
+    Assert.assertEquals(msgCtxt.getVariable("xmldsig_error"), "Untrusted thumbprint on certificate");
+    System.out.println("=========================================================");
+  }
+
   @Test
   public void missingCert() throws Exception {
     String trustedThumbprint = "1043ca08045649e215402ef6c4a77d33190b8c02";
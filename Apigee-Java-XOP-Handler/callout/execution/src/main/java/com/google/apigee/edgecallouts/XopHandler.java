@@ -186,19 +186,24 @@ public class XopHandler extends CalloutBase implements Execution {
           try {
             final String desiredHref = "cid:" + contentId;
 
-            // find the matching element
-            final String xpath = String.format("//xop:Include[@href='%s']", desiredHref);
-            NodeList includes = (NodeList) xpe.evaluate(xpath, document, XPathConstants.NODESET);
-            if (includes.getLength() == 0) {
-              return null;
+            // find the matching element. The expression is the same for every part, so
+            // it is compiled once; the href is checked here.
+            NodeList includes =
+                (NodeList) xpe.evaluate("//xop:Include", document, XPathConstants.NODESET);
+            Element found = null;
+            for (int i = 0; i < includes.getLength(); i++) {
+              Element include = (Element) includes.item(i);
+              if (desiredHref.equals(include.getAttribute("href"))) {
+                if (found != null) {
+                  throw new IllegalStateException(
+                      String.format(
+                          "multiple matching xop:Include elements in the XML document (href='%s')",
+                          desiredHref));
+                }
+                found = include;
+              }
             }
-            if (includes.getLength() != 1) {
-              throw new IllegalStateException(
-                  String.format(
-                      "multiple matching xop:Include elements in the XML document (href='%s')",
-                      desiredHref));
-            }
-            return (Element) includes.item(0);
+            return found;
 
           } catch (Exception e) {
             throw new RuntimeException(e);
@@ -0,0 +1,268 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Evaluates XPath expressions, keeping the compiled expressions for re-use.
+ *
+ * <p>Neither XPath nor XPathExpression is thread-safe, so each thread has its own XPath, and its
+ * own bounded set of compiled expressions, keyed by the expression and the namespace bindings.
+ * Simple absolute paths, like /soap:Envelope/soap:Body, do not use the XPath engine at all; they
+ * are evaluated by walking the child elements from the document down.
+ */
+public final class XPathCache {
+  private static final int MAX_EXPRESSIONS_PER_THREAD = 128;
+  private static final ThreadLocal<XPathCache> caches = ThreadLocal.withInitial(XPathCache::new);
+
+  private final XPath xpath = XPathFactory.newInstance().newXPath();
+  private final Map<Key, Compiled> expressions =
+      new LinkedHashMap<Key, Compiled>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Compiled> eldest) {
+          return size() > MAX_EXPRESSIONS_PER_THREAD;
+        }
+      };
+
+  private XPathCache() {}
+
+  /**
+   * Evaluates the expression against the context node.
+   *
+   * @param expression the XPath expression
+   * @param namespaces a map of prefix to namespace URI, for the prefixes used in the expression.
+   *     May be null.
+   * @param context the context node
+   * @param returnType one of the XPathConstants
+   */
+  public static Object evaluate(
+      String expression, Map<String, String> namespaces, Node context, QName returnType)
+      throws XPathExpressionException {
+    return caches.get().evaluate0(expression, namespaces, context, returnType);
+  }
+
+  private Object evaluate0(
+      String expression, Map<String, String> namespaces, Node context, QName returnType)
+      throws XPathExpressionException {
+    Key key = new Key(expression, namespaces);
+    Compiled compiled = expressions.get(key);
+    if (compiled == null) {
+      compiled = new Compiled(SimplePath.parse(expression, key.namespaces));
+      expressions.put(key, compiled);
+    }
+    if (compiled.simplePath != null && compiled.simplePath.canSelect(context, returnType)) {
+      return compiled.simplePath.select(context, returnType);
+    }
+    if (compiled.expression == null) {
+      xpath.setNamespaceContext(new MapNamespaceContext(key.namespaces));
+      compiled.expression = xpath.compile(expression);
+    }
+    return compiled.expression.evaluate(context, returnType);
+  }
+
+  private static final class Key {
+    final String expression;
+    final Map<String, String> namespaces;
+
+    Key(String expression, Map<String, String> namespaces) {
+      this.expression = expression;
+      this.namespaces =
+          (namespaces == null)
+              ? Collections.<String, String>emptyMap()
+              : new HashMap<String, String>(namespaces);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return expression.equals(other.expression) && namespaces.equals(other.namespaces);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * expression.hashCode() + namespaces.hashCode();
+    }
+  }
+
+  private static final class Compiled {
+    final SimplePath simplePath; // null if the expression is not a simple path
+    XPathExpression expression; // compiled on first use
+
+    Compiled(SimplePath simplePath) {
+      this.simplePath = simplePath;
+    }
+  }
+
+  /**
+   * An absolute path of child element steps, like /a/b or /ns:a/ns:b. Each step is a name,
+   * optionally prefixed, or *. As in XPath, a name without a prefix matches only an element in no
+   * namespace.
+   */
+  static final class SimplePath {
+    private static final Pattern NCNAME = Pattern.compile("[A-Za-z_][-A-Za-z0-9_.]*");
+    private final String[] namespaceUris; // null for any namespace
+    private final String[] localNames; // null for any name
+
+    private SimplePath(String[] namespaceUris, String[] localNames) {
+      this.namespaceUris = namespaceUris;
+      this.localNames = localNames;
+    }
+
+    /** Returns the parsed path, or null if the expression is not a simple path. */
+    static SimplePath parse(String expression, Map<String, String> namespaces) {
+      if (!expression.startsWith("/") || expression.length() < 2) {
+        return null;
+      }
+      String[] steps = expression.substring(1).split("/", -1);
+      String[] namespaceUris = new String[steps.length];
+      String[] localNames = new String[steps.length];
+      for (int i = 0; i < steps.length; i++) {
+        String step = steps[i];
+        if (step.equals("*")) {
+          continue;
+        }
+        int colon = step.indexOf(':');
+        String localName = (colon < 0) ? step : step.substring(colon + 1);
+        if (!NCNAME.matcher(localName).matches()) {
+          return null;
+        }
+        String namespaceUri = "";
+        if (colon >= 0) {
+          // an unknown prefix is an error, which the XPath engine will report.
+          namespaceUri = namespaces.get(step.substring(0, colon));
+          if (namespaceUri == null || !NCNAME.matcher(step.substring(0, colon)).matches()) {
+            return null;
+          }
+        }
+        namespaceUris[i] = namespaceUri;
+        localNames[i] = localName;
+      }
+      return new SimplePath(namespaceUris, localNames);
+    }
+
+    boolean canSelect(Node context, QName returnType) {
+      if (returnType != XPathConstants.NODESET && returnType != XPathConstants.NODE) {
+        return false;
+      }
+      Document doc =
+          (context.getNodeType() == Node.DOCUMENT_NODE)
+              ? (Document) context
+              : context.getOwnerDocument();
+      // A document parsed without namespace awareness has no local names.
+      return doc != null
+          && doc.getDocumentElement() != null
+          && doc.getDocumentElement().getLocalName() != null;
+    }
+
+    Object select(Node context, QName returnType) {
+      Document doc =
+          (context.getNodeType() == Node.DOCUMENT_NODE)
+              ? (Document) context
+              : context.getOwnerDocument();
+      List<Node> current = Collections.<Node>singletonList(doc);
+      for (int i = 0; i < localNames.length && !current.isEmpty(); i++) {
+        List<Node> next = new ArrayList<Node>();
+        for (Node parent : current) {
+          for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE && matches(i, (Element) n)) {
+              next.add(n);
+            }
+          }
+        }
+        current = next;
+      }
+      if (returnType == XPathConstants.NODE) {
+        return current.isEmpty() ? null : current.get(0);
+      }
+      return new ListNodeList(current);
+    }
+
+    /** The number of steps in the path. */
+    int length() {
+      return localNames.length;
+    }
+
+    /** Whether an element with the given name matches the step at the index. */
+    boolean matches(int index, String namespaceUri, String localName) {
+      if (localNames[index] != null && !localNames[index].equals(localName)) {
+        return false;
+      }
+      if (namespaceUris[index] == null) {
+        return true;
+      }
+      return namespaceUris[index].equals((namespaceUri == null) ? "" : namespaceUri);
+    }
+
+    private boolean matches(int index, Element element) {
+      return matches(index, element.getNamespaceURI(), element.getLocalName());
+    }
+  }
+
+  private static final class ListNodeList implements NodeList {
+    private final List<Node> nodes;
+
+    ListNodeList(List<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    public Node item(int index) {
+      return (index >= 0 && index < nodes.size()) ? nodes.get(index) : null;
+    }
+
+    public int getLength() {
+      return nodes.size();
+    }
+  }
+
+  private static final class MapNamespaceContext implements NamespaceContext {
+    private final Map<String, String> prefixes;
+
+    MapNamespaceContext(Map<String, String> prefixes) {
+      this.prefixes = prefixes;
+    }
+
+    public String getNamespaceURI(String prefix) {
+      return prefixes.get(prefix);
+    }
+
+    public String getPrefix(String namespaceURI) {
+      throw new UnsupportedOperationException();
+    }
+
+    public Iterator getPrefixes(String namespaceURI) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -17,24 +17,18 @@ package com.google.apigee.xml;
 import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.StringWriter;
-import java.util.Iterator;
 import javax.xml.XMLConstants;
-import javax.xml.namespace.NamespaceContext;
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 import javax.xml.xpath.XPathConstants;
 
 import org.w3c.dom.Document;
@@ -54,20 +48,29 @@ public class XPathEvaluator {
     private DocumentBuilder docBuilder;
 
     public XPathEvaluator(){
-        try {
+    }
+
+    // The transformer and the builder are used only by some methods; create them on first use.
+    private Transformer getTransformer() throws TransformerException {
+        if (transformer == null) {
             transformer = TransformerFactory.newInstance().newTransformer();
             transformer.setOutputProperty(OutputKeys.INDENT, "yes");
             transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        } catch (TransformerConfigurationException ex) {
-            ex.printStackTrace();
         }
-        try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            docBuilder = factory.newDocumentBuilder();
-        } catch (ParserConfigurationException ex) {
-            ex.printStackTrace();
+        return transformer;
+    }
+
+    private DocumentBuilder getDocBuilder() throws SAXException {
+        if (docBuilder == null) {
+            try {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setNamespaceAware(true);
+                docBuilder = factory.newDocumentBuilder();
+            } catch (ParserConfigurationException ex) {
+                throw new SAXException(ex);
+            }
         }
+        return docBuilder;
     }
 
     private Hashtable<String, String> prefixi = new Hashtable<String, String> ();
@@ -99,7 +102,7 @@ public class XPathEvaluator {
 
                 if (nodeValue == null) {
                     StringWriter stringWriter = new StringWriter();
-                    transformer.transform(new DOMSource(item), new StreamResult(stringWriter));
+                    getTransformer().transform(new DOMSource(item), new StreamResult(stringWriter));
                     sb.append(stringWriter.toString());
                 } else {
                     sb.append(item.getNodeValue()).append("\n");
@@ -115,7 +118,7 @@ public class XPathEvaluator {
     public Object evaluate(String xpath, String xml, QName ret)
         throws SAXException, IOException, XPathExpressionException {
 
-        Document sourceXML = docBuilder.parse(new InputSource(new CharArrayReader(xml.toCharArray())));
+        Document sourceXML = getDocBuilder().parse(new InputSource(new CharArrayReader(xml.toCharArray())));
 
         //hack; found no way to get it working with default namespaces
         if(sourceXML.lookupNamespaceURI(null) != null) {
@@ -135,32 +138,7 @@ public class XPathEvaluator {
 
     public Object evaluate(String xpath, Document sourceXML, QName ret)
         throws SAXException, IOException, XPathExpressionException {
-        XPathFactory factory = XPathFactory.newInstance();
-        XPath xPath = factory.newXPath();
-        xPath.setNamespaceContext(new CustomNamespaceResolver(prefixi));
-        XPathExpression expr = xPath.compile(xpath);
-        return expr.evaluate(sourceXML, ret);
-    }
-
-
-    private final static class CustomNamespaceResolver implements NamespaceContext {
-        private Hashtable<String,String> prefixes;
-        public CustomNamespaceResolver(Hashtable<String,String> prefixi) {
-            prefixes = prefixi;
-        }
-
-        public String getNamespaceURI(String prefix) {
-            String ns = prefixes.get(prefix);
-            return ns;
-        }
-
-        public String getPrefix(String namespaceURI) {
-            throw new UnsupportedOperationException();
-        }
-
-        public Iterator getPrefixes(String namespaceURI) {
-            throw new UnsupportedOperationException();
-        }
+        return XPathCache.evaluate(xpath, prefixi, sourceXML, ret);
     }
 
 }
@@ -14,7 +14,6 @@
 //
 package com.google.apigee.xml;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
@@ -35,32 +34,40 @@ import org.xml.sax.SAXException;
 
 public class XmlUtils {
 
-  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+  // DocumentBuilderFactory lookup is expensive, and neither factories nor
+  // builders are thread-safe. Each thread keeps one builder, configured once,
+  // and resets it before each use.
+  private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+
+  // prevent DTD entities from being resolved.
+  private static final EntityResolver noEntities =
+      (publicId, systemId) -> new InputSource(new StringReader(""));
+
+  private static DocumentBuilder newBuilder() throws ParserConfigurationException {
     DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
     factory.setNamespaceAware(true);
     factory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
     factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+    return factory.newDocumentBuilder();
+  }
 
-    DocumentBuilder builder = factory.newDocumentBuilder();
-    // prevent DTD entities from being resolved.
-    builder.setEntityResolver(
-        new EntityResolver() {
-          @Override
-          public InputSource resolveEntity(String publicId, String systemId)
-              throws SAXException, IOException {
-            return new InputSource(new StringReader(""));
-          }
-        });
-
+  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+    DocumentBuilder builder = builders.get();
+    if (builder == null) {
+      builder = newBuilder();
+      builders.set(builder);
+    } else {
+      builder.reset();
+    }
+    // reset() removes the entity resolver, so set it each time.
+    builder.setEntityResolver(noEntities);
     return builder;
   }
 
   public static Document parseXml(InputStream in)
       throws IOException, SAXException, ParserConfigurationException {
-    DocumentBuilder builder = getBuilder();
-    InputStream bin = new BufferedInputStream(in);
-    Document ret = builder.parse(new InputSource(bin));
-    return ret;
+    // The parser buffers its input, and decodes the bytes itself.
+    return getBuilder().parse(new InputSource(in));
   }
 
   public static Document parseXml(String s)
@@ -0,0 +1,145 @@
+// Copyright 2020-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.xml;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class XPathCacheTest {
+  private static final String SOAP = "http://schemas.xmlsoap.org/soap/envelope/";
+  private static final String xml =
+      ""
+          + "<soap:Envelope xmlns:soap='"
+          + SOAP
+          + "'>"
+          + "<soap:Header><a/></soap:Header>"
+          + "<soap:Body><b xmlns='urn:other'/><c/><c id='2'/></soap:Body>"
+          + "</soap:Envelope>";
+
+  private static Map<String, String> namespaces() {
+    Map<String, String> namespaces = new HashMap<String, String>();
+    namespaces.put("soap", SOAP);
+    namespaces.put("o", "urn:other");
+    return namespaces;
+  }
+
+  private static NodeList viaXPathEngine(String expression, Document doc) throws Exception {
+    XPath xpath = XPathFactory.newInstance().newXPath();
+    Map<String, String> namespaces = namespaces();
+    xpath.setNamespaceContext(
+        new NamespaceContext() {
+          public String getNamespaceURI(String prefix) {
+            return namespaces.get(prefix);
+          }
+
+          public String getPrefix(String uri) {
+            throw new UnsupportedOperationException();
+          }
+
+          public Iterator getPrefixes(String uri) {
+            throw new UnsupportedOperationException();
+          }
+        });
+    return (NodeList) xpath.evaluate(expression, doc, XPathConstants.NODESET);
+  }
+
+  @Test
+  public void testSimplePathsMatchXPathEngine() throws Exception {
+    Document doc = XmlUtils.parseXml(xml);
+    String[] expressions = {
+      "/soap:Envelope/soap:Body",
+      "/soap:Envelope/soap:Body/*",
+      "/soap:Envelope/soap:Body/c",
+      "/soap:Envelope/soap:Body/o:b",
+      "/soap:Envelope/soap:Body/b",
+      "/*/*/a",
+      "/Envelope",
+      "/soap:Envelope/soap:Body/c[2]",
+      "//c",
+      "/soap:Envelope/soap:Body/c/@id"
+    };
+    for (String expression : expressions) {
+      NodeList expected = viaXPathEngine(expression, doc);
+      // twice, to use the cached form
+      for (int i = 0; i < 2; i++) {
+        NodeList actual =
+            (NodeList) XPathCache.evaluate(expression, namespaces(), doc, XPathConstants.NODESET);
+        Assert.assertEquals(actual.getLength(), expected.getLength(), expression);
+        for (int j = 0; j < expected.getLength(); j++) {
+          Assert.assertSame(actual.item(j), expected.item(j), expression);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNodeResult() throws Exception {
+    Document doc = XmlUtils.parseXml(xml);
+    Element context = doc.getDocumentElement();
+    Element c =
+        (Element)
+            XPathCache.evaluate(
+                "/soap:Envelope/soap:Body/c", namespaces(), context, XPathConstants.NODE);
+    Assert.assertNotNull(c);
+    // the first in document order
+    Assert.assertNull(c.getAttributeNode("id"));
+    Assert.assertNull(
+        XPathCache.evaluate("/soap:Envelope/x", namespaces(), doc, XPathConstants.NODE));
+  }
+
+  @Test
+  public void testNamespaceBindingsArePartOfTheKey() throws Exception {
+    Document doc = XmlUtils.parseXml(xml);
+    Map<String, String> namespaces = namespaces();
+    NodeList nodes =
+        (NodeList) XPathCache.evaluate("/soap:Envelope", namespaces, doc, XPathConstants.NODESET);
+    Assert.assertEquals(nodes.getLength(), 1);
+    namespaces.put("soap", "urn:not-soap");
+    nodes =
+        (NodeList) XPathCache.evaluate("/soap:Envelope", namespaces, doc, XPathConstants.NODESET);
+    Assert.assertEquals(nodes.getLength(), 0);
+  }
+
+  @Test
+  public void testSimplePathSteps() throws Exception {
+    XPathCache.SimplePath path =
+        XPathCache.SimplePath.parse("/soap:Envelope/*/b", namespaces());
+    Assert.assertEquals(path.length(), 3);
+    Assert.assertTrue(path.matches(0, SOAP, "Envelope"));
+    Assert.assertFalse(path.matches(0, null, "Envelope"));
+    Assert.assertTrue(path.matches(1, "urn:other", "anything"));
+    Assert.assertTrue(path.matches(2, null, "b"));
+    Assert.assertFalse(path.matches(2, "urn:other", "b"));
+    Assert.assertNull(XPathCache.SimplePath.parse("//c", namespaces()));
+  }
+
+  @Test(expectedExceptions = XPathExpressionException.class)
+  public void testUnboundPrefix() throws Exception {
+    Document doc = XmlUtils.parseXml(xml);
+    XPathCache.evaluate("/unbound:Envelope", namespaces(), doc, XPathConstants.NODESET);
+  }
+}
@@ -39,7 +39,7 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
-import com.google.apigee.util.XmlUtils;
+import com.google.apigee.util.DocumentHandoff;
 import java.util.Map;
 import javax.crypto.SecretKey;
 import org.apache.xml.security.encryption.XMLCipher;
@@ -76,25 +76,37 @@ public class Decrypt extends XmlCipherCalloutBase implements Execution {
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    DocumentHandoff handoff = null;
     try {
-      Document document = getDocument(msgCtxt);
+      handoff = getDocumentHandoff(msgCtxt);
+      Document document = getDocument(msgCtxt, handoff);
       KeyEncryptingKeyResult keyResult = getKeyEncryptingKey(msgCtxt, false);
 
       execute0(document, keyResult.keyEncryptingKey);
-      String result = XmlUtils.toString(document, getPretty(msgCtxt));
-      String outputVar = getOutputVar(msgCtxt);
-      msgCtxt.setVariable(outputVar, result);
+      handoff.setOutput(getOutputVar(msgCtxt), document, getPretty(msgCtxt));
       return ExecutionResult.SUCCESS;
     } catch (java.security.InvalidKeyException exc0) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       setExceptionVariables(exc0, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (org.apache.commons.codec.DecoderException exc1) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       setExceptionVariables(exc1, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (IllegalStateException exc2) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       setExceptionVariables(exc2, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (Exception e) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       String stacktrace = getStackTraceAsString(e);
       if (getDebug()) {
         System.out.println(stacktrace);
@@ -38,14 +38,13 @@ import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
-import com.google.apigee.util.XmlUtils;
+import com.google.apigee.util.DocumentHandoff;
+import com.google.apigee.util.XPathCache;
 import java.security.Key;
 import java.util.Map;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
 import org.apache.xml.security.encryption.EncryptedData;
 import org.apache.xml.security.encryption.EncryptedKey;
 import org.apache.xml.security.encryption.XMLCipher;
@@ -86,12 +85,11 @@ public class Encrypt extends XmlCipherCalloutBase implements Execution {
     encryptedData.setKeyInfo(keyInfo);
 
     // Encrypt the element
-    XPathFactory factory = XPathFactory.newInstance();
-    XPath xpath = factory.newXPath();
     Element toEncrypt =
         (Element)
-            xpath.evaluate(
+            XPathCache.evaluate(
                 xpathPath, // "/order/payment"
+                null,
                 document.getDocumentElement(),
                 XPathConstants.NODE);
 
@@ -102,17 +100,17 @@ public class Encrypt extends XmlCipherCalloutBase implements Execution {
   }
 
   public ExecutionResult execute(final MessageContext msgCtxt, final ExecutionContext execContext) {
+    DocumentHandoff handoff = null;
     try {
-      Document document = getDocument(msgCtxt);
+      handoff = getDocumentHandoff(msgCtxt);
+      Document document = getDocument(msgCtxt, handoff);
       String xpathPath = getSimpleRequiredProperty("xpath", msgCtxt);
 
       KeyEncryptingKeyResult keyResult = getKeyEncryptingKey(msgCtxt, true);
 
       execute0(document, xpathPath, keyResult.keyEncryptingKey);
 
-      String result = XmlUtils.toString(document, getPretty(msgCtxt));
-      String outputVar = getOutputVar(msgCtxt);
-      msgCtxt.setVariable(outputVar, result);
+      handoff.setOutput(getOutputVar(msgCtxt), document, getPretty(msgCtxt));
 
       if (keyResult.isGenerated) {
         byte[] keyBytes = keyResult.keyEncryptingKey.getEncoded();
@@ -123,12 +121,21 @@ public class Encrypt extends XmlCipherCalloutBase implements Execution {
       }
       return ExecutionResult.SUCCESS;
     } catch (javax.xml.xpath.XPathExpressionException texc1) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       setExceptionVariables(texc1, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (IllegalStateException exc1) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       setExceptionVariables(exc1, msgCtxt);
       return ExecutionResult.ABORT;
     } catch (Exception e) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       String stacktrace = getStackTraceAsString(e);
       if (getDebug()) {
         System.out.println(stacktrace);
@@ -17,6 +17,7 @@ package com.google.apigee.callouts.xmlcipher;
 
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.encoding.Base16;
+import com.google.apigee.util.DocumentHandoff;
 import com.google.apigee.util.XmlUtils;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -70,8 +71,16 @@ public abstract class XmlCipherCalloutBase {
     return _varprefix + s;
   }
 
-  protected Document getDocument(MessageContext msgCtxt) throws Exception {
+  protected DocumentHandoff getDocumentHandoff(MessageContext msgCtxt) throws Exception {
+    return new DocumentHandoff(msgCtxt, getSimpleOptionalProperty("document-handoff", msgCtxt));
+  }
+
+  protected Document getDocument(MessageContext msgCtxt, DocumentHandoff handoff)
+      throws Exception {
     String source = getSimpleOptionalProperty("source", msgCtxt);
+    if (handoff.isEnabled()) {
+      return handoff.getDocument((source == null) ? "message.content" : source);
+    }
     if (source == null) {
       return XmlUtils.parseXml(msgCtxt.getMessage().getContentAsStream());
     }
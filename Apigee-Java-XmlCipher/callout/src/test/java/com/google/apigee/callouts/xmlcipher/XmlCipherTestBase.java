@@ -6,6 +6,7 @@ import com.apigee.flow.message.MessageContext;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Scanner;
 import mockit.Mock;
 import mockit.MockUp;
 import org.testng.annotations.BeforeMethod;
@@ -71,6 +72,13 @@ public abstract class XmlCipherTestBase {
             // new ByteArrayInputStream(messageContent.getBytes(StandardCharsets.UTF_8));
             return messageContentStream;
           }
+
+          @Mock()
+          public void setContent(InputStream in) {
+            try (Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A")) {
+              msgCtxt.setVariable("message.content", s.hasNext() ? s.next() : "");
+            }
+          }
         }.getMockInstance();
   }
 }
@@ -1,9 +1,8 @@
 package com.google.apigee.callouts.xsdvalidation;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.Reader;
-import java.nio.charset.StandardCharsets;
+import java.net.URI;
 import java.util.Map;
 import java.util.function.Function;
 import org.w3c.dom.ls.LSInput;
@@ -13,7 +12,11 @@ public class CustomResourceResolver implements LSResourceResolver {
   private final Map<String, String> knownResources;
   private final Function<String,String> httpRefResolver;
 
-  @SuppressWarnings("unchecked")
+  /**
+   * @param map the content of dependent schemas, keyed by location
+   * @param httpRefResolver returns the content of a schema referenced by URL. The content is
+   *     cached there, so this resolver holds no copy of it.
+   */
   public CustomResourceResolver(Map<String, String> map,
                                 Function<String,String> httpRefResolver) {
     super();
@@ -21,6 +24,22 @@ public class CustomResourceResolver implements LSResourceResolver {
     this.httpRefResolver = httpRefResolver;
   }
 
+  // Returns the URL for a reference made from a schema that was itself
+  // retrieved from a URL, or null if the reference does not name a URL.
+  private static String resolveUrl(String systemId, String baseURI) {
+    if (systemId.startsWith("http://") || systemId.startsWith("https://")) {
+      return systemId;
+    }
+    if (baseURI != null && (baseURI.startsWith("http://") || baseURI.startsWith("https://"))) {
+      try {
+        return URI.create(baseURI).resolve(systemId).toString();
+      } catch (IllegalArgumentException exc1) {
+        return null;
+      }
+    }
+    return null;
+  }
+
   /*
    * (non-Javadoc)
    *
@@ -37,63 +56,90 @@ public class CustomResourceResolver implements LSResourceResolver {
     //                   baseURI
     //                   );
 
-    return new LSInput() {
-      public String getBaseURI() {
-        return null;
-      }
+    if (systemId == null) {
+      return null;
+    }
+    if (knownResources != null && knownResources.containsKey(systemId)) {
+      return new Input(publicId, systemId, baseURI, knownResources.get(systemId));
+    }
+    String url = resolveUrl(systemId, baseURI);
+    if (url != null) {
+      // The systemId of the input is the URL, so that the references made
+      // from within that schema resolve relative to it.
+      return new Input(publicId, url, baseURI, httpRefResolver.apply(url));
+    }
+    // not known here; let the parser resolve it
+    return null;
+  }
 
-      public InputStream getByteStream() {
-        if (systemId.startsWith("http"))
-          return new ByteArrayInputStream(httpRefResolver.apply(systemId)
-                                          .getBytes(StandardCharsets.UTF_8));
+  /** The content of a schema, along with the identifiers the parser needs to resolve from it. */
+  private static final class Input implements LSInput {
+    private String publicId;
+    private String systemId;
+    private String baseURI;
+    private String stringData;
 
-        if (knownResources != null && knownResources.containsKey(systemId))
-          return new ByteArrayInputStream(
-              knownResources.get(systemId).getBytes(StandardCharsets.UTF_8));
+    Input(String publicId, String systemId, String baseURI, String stringData) {
+      this.publicId = publicId;
+      this.systemId = systemId;
+      this.baseURI = baseURI;
+      this.stringData = stringData;
+    }
 
+    public String getBaseURI() {
+      return baseURI;
+    }
 
-        return null;
-      }
+    public InputStream getByteStream() {
+      return null;
+    }
 
-      public boolean getCertifiedText() {
-        return false;
-      }
+    public boolean getCertifiedText() {
+      return false;
+    }
 
-      public Reader getCharacterStream() {
-        return null;
-      }
+    public Reader getCharacterStream() {
+      return null;
+    }
 
-      public String getEncoding() {
-        return null;
-      }
+    public String getEncoding() {
+      return null;
+    }
 
-      public String getPublicId() {
-        return null;
-      }
+    public String getPublicId() {
+      return publicId;
+    }
 
-      public String getStringData() {
-        return null;
-      }
+    public String getStringData() {
+      return stringData;
+    }
 
-      public String getSystemId() {
-        return null;
-      }
+    public String getSystemId() {
+      return systemId;
+    }
 
-      public void setBaseURI(String baseURI) {}
+    public void setBaseURI(String baseURI) {
+      this.baseURI = baseURI;
+    }
 
-      public void setByteStream(InputStream byteStream) {}
+    public void setByteStream(InputStream byteStream) {}
 
-      public void setCertifiedText(boolean certifiedText) {}
+    public void setCertifiedText(boolean certifiedText) {}
 
-      public void setCharacterStream(Reader characterStream) {}
+    public void setCharacterStream(Reader characterStream) {}
 
-      public void setEncoding(String encoding) {}
+    public void setEncoding(String encoding) {}
 
-      public void setPublicId(String publicId) {}
+    public void setPublicId(String publicId) {
+      this.publicId = publicId;
+    }
 
-      public void setStringData(String stringData) {}
+    public void setStringData(String stringData) {
+      this.stringData = stringData;
+    }
 
-      public void setSystemId(String systemId) {}
-    };
+    public void setSystemId(String systemId) {
+      this.systemId = systemId;
+    }
   }
 }
@@ -1,4 +1,4 @@
-// Copyright 2017-2020 Google LLC
+// Copyright 2017-2021 Google LLC
 //
 // Licensed under the Apache License, Version 2.0 (the "License");
 // you may not use this file except in compliance with the License.
@@ -22,52 +22,67 @@ import javax.xml.validation.Validator;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
 public class CustomValidationErrorHandler implements ErrorHandler {
   private static final int RECORDED_EXCEPTION_LIMIT = 10;
-  private static final String _prefix = "xsd_";
   MessageContext _msgCtxt;
   int _warnCount;
   int _errorCount;
+  int _maxErrors;
   boolean _debug = false;
-  List<String> exceptionList;
+  boolean _aborted = false;
+  List<SAXParseException> exceptionList;
   List<String> pathList;
   Validator validator;
 
-  private static String varName(String s) {
-    return _prefix + s;
+  /**
+   * Thrown from the handler to stop the validator, once the configured maximum number of errors has
+   * been reached.
+   */
+  public static class ErrorLimitExceededException extends SAXException {
+    public ErrorLimitExceededException(int limit) {
+      super(String.format("validation stopped after %d errors", limit));
+    }
   }
 
-  // public CustomValidationErrorHandler(MessageContext msgCtxt) {
-  //     this(msgCtxt, false);
-  // }
   public CustomValidationErrorHandler(MessageContext msgCtxt, Validator validator, boolean debug) {
+    this(msgCtxt, validator, debug, 0);
+  }
+
+  /**
+   * @param maxErrors the number of errors after which validation stops. Zero means there is no
+   *     limit.
+   */
+  public CustomValidationErrorHandler(
+      MessageContext msgCtxt, Validator validator, boolean debug, int maxErrors) {
     _msgCtxt = msgCtxt;
     _warnCount = 0;
     _errorCount = 0;
+    _maxErrors = maxErrors;
     this.validator = validator;
     _debug = debug;
   }
 
-  public void error(SAXParseException exception) {
+  public void error(SAXParseException exception) throws SAXException {
     _errorCount++;
     if (_debug) {
       System.out.printf("Error\n");
       exception.printStackTrace();
     }
-    _msgCtxt.setVariable(varName("error_" + _errorCount), "Error:" + exception.toString());
     addException(exception);
+    checkLimit();
   }
 
-  public void fatalError(SAXParseException exception) {
+  public void fatalError(SAXParseException exception) throws SAXException {
     _errorCount++;
     if (_debug) {
       System.out.printf("Fatal\n");
       exception.printStackTrace();
     }
-    _msgCtxt.setVariable(varName("error_" + _errorCount), "Fatal Error:" + exception.toString());
     addException(exception);
+    checkLimit();
   }
 
   public void warning(SAXParseException exception) {
@@ -76,10 +91,16 @@ public class CustomValidationErrorHandler implements ErrorHandler {
       System.out.printf("Warning\n");
       exception.printStackTrace();
     }
-    _msgCtxt.setVariable(varName("warning_" + _warnCount), "Warning:" + exception.toString());
     addException(exception);
   }
 
+  private void checkLimit() throws SAXException {
+    if (_maxErrors > 0 && _errorCount >= _maxErrors) {
+      _aborted = true;
+      throw new ErrorLimitExceededException(_maxErrors);
+    }
+  }
+
   private static String getFullPathOfElement(Node element) {
     String path = null;
     Node node = element;
@@ -93,21 +114,22 @@ public class CustomValidationErrorHandler implements ErrorHandler {
   }
 
   private void addException(SAXParseException ex) {
+    // Only the first few exceptions and paths are kept; beyond that, an
+    // additional error costs no more than the increment of a counter.
     if (this.exceptionList == null) this.exceptionList = new ArrayList<>(); // lazy create
-    if (exceptionList.size() < RECORDED_EXCEPTION_LIMIT) this.exceptionList.add(ex.toString());
+    if (exceptionList.size() >= RECORDED_EXCEPTION_LIMIT) return;
+    this.exceptionList.add(ex);
     if (this.pathList == null) this.pathList = new ArrayList<>(); // lazy create
-    if (pathList.size() < RECORDED_EXCEPTION_LIMIT) {
-      try {
-        Element curElement =
-            (Element)
-                validator.getProperty("http://apache.org/xml/properties/dom/current-element-node");
-
-        if (curElement != null) {
-          this.pathList.add(getFullPathOfElement(curElement));
-        }
-      } catch (Exception purposefullyIgnoredNestedException) {
-        // purposefullyIgnoredNestedException.printStackTrace(System.out);
+    try {
+      Element curElement =
+          (Element)
+              validator.getProperty("http://apache.org/xml/properties/dom/current-element-node");
+
+      if (curElement != null) {
+        this.pathList.add(getFullPathOfElement(curElement));
       }
+    } catch (Exception purposefullyIgnoredNestedException) {
+      // purposefullyIgnoredNestedException.printStackTrace(System.out);
     }
   }
 
@@ -115,20 +137,32 @@ public class CustomValidationErrorHandler implements ErrorHandler {
     return this._errorCount == 0;
   }
 
+  /** True if validation was stopped early, because the maximum number of errors was reached. */
+  public boolean isAborted() {
+    return this._aborted;
+  }
+
   public int getErrorCount() {
     return this._errorCount;
   }
 
+  public int getWarningCount() {
+    return this._warnCount;
+  }
+
   public String getPaths() {
     if (this.pathList == null) return null;
-    LineCounter lc = new LineCounter();
     return (String) pathList.stream().collect(Collectors.joining(","));
   }
 
   public String getConsolidatedExceptionMessage() {
     if (this.exceptionList == null) return null;
     LineCounter lc = new LineCounter();
-    return (String) exceptionList.stream().map(lc::toIndexed).collect(Collectors.joining("\n"));
+    return (String)
+        exceptionList.stream()
+            .map(Object::toString)
+            .map(lc::toIndexed)
+            .collect(Collectors.joining("\n"));
   }
 
   static class LineCounter {
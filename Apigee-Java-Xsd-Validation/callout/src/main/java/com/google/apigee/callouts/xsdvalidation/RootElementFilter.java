@@ -0,0 +1,54 @@
+// Copyright 2017-2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * A SAX filter that passes all events through unchanged, and records the name of the first
+ * element. This allows the validator and the check for the required root element to share a
+ * single parse of the document.
+ */
+public class RootElementFilter extends XMLFilterImpl {
+  private String rootLocalName;
+  private String rootNamespaceUri;
+
+  public RootElementFilter(XMLReader parent) {
+    super(parent);
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes atts)
+      throws SAXException {
+    if (rootLocalName == null) {
+      rootLocalName = localName;
+      rootNamespaceUri = uri;
+    }
+    super.startElement(uri, localName, qName, atts);
+  }
+
+  /** The local name of the root element, or null if no element has been seen. */
+  public String getRootLocalName() {
+    return rootLocalName;
+  }
+
+  /** The namespace URI of the root element, or the empty string if it has none. */
+  public String getRootNamespaceUri() {
+    return rootNamespaceUri;
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2017-2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A simple absolute path to an element, like /soap:Envelope/soap:Body/*. Each step is a name,
+ * optionally qualified with a prefix, or a wildcard. Unlike XPath, there are no predicates or axes,
+ * which means the path can be matched against a stream of SAX events, without building a DOM.
+ * Where more than one element matches, the first one, in document order, is selected.
+ */
+public class RootPath {
+  private final String path;
+  private final List<Pair<String, String>> steps; // namespace URI (null for any), localname
+
+  private RootPath(String path, List<Pair<String, String>> steps) {
+    this.path = path;
+    this.steps = steps;
+  }
+
+  /**
+   * Parses a path.
+   *
+   * @param path the path, for example /soap:Envelope/soap:Body/*
+   * @param namespaces a map of prefix to namespace URI, for the prefixes used in the path.
+   */
+  public static RootPath parse(String path, Map<String, String> namespaces) {
+    if (path == null || !path.startsWith("/") || path.endsWith("/") || path.contains("//")) {
+      throw new IllegalStateException("configuration error: root-path must be an absolute path");
+    }
+    List<Pair<String, String>> steps = new ArrayList<Pair<String, String>>();
+    for (String step : path.substring(1).split("/")) {
+      step = step.trim();
+      if (step.equals("*")) {
+        steps.add(Pair.of(null, "*"));
+        continue;
+      }
+      String[] parts = step.split(":", 2);
+      if (parts.length == 1) {
+        steps.add(Pair.of("", step));
+        continue;
+      }
+      String nsuri = namespaces.get(parts[0]);
+      if (nsuri == null) {
+        throw new IllegalStateException(
+            String.format("configuration error: root-path uses undeclared prefix '%s'", parts[0]));
+      }
+      steps.add(Pair.of(nsuri, parts[1]));
+    }
+    return new RootPath(path, steps);
+  }
+
+  public int length() {
+    return steps.size();
+  }
+
+  /** Returns true if the element with the given name matches the step at the given index. */
+  public boolean matches(int index, String nsuri, String localName) {
+    Pair<String, String> step = steps.get(index);
+    if (step.left != null && !step.left.equals((nsuri == null) ? "" : nsuri)) {
+      return false;
+    }
+    return step.right.equals("*") || step.right.equals(localName);
+  }
+
+  /** Returns the first element in the document that matches the path. */
+  public Element select(Document doc) {
+    Element found = select(doc, 0);
+    if (found == null) {
+      throw new IllegalStateException(String.format("root-path '%s' matches no element", path));
+    }
+    return found;
+  }
+
+  private Element select(Node parent, int index) {
+    for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE
+          && matches(index, n.getNamespaceURI(), n.getLocalName())) {
+        Element found = (index == steps.size() - 1) ? (Element) n : select(n, index + 1);
+        if (found != null) {
+          return found;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+}
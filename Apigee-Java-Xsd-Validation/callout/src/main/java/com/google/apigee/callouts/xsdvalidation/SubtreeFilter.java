@@ -0,0 +1,169 @@
+// Copyright 2017-2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xsdvalidation;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.NamespaceSupport;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * A SAX filter that passes through only the events for the element selected by a RootPath, and its
+ * descendants, so that downstream, the selected element appears to be the root of the document.
+ * Events for everything outside the selected element are dropped.
+ *
+ * <p>The namespace declarations that are in scope at the selected element, including those
+ * declared on its ancestors, are passed through as if declared on the selected element.
+ */
+public class SubtreeFilter extends XMLFilterImpl {
+  private final RootPath rootPath;
+  private final NamespaceSupport namespaces = new NamespaceSupport();
+  private final List<String> forwardedPrefixes = new ArrayList<String>();
+  private boolean contextPushed;
+  private int depth; // depth of the current element; the document element is 1
+  private int matchedDepth; // number of ancestors, from the top, that match the path
+  private int selectedDepth; // depth of the selected element, while within it; else 0
+  private boolean found;
+
+  public SubtreeFilter(XMLReader parent, RootPath rootPath) {
+    super(parent);
+    this.rootPath = rootPath;
+  }
+
+  /** Returns true if an element matching the path has been passed through. */
+  public boolean isFound() {
+    return found;
+  }
+
+  private boolean isSelected() {
+    return selectedDepth > 0;
+  }
+
+  private void pushContext() {
+    if (!contextPushed) {
+      namespaces.pushContext();
+      contextPushed = true;
+    }
+  }
+
+  @Override
+  public void startPrefixMapping(String prefix, String uri) throws SAXException {
+    if (isSelected()) {
+      super.startPrefixMapping(prefix, uri);
+    } else {
+      pushContext();
+      namespaces.declarePrefix(prefix, uri);
+    }
+  }
+
+  @Override
+  public void endPrefixMapping(String prefix) throws SAXException {
+    if (isSelected()) {
+      super.endPrefixMapping(prefix);
+    }
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes atts)
+      throws SAXException {
+    depth++;
+    if (isSelected()) {
+      super.startElement(uri, localName, qName, atts);
+      return;
+    }
+    pushContext();
+    contextPushed = false;
+    if (found || matchedDepth != depth - 1 || !rootPath.matches(depth - 1, uri, localName)) {
+      return;
+    }
+    matchedDepth = depth;
+    if (depth == rootPath.length()) {
+      found = true;
+      selectedDepth = depth;
+      startInScopePrefixMappings();
+      super.startElement(uri, localName, qName, atts);
+    }
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    if (isSelected()) {
+      super.endElement(uri, localName, qName);
+      if (depth == selectedDepth) {
+        selectedDepth = 0;
+        for (String prefix : forwardedPrefixes) {
+          super.endPrefixMapping(prefix);
+        }
+        forwardedPrefixes.clear();
+      } else {
+        depth--;
+        return;
+      }
+    }
+    if (matchedDepth == depth) {
+      matchedDepth--;
+    }
+    namespaces.popContext();
+    depth--;
+  }
+
+  private void startInScopePrefixMappings() throws SAXException {
+    String defaultUri = namespaces.getURI("");
+    if (defaultUri != null && !defaultUri.equals("")) {
+      forwardedPrefixes.add("");
+      super.startPrefixMapping("", defaultUri);
+    }
+    Enumeration<?> prefixes = namespaces.getPrefixes();
+    while (prefixes.hasMoreElements()) {
+      String prefix = (String) prefixes.nextElement();
+      if (!prefix.equals("xml")) {
+        forwardedPrefixes.add(prefix);
+        super.startPrefixMapping(prefix, namespaces.getURI(prefix));
+      }
+    }
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    if (isSelected()) {
+      super.characters(ch, start, length);
+    }
+  }
+
+  @Override
+  public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+    if (isSelected()) {
+      super.ignorableWhitespace(ch, start, length);
+    }
+  }
+
+  @Override
+  public void processingInstruction(String target, String data) throws SAXException {
+    if (isSelected()) {
+      super.processingInstruction(target, data);
+    }
+  }
+
+  @Override
+  public void skippedEntity(String name) throws SAXException {
+    if (isSelected()) {
+      super.skippedEntity(name);
+    }
+  }
+}
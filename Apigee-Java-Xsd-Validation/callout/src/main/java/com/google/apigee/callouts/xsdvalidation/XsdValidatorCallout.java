@@ -2,6 +2,10 @@
 //
 // A callout for Apigee Edge that performs a validation of an XML document against an XSD.
 //
+// Compiled schemas are cached, keyed by a digest of the main XSD and the
+// dependent XSDs. Each thread re-uses its own Validator for each compiled
+// schema.
+//
 // Copyright (c) 2017-2021 Google LLC.
 //
 // Licensed under the Apache License, Version 2.0 (the "License");
@@ -46,38 +50,52 @@ import com.apigee.flow.execution.IOIntensive;
 import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.apigee.callouts.CalloutBase;
+import com.google.apigee.util.DocumentHandoff;
+import com.google.apigee.util.XmlUtils;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.Source;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 
 @IOIntensive
 public class XsdValidatorCallout extends CalloutBase implements Execution {
@@ -85,7 +103,39 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
   private static final String urlReferencePatternString = "^(https?://)(.+)$";
   private static final Pattern urlReferencePattern = Pattern.compile(urlReferencePatternString);
   private static final LoadingCache<String, String> fileResourceCache;
-  private static final LoadingCache<String, String> urlResourceCache;
+  private static final AsyncLoadingCache<String, String> urlResourceCache;
+  private static final int URL_CONNECT_TIMEOUT_MS = 5000;
+  private static final int URL_READ_TIMEOUT_MS = 10000;
+
+  // Remote schemas are retrieved on a small, bounded pool, so that all of the
+  // schemas for a schema set can be retrieved concurrently.
+  private static final ExecutorService schemaLoaderPool =
+      Executors.newFixedThreadPool(
+          8,
+          r -> {
+            Thread t = new Thread(r, "xsd-schema-loader");
+            t.setDaemon(true);
+            return t;
+          });
+
+  // The caches are bounded by memory, rather than by the number of entries.
+  // The text of XSDs is weighed by its size. The size of a compiled Schema is
+  // not directly measurable, so each is weighed by the size of its sources.
+  // Set the system properties to change the budgets for the JVM.
+  static final long RESOURCE_CACHE_MAX_BYTES =
+      getByteBudget(
+          "com.google.apigee.callouts.xsdvalidation.resourceCacheMaxBytes", 32L * 1024 * 1024);
+  static final long SCHEMA_CACHE_MAX_BYTES =
+      getByteBudget(
+          "com.google.apigee.callouts.xsdvalidation.schemaCacheMaxBytes", 64L * 1024 * 1024);
+
+  private static final Cache<String, CompiledSchema> schemaCache =
+      Caffeine.newBuilder()
+          .maximumWeight(SCHEMA_CACHE_MAX_BYTES)
+          .weigher((String key, CompiledSchema value) -> value.weight)
+          .expireAfterAccess(10, TimeUnit.MINUTES)
+          .recordStats()
+          .build();
 
   private static final String EXTERNAL_GENERAL_ENTITIES =
       "http://xml.org/sax/features/external-general-entities";
@@ -94,12 +144,31 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
   private static final String LOAD_EXTERNAL_DTD =
       "http://apache.org/xml/features/nonvalidating/load-external-dtd";
 
+  // A SAXParserFactory is not guaranteed to be thread-safe, so each thread
+  // keeps its own, configured once.
+  private static final ThreadLocal<SAXParserFactory> saxParserFactory =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              SAXParserFactory factory = SAXParserFactory.newInstance();
+              factory.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+              factory.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+              factory.setFeature(LOAD_EXTERNAL_DTD, false);
+              factory.setNamespaceAware(true);
+              return factory;
+            } catch (Exception exc1) {
+              throw new IllegalStateException(exc1);
+            }
+          });
+
   static {
     fileResourceCache =
         Caffeine.newBuilder()
             // .concurrencyLevel(4)
-            .maximumSize(1048000)
+            .maximumWeight(RESOURCE_CACHE_MAX_BYTES)
+            .weigher(XsdValidatorCallout::textWeight)
             .expireAfterAccess(10, TimeUnit.MINUTES)
+            .recordStats()
             .build(
                 new CacheLoader<String, String>() {
                   public String load(String key) throws IOException {
@@ -125,25 +194,20 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     urlResourceCache =
         Caffeine.newBuilder()
             // .concurrencyLevel(4)
-            .maximumSize(1048000)
+            .maximumWeight(RESOURCE_CACHE_MAX_BYTES)
+            .weigher(XsdValidatorCallout::textWeight)
             .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(
+            .recordStats()
+            .executor(schemaLoaderPool)
+            .buildAsync(
                 new CacheLoader<String, String>() {
                   public String load(String key) throws IOException {
-                    InputStream in = null;
-                    String s = "";
-                    try {
-                      URL url = new URL(key);
-                      in = url.openStream();
-                      s = new String(readAllBytes(in), StandardCharsets.UTF_8);
-                    } catch (java.lang.Exception exc1) {
-                      // gulp
-                    } finally {
-                      if (in != null) {
-                        in.close();
-                      }
+                    URLConnection connection = new URL(key).openConnection();
+                    connection.setConnectTimeout(URL_CONNECT_TIMEOUT_MS);
+                    connection.setReadTimeout(URL_READ_TIMEOUT_MS);
+                    try (InputStream in = connection.getInputStream()) {
+                      return new String(readAllBytes(in), StandardCharsets.UTF_8).trim();
                     }
-                    return s.trim();
                   }
                 });
   }
@@ -152,6 +216,48 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     super(properties);
   }
 
+  // The approximate number of bytes of heap held by a cached string and its
+  // key: two bytes per char.
+  static int textWeight(String key, String value) {
+    long chars = (long) key.length() + ((value == null) ? 0 : value.length());
+    return (int) Math.min(Integer.MAX_VALUE, 2 * chars);
+  }
+
+  // Returns the named JVM system property as a number of bytes, or the default.
+  static long getByteBudget(String propertyName, long defaultBytes) {
+    Long value = Long.getLong(propertyName);
+    return (value == null || value <= 0) ? defaultBytes : value;
+  }
+
+  /**
+   * A compiled Schema, along with its weight for the cache. A Validator is not thread-safe, but it
+   * can be re-used after reset(), so each thread keeps its own Validator for the Schema here. A
+   * thread holds its Validator under a weak reference to the ThreadLocal, so once this entry is
+   * evicted, the thread drops the Validator, and with it the Schema, as it purges stale entries.
+   */
+  private static final class CompiledSchema {
+    final Schema schema;
+    final int weight;
+    private final ThreadLocal<Validator> validator = new ThreadLocal<Validator>();
+
+    CompiledSchema(Schema schema, int weight) {
+      this.schema = schema;
+      this.weight = weight;
+    }
+
+    // Returns the Validator that belongs to this thread, freshly reset.
+    Validator getValidator() {
+      Validator v = validator.get();
+      if (v == null) {
+        v = schema.newValidator();
+        validator.set(v);
+      } else {
+        v.reset();
+      }
+      return v;
+    }
+  }
+
   private static byte[] readAllBytes(InputStream in) throws IOException {
     ByteArrayOutputStream buffer = new ByteArrayOutputStream();
     int nRead;
@@ -176,22 +282,38 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     return (wantFault != null) && Boolean.parseBoolean(wantFault);
   }
 
+  private String getDocumentHandoff(MessageContext msgCtxt) throws Exception {
+    return getSimpleOptionalProperty("document-handoff", msgCtxt);
+  }
+
+  // The name of the variable that holds the XML, for the document handoff.
+  private String getSourceVariable(MessageContext msgCtxt) {
+    String sourceProp = getSourceProperty();
+    Object in = msgCtxt.getVariable(sourceProp);
+    return (in instanceof Message) ? sourceProp + ".content" : sourceProp;
+  }
+
   private boolean useDomSource() {
     String wantDom = (String) this.properties.get("use-dom-source");
     boolean dom = (wantDom != null) && Boolean.parseBoolean(wantDom);
     return dom;
   }
 
-  private static Document getSourceDocument(InputStream in)
-      throws ParserConfigurationException, SAXException, IOException {
-    DocumentBuilderFactory nonThreadSafeFactory = DocumentBuilderFactory.newInstance();
-    nonThreadSafeFactory.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
-    nonThreadSafeFactory.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
-    nonThreadSafeFactory.setFeature(LOAD_EXTERNAL_DTD, false);
-    nonThreadSafeFactory.setNamespaceAware(true);
-    DocumentBuilder builder = nonThreadSafeFactory.newDocumentBuilder();
-    InputSource inputSource = new InputSource(in);
-    return builder.parse(inputSource);
+  private int getMaxErrors(MessageContext msgCtxt) {
+    String maxErrors = (String) this.properties.get("max-errors");
+    if (maxErrors == null || maxErrors.trim().equals("")) {
+      return 0;
+    }
+    maxErrors = resolvePropertyValue(maxErrors.trim(), msgCtxt);
+    try {
+      int n = Integer.parseInt(maxErrors);
+      if (n < 0) {
+        throw new IllegalStateException("configuration error: max-errors must not be negative");
+      }
+      return n;
+    } catch (NumberFormatException exc1) {
+      throw new IllegalStateException("configuration error: max-errors is not a number");
+    }
   }
 
   private InputStream getInputStream(MessageContext msgCtxt) {
@@ -215,14 +337,54 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
   }
 
-  private Source getSource(MessageContext msgCtxt)
+  private static XMLReader newXMLReader() throws ParserConfigurationException, SAXException {
+    SAXParserFactory factory = saxParserFactory.get();
+    return factory.newSAXParser().getXMLReader();
+  }
+
+  // The source is parsed exactly once. For a stream source, the filter records
+  // the root element as the document passes through to the validator. For a
+  // DOM source, the root element is read from the DOM. With a root-path, only
+  // the selected element, and its descendants, are presented to the validator.
+  private Source getSource(InputStream in, RootPath rootPath)
       throws IOException, ParserConfigurationException, SAXException {
-    InputStream in = getInputStream(msgCtxt);
-    return (useDomSource()) ? new DOMSource(getSourceDocument(in)) : new StreamSource(in);
+    if (useDomSource()) {
+      return getSource(XmlUtils.parseXml(in), rootPath);
+    }
+    XMLReader reader = newXMLReader();
+    if (rootPath != null) {
+      reader = new SubtreeFilter(reader, rootPath);
+    }
+    return new SAXSource(new RootElementFilter(reader), new InputSource(in));
+  }
+
+  private static Source getSource(Document doc, RootPath rootPath) {
+    return new DOMSource((rootPath == null) ? doc : rootPath.select(doc));
+  }
+
+  private static Element domSourceElement(DOMSource source) {
+    Node node = source.getNode();
+    return (node instanceof Document) ? ((Document) node).getDocumentElement() : (Element) node;
+  }
+
+  private Map<String, String> getNamespaces(MessageContext msgCtxt) {
+    Map<String, String> namespaces = new HashMap<String, String>();
+    for (String key : this.properties.keySet()) {
+      if (key.startsWith("xmlns:")) {
+        String[] parts = key.split(":", 2);
+        namespaces.put(parts[1], resolvePropertyValue((String) this.properties.get(key), msgCtxt));
+      }
+    }
+    return namespaces;
+  }
+
+  private RootPath getRootPath(MessageContext msgCtxt) throws Exception {
+    String rootPath = getSimpleOptionalProperty("root-path", msgCtxt);
+    return (rootPath == null) ? null : RootPath.parse(rootPath, getNamespaces(msgCtxt));
   }
 
-  private String resolveOneXsd(String xsd, MessageContext msgCtxt)
-      throws java.util.concurrent.ExecutionException {
+  // Resolves the property value to an XSD, or to a reference to one.
+  private String resolveXsdReference(String xsd, MessageContext msgCtxt) {
     if (xsd == null || xsd.equals("")) {
       throw new IllegalStateException("configuration error: xsd resolves to null or empty");
     }
@@ -230,20 +392,97 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     if (xsd == null || xsd.equals("")) {
       throw new IllegalStateException("configuration error: xsd resolves to null or empty");
     }
-    xsd = xsd.trim();
-    return (xsd.startsWith("<")) ? xsd : maybeResolveUrlReference(xsd);
+    return xsd.trim();
+  }
+
+  // Starts retrieving the XSD for the reference, if necessary, and returns
+  // without waiting for a remote XSD.
+  private static CompletableFuture<String> fetchXsd(String ref) {
+    if (ref.startsWith("<")) {
+      return CompletableFuture.completedFuture(ref);
+    }
+    if (ref.startsWith("file://")) {
+      return CompletableFuture.completedFuture(fileResourceCache.get(ref.substring(7)));
+    }
+    Matcher m = urlReferencePattern.matcher(ref);
+    if (m.find()) {
+      return urlResourceCache.get(ref);
+    }
+    return CompletableFuture.completedFuture(ref);
+  }
+
+  private static String awaitXsd(CompletableFuture<String> future, String ref)
+      throws IOException {
+    try {
+      // The connect and read timeouts bound each retrieval. This is a backstop.
+      return future.get(URL_CONNECT_TIMEOUT_MS + URL_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException exc1) {
+      throw new IOException(String.format("timed out retrieving schema from %s", ref));
+    } catch (ExecutionException exc1) {
+      throw new IOException(
+          String.format("could not retrieve schema from %s: %s", ref, exc1.getCause()),
+          exc1.getCause());
+    } catch (InterruptedException exc1) {
+      Thread.currentThread().interrupt();
+      throw new IOException(String.format("interrupted retrieving schema from %s", ref));
+    }
+  }
+
+  // For references from within a schema, made while compiling.
+  private static String fetchUrl(String ref) {
+    try {
+      return awaitXsd(urlResourceCache.get(ref), ref);
+    } catch (IOException exc1) {
+      throw new UncheckedIOException(exc1);
+    }
+  }
+
+  private void verifyRoot(MessageContext msgCtxt, Source source, RootPath rootPath)
+      throws Exception {
+    RootElementFilter rootFilter =
+        (source instanceof SAXSource)
+            ? (RootElementFilter) ((SAXSource) source).getXMLReader()
+            : null;
+    if (rootFilter != null
+        && rootFilter.getParent() instanceof SubtreeFilter
+        && !((SubtreeFilter) rootFilter.getParent()).isFound()) {
+      throw new IllegalStateException(
+          String.format("root-path '%s' matches no element", rootPath));
+    }
+
+    Pair<String, String> requiredRoot = getRequiredRoot(msgCtxt);
+    if (requiredRoot != null) {
+      if (rootFilter != null) {
+        verifyRequiredRoot(
+            requiredRoot.left,
+            requiredRoot.right,
+            rootFilter.getRootLocalName(),
+            rootFilter.getRootNamespaceUri());
+      } else {
+        verifyRequiredRoot(
+            requiredRoot.left, requiredRoot.right, domSourceElement((DOMSource) source));
+      }
+    }
+  }
+
+  protected void verifyRequiredRoot(String expectedName, String expectedNsuri, Element elt) {
+    verifyRequiredRoot(
+        expectedName,
+        expectedNsuri,
+        (elt == null) ? null : elt.getLocalName(),
+        (elt == null) ? null : elt.getNamespaceURI());
   }
 
-  protected void verifyRequiredRoot(String expectedName, String expectedNsuri, Document doc) {
-    Element elt = (Element) doc.getDocumentElement();
+  protected void verifyRequiredRoot(
+      String expectedName, String expectedNsuri, String actualName, String actualNsuri) {
     boolean invalid = false;
-    if (!expectedName.equals(elt.getLocalName())) {
+    if (!expectedName.equals(actualName)) {
       invalid = true;
     } else if ((expectedNsuri == null || expectedNsuri.equals(""))
-        && !(elt.getNamespaceURI() == null || elt.getNamespaceURI().equals(""))) {
+        && !(actualNsuri == null || actualNsuri.equals(""))) {
       invalid = true;
     } else if (expectedNsuri != null
-        && (elt.getNamespaceURI() == null || !elt.getNamespaceURI().equals(expectedNsuri))) {
+        && (actualNsuri == null || !actualNsuri.equals(expectedNsuri))) {
       invalid = true;
     }
     if (invalid) {
@@ -251,7 +490,7 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     }
   }
 
-  private Pair<StreamSource, Map<String, String>> getSchema(MessageContext msgCtxt)
+  private Pair<String, Map<String, String>> getSchema(MessageContext msgCtxt)
       throws Exception {
     // the schema order is unimportant.
     String mainXsd = (String) this.properties.get("schema");
@@ -259,38 +498,133 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
       throw new IllegalStateException("configuration error: no xsd property");
     }
 
-    Map<String, List<Pair<String, ? extends Object>>> splits =
-        this.properties.keySet().stream()
-            .filter(key -> key.startsWith("schema:"))
-            .map(
-                key -> {
-                  String[] parts = key.split(":", 2);
-                  String xsd = (String) this.properties.get(key);
-                  try {
-                    return Pair.of(parts[1], resolveOneXsd(xsd, msgCtxt));
-                  } catch (Exception exc) {
-                    // exc.printStackTrace(System.out);
-                    return Pair.of(parts[1], exc);
-                  }
-                })
-            .collect(
-                Collectors.groupingBy(
-                    x -> (x.right instanceof Exception) ? "exceptions" : "sources"));
+    Map<String, String> dependentRefs = new HashMap<String, String>();
+    for (String key : this.properties.keySet()) {
+      if (key.startsWith("schema:")) {
+        String[] parts = key.split(":", 2);
+        String xsd = (String) this.properties.get(key);
+        dependentRefs.put(parts[1], resolveXsdReference(xsd, msgCtxt));
+      }
+    }
+    String mainRef = resolveXsdReference(mainXsd, msgCtxt);
+
+    // Start all of the retrievals before waiting on any of them, so that on a
+    // cold cache, the remote schemas are retrieved concurrently.
+    Map<String, CompletableFuture<String>> dependents =
+        new HashMap<String, CompletableFuture<String>>();
+    dependentRefs.forEach((location, ref) -> dependents.put(location, fetchXsd(ref)));
+    CompletableFuture<String> main = fetchXsd(mainRef);
+
+    Map<String, String> dependentXsds = null;
+    if (!dependents.isEmpty()) {
+      dependentXsds = new HashMap<String, String>();
+      for (Map.Entry<String, CompletableFuture<String>> entry : dependents.entrySet()) {
+        String location = entry.getKey();
+        dependentXsds.put(location, awaitXsd(entry.getValue(), dependentRefs.get(location)));
+      }
+    }
+    return Pair.of(awaitXsd(main, mainRef), dependentXsds);
+  }
 
-    List<Pair<String, ? extends Object>> exceptions = splits.get("exceptions");
+  // The digest of each of the dependent XSDs, keyed by location.
+  private static Map<String, String> dependencyDigests(
+      Pair<String, Map<String, String>> schemaConfig) {
+    Map<String, String> digests = new TreeMap<String, String>();
+    if (schemaConfig.right != null) {
+      schemaConfig.right.forEach((location, xsd) -> digests.put(location, sha256Hex(xsd)));
+    }
+    return digests;
+  }
 
-    if (exceptions != null && exceptions.size() > 0) {
-      throw (Exception) exceptions.get(0).right;
+  // The URL of the main XSD, or null if it is not retrieved from a URL.
+  private String getMainSchemaUrl(MessageContext msgCtxt) {
+    String mainRef = resolveXsdReference((String) this.properties.get("schema"), msgCtxt);
+    return (urlReferencePattern.matcher(mainRef).find()) ? mainRef : null;
+  }
+
+  // The key for a compiled schema: a digest over the digest of the main XSD,
+  // its URL, against which its references resolve, and the location and
+  // digest of each of the dependent XSDs.
+  private static String schemaCacheKey(
+      String mainXsd, String mainUrl, Map<String, String> digests) {
+    StringBuilder sb = new StringBuilder(sha256Hex(mainXsd));
+    if (mainUrl != null) {
+      sb.append('|').append(mainUrl);
     }
+    digests.forEach(
+        (location, digest) -> sb.append('|').append(location).append('=').append(digest));
+    return (digests.isEmpty() && mainUrl == null) ? sb.toString() : sha256Hex(sb.toString());
+  }
 
-    StreamSource streamSource = new StreamSource(new StringReader(resolveOneXsd(mainXsd, msgCtxt)));
-    if (splits.get("sources") != null) {
-      return Pair.of(
-          streamSource,
-          splits.get("sources").stream()
-              .collect(Collectors.toMap(x -> x.left, x -> (String) x.right)));
+  private static int schemaWeight(Pair<String, Map<String, String>> schemaConfig) {
+    long weight = textWeight("", schemaConfig.left);
+    if (schemaConfig.right != null) {
+      for (Map.Entry<String, String> entry : schemaConfig.right.entrySet()) {
+        weight += textWeight(entry.getKey(), entry.getValue());
+      }
+    }
+    return (int) Math.min(Integer.MAX_VALUE, weight);
+  }
+
+  private static String sha256Hex(String s) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] digest = md.digest(s.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b & 0xff));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every JRE is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Schema compileSchema(
+      Pair<String, Map<String, String>> schemaConfig, String mainUrl) throws SAXException {
+    SchemaFactory notThreadSafeFactory =
+        SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+    // for resolving imports, and also includes. XSDs referenced by URL come
+    // from the cache of retrieved XSDs. The resolver defers to the default
+    // resolution for any reference it does not know.
+    notThreadSafeFactory.setResourceResolver(
+        new CustomResourceResolver(schemaConfig.right, XsdValidatorCallout::fetchUrl));
+    return notThreadSafeFactory.newSchema(
+        new StreamSource(new StringReader(schemaConfig.left), mainUrl));
+  }
+
+  // Returns the compiled Schema, compiling it only if it is not already cached.
+  private CompiledSchema getCompiledSchema(MessageContext msgCtxt) throws Exception {
+    Pair<String, Map<String, String>> schemaConfig = getSchema(msgCtxt);
+    Map<String, String> digests = dependencyDigests(schemaConfig);
+    String mainUrl = getMainSchemaUrl(msgCtxt);
+    boolean[] compiled = new boolean[] {false};
+    try {
+      CompiledSchema compiledSchema =
+          schemaCache.get(
+              schemaCacheKey(schemaConfig.left, mainUrl, digests),
+              k -> {
+                compiled[0] = true;
+                try {
+                  return new CompiledSchema(
+                      compileSchema(schemaConfig, mainUrl), schemaWeight(schemaConfig));
+                } catch (SAXException e) {
+                  throw new CompilationFailure(e);
+                }
+              });
+      msgCtxt.setVariable(varName("schema_cache_hit"), !compiled[0]);
+      return compiledSchema;
+    } catch (CompilationFailure f) {
+      throw (SAXException) f.getCause();
+    }
+  }
+
+  /** Carries a checked compilation exception out of the cache mapping function. */
+  private static final class CompilationFailure extends RuntimeException {
+    CompilationFailure(SAXException cause) {
+      super(cause);
     }
-    return Pair.of(streamSource, null);
   }
 
   private static InputStream getResourceAsStream(String resourceName) throws IOException {
@@ -304,17 +638,6 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     return in;
   }
 
-  private String maybeResolveUrlReference(String ref) throws ExecutionException {
-    if (ref.startsWith("file://")) {
-      return fileResourceCache.get(ref.substring(7, ref.length()));
-    }
-    Matcher m = urlReferencePattern.matcher(ref);
-    if (m.find()) {
-      return urlResourceCache.get(ref);
-    }
-    return ref;
-  }
-
   protected Pair<String, String> getRequiredRoot(MessageContext msgCtxt) throws Exception {
     String requiredRoot = getSimpleOptionalProperty("required-root", msgCtxt);
     if (requiredRoot == null) {
@@ -324,51 +647,74 @@ public class XsdValidatorCallout extends CalloutBase implements Execution {
     return Pair.of(requiredRoot, requiredRootNs);
   }
 
+  private static long weightedSize(Cache<?, ?> cache) {
+    return cache.policy().eviction().get().weightedSize().getAsLong();
+  }
+
+  private void setCacheVariables(MessageContext msgCtxt) {
+    msgCtxt.setVariable(varName("schema_cache_size"), schemaCache.estimatedSize());
+    msgCtxt.setVariable(varName("schema_cache_weight"), weightedSize(schemaCache));
+    msgCtxt.setVariable(
+        varName("schema_cache_evictions"), schemaCache.stats().evictionCount());
+    msgCtxt.setVariable(
+        varName("resource_cache_weight"),
+        weightedSize(fileResourceCache) + weightedSize(urlResourceCache.synchronous()));
+    msgCtxt.setVariable(
+        varName("resource_cache_evictions"),
+        fileResourceCache.stats().evictionCount()
+            + urlResourceCache.synchronous().stats().evictionCount());
+  }
+
   public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt) {
     ExecutionResult calloutResult = ExecutionResult.ABORT;
     CustomValidationErrorHandler errorHandler = null;
     boolean debug = getDebug();
     Validator validator = null;
+    DocumentHandoff handoff = null;
     try {
-      Source source = getSource(msgCtxt);
-      SchemaFactory notThreadSafeFactory =
-          SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-
-      // for resolving imports, and also includes
-      Pair<StreamSource, Map<String, String>> schemaConfig = getSchema(msgCtxt);
-      // if no dependent schema then use the default resolver
-      if (schemaConfig.right != null) {
-        notThreadSafeFactory.setResourceResolver(
-            new CustomResourceResolver(schemaConfig.right, ref -> urlResourceCache.get(ref)));
-      }
-
-      Schema schema = notThreadSafeFactory.newSchema(schemaConfig.left);
-      validator = schema.newValidator();
-      errorHandler = new CustomValidationErrorHandler(msgCtxt, validator, debug);
+      RootPath rootPath = getRootPath(msgCtxt);
+      handoff = new DocumentHandoff(msgCtxt, getDocumentHandoff(msgCtxt));
+      Source source =
+          (handoff.isEnabled())
+              ? getSource(handoff.getDocument(getSourceVariable(msgCtxt)), rootPath)
+              : getSource(getInputStream(msgCtxt), rootPath);
+      validator = getCompiledSchema(msgCtxt).getValidator();
+      errorHandler =
+          new CustomValidationErrorHandler(msgCtxt, validator, debug, getMaxErrors(msgCtxt));
       validator.setErrorHandler(errorHandler);
-      validator.validate(source);
-
-      msgCtxt.setVariable(varName("valid"), errorHandler.isValid());
+      try {
+        validator.validate(source);
+      } catch (CustomValidationErrorHandler.ErrorLimitExceededException ex) {
+        // The document is invalid; that is not a failure of the callout.
+      }
 
-      Pair<String, String> requiredRoot = getRequiredRoot(msgCtxt);
-      if (requiredRoot != null) {
-        verifyRequiredRoot(
-            requiredRoot.left, requiredRoot.right, getSourceDocument(getInputStream(msgCtxt)));
+      // The checks of the root apply only to a document that was read through.
+      if (!errorHandler.isAborted()) {
+        verifyRoot(msgCtxt, source, rootPath);
       }
+      msgCtxt.setVariable(varName("valid"), errorHandler.isValid());
 
+      handoff.release();
       calloutResult =
           (errorHandler.isValid() || !wantFaultOnInvalid())
               ? ExecutionResult.SUCCESS
               : ExecutionResult.ABORT;
 
     } catch (Exception ex) {
+      if (handoff != null) {
+        handoff.abandon();
+      }
       msgCtxt.setVariable(varName("valid"), false);
       if (debug) {
         msgCtxt.setVariable(varName("stacktrace"), getStackTraceAsString(ex));
       }
       setExceptionVariables(ex, msgCtxt);
     } finally {
+      setCacheVariables(msgCtxt);
       if (errorHandler != null) {
+        msgCtxt.setVariable(varName("error_count"), errorHandler.getErrorCount());
+        msgCtxt.setVariable(varName("warning_count"), errorHandler.getWarningCount());
+        msgCtxt.setVariable(varName("validation_aborted"), errorHandler.isAborted());
         String consolidatedExceptionMessage = errorHandler.getConsolidatedExceptionMessage();
         if (consolidatedExceptionMessage != null) {
           msgCtxt.setVariable(varName("validation_exceptions"), consolidatedExceptionMessage);
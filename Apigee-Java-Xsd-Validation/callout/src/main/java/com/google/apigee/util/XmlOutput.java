@@ -0,0 +1,144 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.util;
+
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * The destination for serialized XML: a context variable. When the variable is the content of a
+ * message, like message.content or request.content, the serializer writes UTF-8 bytes, and those
+ * bytes become the content of the message, without an intermediate String. Otherwise, the
+ * serializer writes a String, which is set into the variable.
+ *
+ * <p>The bytes are written directly only if the message declares no charset, or declares UTF-8;
+ * for any other charset, the message is given a String, as before, to encode as it does.
+ *
+ * <p>On request, the output also computes a SHA-256 digest of the UTF-8 form of the XML as it is
+ * written, so that the document handoff can fingerprint the XML without reading it back.
+ */
+public class XmlOutput {
+  private static final Pattern charsetPattern =
+      Pattern.compile(";\\s*charset\\s*=\\s*\"?([^\";\\s]+)", Pattern.CASE_INSENSITIVE);
+
+  private final MessageContext msgCtxt;
+  private final String variable;
+  private final Message message; // null if the XML is set into the variable as a String
+  private final ContentOutputStream bytes;
+  private final StringWriter chars;
+  private final MessageDigest digest; // null if no digest is wanted
+
+  private XmlOutput(MessageContext msgCtxt, String variable, Message message, boolean digest) {
+    this.msgCtxt = msgCtxt;
+    this.variable = variable;
+    this.message = message;
+    this.bytes = (message != null) ? new ContentOutputStream() : null;
+    this.chars = (message != null) ? null : new StringWriter();
+    this.digest = digest ? newDigest() : null;
+  }
+
+  public static XmlOutput forVariable(MessageContext msgCtxt, String variable) {
+    return new XmlOutput(msgCtxt, variable, getUtf8Message(msgCtxt, variable), false);
+  }
+
+  /** Like forVariable, and also computes the digest of the XML. */
+  public static XmlOutput forVariableWithDigest(MessageContext msgCtxt, String variable) {
+    return new XmlOutput(msgCtxt, variable, getUtf8Message(msgCtxt, variable), true);
+  }
+
+  /** The Result into which to serialize the XML. */
+  public StreamResult getResult() {
+    if (message == null) {
+      return new StreamResult(chars);
+    }
+    return new StreamResult((digest != null) ? new DigestOutputStream(bytes, digest) : bytes);
+  }
+
+  /** Sets the serialized XML as the content of the message, or into the variable. */
+  public void commit() {
+    if (message != null) {
+      message.setContent(bytes.toInputStream());
+    } else {
+      String xml = chars.toString();
+      if (digest != null) {
+        digest.update(xml.getBytes(StandardCharsets.UTF_8));
+      }
+      msgCtxt.setVariable(variable, xml);
+    }
+  }
+
+  /** The SHA-256 digest of the UTF-8 form of the XML, after commit. */
+  public byte[] getDigest() {
+    return digest.digest();
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Returns the Message whose content is the variable, or null if the variable
+  // is not the content of a message, or if the message uses a charset other
+  // than UTF-8.
+  private static Message getUtf8Message(MessageContext msgCtxt, String variable) {
+    if (!variable.endsWith(".content")) {
+      return null;
+    }
+    String messageVariable = variable.substring(0, variable.length() - ".content".length());
+    Object o =
+        (messageVariable.equals("message"))
+            ? msgCtxt.getMessage()
+            : msgCtxt.getVariable(messageVariable);
+    if (!(o instanceof Message)) {
+      return null;
+    }
+    Message message = (Message) o;
+    return isUtf8(message.getHeader("Content-Type")) ? message : null;
+  }
+
+  private static boolean isUtf8(String contentType) {
+    if (contentType == null) return true;
+    Matcher m = charsetPattern.matcher(contentType);
+    if (!m.find()) return true;
+    String charset = m.group(1);
+    return charset.equalsIgnoreCase("utf-8") || charset.equalsIgnoreCase("utf8");
+  }
+
+  static final class ContentOutputStream extends ByteArrayOutputStream {
+    ContentOutputStream() {
+      super(8192);
+    }
+
+    // reads the bytes in place, without a copy.
+    InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+}
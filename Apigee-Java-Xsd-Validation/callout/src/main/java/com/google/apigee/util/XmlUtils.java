@@ -0,0 +1,85 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+public class XmlUtils {
+
+  // Each thread keeps one DocumentBuilder, configured once, and resets it
+  // before each use, rather than looking up a factory for each request.
+  private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+  // Nor is a Transformer thread-safe. An identity Transformer can be re-used after reset().
+  private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
+
+  private static DocumentBuilder getBuilder() throws ParserConfigurationException {
+    DocumentBuilder builder = builders.get();
+    if (builder == null) {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+      factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+      factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      factory.setNamespaceAware(true);
+      builder = factory.newDocumentBuilder();
+      builders.set(builder);
+    } else {
+      builder.reset();
+    }
+    return builder;
+  }
+
+  public static Document parseXml(InputStream in)
+      throws IOException, SAXException, ParserConfigurationException {
+    return getBuilder().parse(new InputSource(in));
+  }
+
+  public static Document parseXml(String s)
+      throws IOException, SAXException, ParserConfigurationException {
+    return getBuilder().parse(new InputSource(new StringReader(s)));
+  }
+
+  /**
+   * Serializes the document, without an XML declaration, into the result. For a StreamResult with
+   * an OutputStream, the serializer writes UTF-8 bytes.
+   */
+  public static void serialize(Document doc, boolean pretty, Result result)
+      throws TransformerException {
+    Transformer transformer = transformers.get();
+    if (transformer == null) {
+      transformer = TransformerFactory.newInstance().newTransformer();
+      transformers.set(transformer);
+    } else {
+      transformer.reset();
+    }
+    transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+    // reset() does not restore the output properties in every JDK, so set both each time.
+    transformer.setOutputProperty(OutputKeys.INDENT, pretty ? "yes" : "no");
+    transformer.transform(new DOMSource(doc), result);
+  }
+}
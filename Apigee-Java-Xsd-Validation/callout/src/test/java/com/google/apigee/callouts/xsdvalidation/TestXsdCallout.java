@@ -20,23 +20,37 @@ import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.apigee.util.DocumentHandoff;
+import com.google.apigee.util.XmlUtils;
+import com.sun.net.httpserver.HttpServer;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import mockit.Mock;
 import mockit.MockUp;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import org.w3c.dom.Document;
 
 public class TestXsdCallout {
   private static final String testDataDir = "src/test/resources/test-data";
@@ -276,6 +290,214 @@ public class TestXsdCallout {
     System.out.println("=========================================================");
   }
 
+  @Test
+  public void test3_CompiledSchemaIsReused() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "inputVar");
+    props.put("schema", "{myxsd}");
+    messageContext.setVariable(
+        "myxsd", resolveFileReference("file://schema-for-purchase-order.xsd"));
+
+    String[] inputs = {
+      "purchase-order.xml", "purchase-order-modified-billto-invalid.xml", "purchase-order.xml"
+    };
+    boolean[] expectedValidity = {true, false, true};
+    for (int i = 0; i < inputs.length; i++) {
+      messageContext.setVariable("inputVar", resolveFileReference("file://" + inputs[i]));
+      XsdValidatorCallout callout = new XsdValidatorCallout(props);
+      ExecutionResult actualResult = callout.execute(messageContext, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, inputs[i]);
+      boolean actualValidity = messageContext.getVariable("xsd_valid");
+      Assert.assertEquals(actualValidity, expectedValidity[i], inputs[i] + ": validity");
+      if (i > 0) {
+        Assert.assertEquals(
+            messageContext.getVariable("xsd_schema_cache_hit"), Boolean.TRUE, inputs[i]);
+      }
+    }
+    // The compiled schema is counted against the memory budget.
+    long schemaWeight = messageContext.getVariable("xsd_schema_cache_weight");
+    Assert.assertTrue(schemaWeight > 0, "schema cache weight");
+    Assert.assertTrue(
+        schemaWeight <= XsdValidatorCallout.SCHEMA_CACHE_MAX_BYTES, "schema cache budget");
+  }
+
+  @Test
+  public void test4_IncludedSchemaAtAnyLocation() throws Exception {
+    String parent = resolveFileReference("file://w3c-include-parent.xsd");
+    String child = resolveFileReference("file://w3c-include-child.xsd");
+    // Two distinct schema sets, which include the same child, from different locations.
+    String[][] configs = {
+      {"<!-- one -->\n" + parent, "w3c-include-child.xsd"},
+      {
+        "<!-- another -->\n" + parent.replace("w3c-include-child.xsd", "common/child.xsd"),
+        "common/child.xsd"
+      }
+    };
+    messageContext.setVariable("inputVar", resolveFileReference("file://echoInclude.xml"));
+    messageContext.setVariable("xsd_child", child);
+    for (String[] config : configs) {
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("source", "inputVar");
+      props.put("schema", "{xsd_parent}");
+      props.put("schema:" + config[1], "{xsd_child}");
+      messageContext.setVariable("xsd_parent", config[0]);
+      XsdValidatorCallout callout = new XsdValidatorCallout(props);
+      ExecutionResult actualResult = callout.execute(messageContext, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, config[1]);
+      Assert.assertEquals(
+          messageContext.getVariable("xsd_schema_cache_hit"), Boolean.FALSE, config[1]);
+      boolean actualValidity = messageContext.getVariable("xsd_valid");
+      Assert.assertTrue(actualValidity, config[1] + ": validity");
+    }
+  }
+
+  @Test
+  public void test5_RemoteSchemasAreRetrievedConcurrently() throws Exception {
+    Map<String, String> schemas = new HashMap<String, String>();
+    schemas.put("/parent.xsd", resolveFileReference("file://w3c-include-parent.xsd"));
+    schemas.put("/child.xsd", resolveFileReference("file://w3c-include-child.xsd"));
+    // Each request waits until both have arrived. Retrieved one after the
+    // other, the first would wait until the latch times out.
+    CountDownLatch arrived = new CountDownLatch(schemas.size());
+    AtomicBoolean concurrent = new AtomicBoolean(true);
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext(
+        "/",
+        exchange -> {
+          arrived.countDown();
+          try {
+            if (!arrived.await(3, TimeUnit.SECONDS)) {
+              concurrent.set(false);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          byte[] body =
+              schemas.get(exchange.getRequestURI().getPath()).getBytes(StandardCharsets.UTF_8);
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+          exchange.close();
+        });
+    server.start();
+    try {
+      String base = "http://127.0.0.1:" + server.getAddress().getPort();
+      Map<String, String> props = new HashMap<String, String>();
+      props.put("source", "inputVar");
+      props.put("schema", base + "/parent.xsd");
+      props.put("schema:w3c-include-child.xsd", base + "/child.xsd");
+      messageContext.setVariable("inputVar", resolveFileReference("file://echoInclude.xml"));
+      XsdValidatorCallout callout = new XsdValidatorCallout(props);
+      ExecutionResult actualResult = callout.execute(messageContext, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+      boolean actualValidity = messageContext.getVariable("xsd_valid");
+      Assert.assertTrue(actualValidity, "validity");
+      Assert.assertTrue(concurrent.get(), "schemas were not retrieved concurrently");
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void test6_RelativeReferencesInRemoteSchemas() throws Exception {
+    Map<String, String> schemas = new HashMap<String, String>();
+    schemas.put("/xsd/parent.xsd", resolveFileReference("file://w3c-include-parent.xsd"));
+    schemas.put("/xsd/w3c-include-child.xsd", resolveFileReference("file://w3c-include-child.xsd"));
+    Map<String, AtomicInteger> requests = new HashMap<String, AtomicInteger>();
+    schemas.keySet().forEach(path -> requests.put(path, new AtomicInteger()));
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          String path = exchange.getRequestURI().getPath();
+          String schema = schemas.get(path);
+          if (schema == null) {
+            exchange.sendResponseHeaders(404, -1);
+          } else {
+            requests.get(path).incrementAndGet();
+            byte[] body = schema.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+              out.write(body);
+            }
+          }
+          exchange.close();
+        });
+    server.start();
+    try {
+      String base = "http://127.0.0.1:" + server.getAddress().getPort();
+      // The parent includes the child by a relative location, which resolves
+      // against the URL of the parent: when the parent is the main schema, and
+      // when it is itself included by URL.
+      String[] mainSchemas = {
+        base + "/xsd/parent.xsd",
+        "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'"
+            + " targetNamespace='http://www.w3.org/2002/ws/databinding/examples/6/09/'"
+            + " elementFormDefault='qualified'>"
+            + "<xs:include schemaLocation='"
+            + base
+            + "/xsd/parent.xsd'/></xs:schema>"
+      };
+      messageContext.setVariable("inputVar", resolveFileReference("file://echoInclude.xml"));
+      for (String mainSchema : mainSchemas) {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put("source", "inputVar");
+        props.put("schema", "{xsd_main}");
+        messageContext.setVariable("xsd_main", mainSchema);
+        XsdValidatorCallout callout = new XsdValidatorCallout(props);
+        ExecutionResult actualResult = callout.execute(messageContext, exeCtxt);
+        Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, mainSchema);
+        Assert.assertNull(messageContext.getVariable("xsd_exception"), mainSchema);
+        boolean actualValidity = messageContext.getVariable("xsd_valid");
+        Assert.assertTrue(actualValidity, mainSchema + ": validity");
+      }
+      // each is retrieved once, and then taken from the cache
+      Assert.assertEquals(requests.get("/xsd/parent.xsd").get(), 1, "parent");
+      Assert.assertEquals(requests.get("/xsd/w3c-include-child.xsd").get(), 1, "child");
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void test7_HandoffIsReleasedWhenValidationStopsAtMaxErrors() throws Exception {
+    String xml = resolveFileReference("file://purchase-order-many-errors.xml");
+    messageContext.setVariable("inputVar", xml);
+    messageContext.setVariable(
+        "myxsd", resolveFileReference("file://schema-for-purchase-order.xsd"));
+
+    // a Document handed off by a prior callout, with a deferred change
+    Document doc = XmlUtils.parseXml(xml);
+    doc.getDocumentElement().appendChild(doc.createComment("deferred"));
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    messageContext.setVariable(DocumentHandoff.DOCUMENT_VARIABLE, doc);
+    messageContext.setVariable(DocumentHandoff.SOURCE_VARIABLE, "inputVar");
+    messageContext.setVariable(
+        DocumentHandoff.FINGERPRINT_VARIABLE,
+        Base64.getEncoder().encodeToString(md.digest(xml.getBytes(StandardCharsets.UTF_8))));
+    messageContext.setVariable(DocumentHandoff.PENDING_VARIABLE, true);
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("source", "inputVar");
+    props.put("schema", "{myxsd}");
+    props.put("max-errors", "2");
+    props.put("document-handoff", "final");
+    XsdValidatorCallout callout = new XsdValidatorCallout(props);
+    ExecutionResult actualResult = callout.execute(messageContext, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS);
+    Assert.assertEquals(messageContext.getVariable("xsd_validation_aborted"), Boolean.TRUE);
+    boolean actualValidity = messageContext.getVariable("xsd_valid");
+    Assert.assertFalse(actualValidity, "validity");
+
+    // The deferred change is serialized, and the handoff ends.
+    String output = messageContext.getVariable("inputVar");
+    Assert.assertTrue(output.contains("<!--deferred-->"), output);
+    Assert.assertNull(messageContext.getVariable(DocumentHandoff.DOCUMENT_VARIABLE));
+    Assert.assertNull(messageContext.getVariable(DocumentHandoff.PENDING_VARIABLE));
+  }
+
   public static int countLines(String str) {
     if (str == null || str.isEmpty()) return 0;
     int lines = 1;
@@ -14,6 +14,10 @@
 //
 package com.google.apigee.callouts.xslt;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.google.apigee.util.CalloutUtil;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -21,35 +25,188 @@ import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamSource;
 
 public class CustomTransformerFactory {
+  // The budget for compiled stylesheets held in memory. The size of a compiled
+  // stylesheet is not directly measurable, so each is weighed by the size of
+  // its source. Set the system property to change the budget for the JVM.
+  protected static final long TEMPLATES_CACHE_MAX_BYTES =
+      CalloutUtil.getByteBudget(
+          "com.google.apigee.callouts.xslt.templatesCacheMaxBytes", 64L * 1024 * 1024);
+
+  // Compiled stylesheets, keyed by engine plus a digest of the resolved xslt
+  // (the stylesheet text, a URL, or a resource name). Templates objects are
+  // thread-safe, so a single instance is shared across concurrent requests;
+  // each request obtains its own lightweight Transformer from it.
+  private static final Cache<String, Stylesheet> templatesCache =
+      Caffeine.newBuilder()
+          .maximumWeight(TEMPLATES_CACHE_MAX_BYTES)
+          .weigher((String key, Stylesheet value) -> value.weight)
+          .expireAfterAccess(10, TimeUnit.MINUTES)
+          .recordStats()
+          .build();
+
+  // TransformerFactory instances are not thread-safe, so each thread keeps its
+  // own, one per engine. These are used only to wrap already-compiled
+  // Templates as TransformerHandlers, for multi-stage pipelines.
+  private static final ThreadLocal<Map<String, SAXTransformerFactory>> saxFactories =
+      ThreadLocal.withInitial(HashMap::new);
 
   private CustomTransformerFactory() {}
 
-  /** This creates a Transformer if not already present in the pool. */
-  public static Transformer createTransformer(String key) throws Exception {
-    Transformer t = null;
-    String[] parts = key.split("-", 2);
-    String engine = parts[0];
-    String xslt = parts[1];
+  /**
+   * A compiled stylesheet, along with the parsed lookup documents that transforms using it have
+   * loaded via the document() function.
+   */
+  static final class Stylesheet {
+    final Templates templates;
+    final Cache<String, LookupDocumentResolver.LookupDocument> lookupDocuments;
+    final int weight;
+
+    Stylesheet(Templates templates, int weight) {
+      this.templates = templates;
+      this.weight = weight;
+      this.lookupDocuments = LookupDocumentResolver.newDocumentCache();
+    }
+  }
+
+  /** The outcome of a lookup in the cache of compiled stylesheets. */
+  public static final class CompiledXslt {
+    private final Templates templates;
+    private final Cache<String, LookupDocumentResolver.LookupDocument> lookupDocuments;
+    private final boolean cacheHit;
+    private final long compileTimeMillis;
+
+    CompiledXslt(Stylesheet stylesheet, boolean cacheHit, long compileTimeMillis) {
+      this.templates = stylesheet.templates;
+      this.lookupDocuments = stylesheet.lookupDocuments;
+      this.cacheHit = cacheHit;
+      this.compileTimeMillis = compileTimeMillis;
+    }
+
+    public Templates getTemplates() {
+      return templates;
+    }
+
+    public boolean isCacheHit() {
+      return cacheHit;
+    }
+
+    public long getCompileTimeMillis() {
+      return compileTimeMillis;
+    }
+
+    /**
+     * Creates a new TransformerHandler from the compiled stylesheet, to act as one stage in a
+     * pipeline of SAX handlers.
+     */
+    public TransformerHandler newTransformerHandler(String engine)
+        throws TransformerConfigurationException {
+      TransformerHandler handler =
+          getSAXTransformerFactory(engine).newTransformerHandler(templates);
+      setURIResolver(handler.getTransformer());
+      return handler;
+    }
+
+    /** Creates a new Transformer from the compiled stylesheet. Cheap, relative to compiling. */
+    public Transformer newTransformer() throws TransformerConfigurationException {
+      Transformer t = templates.newTransformer();
+      setURIResolver(t);
+      return t;
+    }
+
+    private void setURIResolver(Transformer t) {
+      t.setURIResolver(
+          new LookupDocumentResolver(
+              lookupDocuments, t, new DataURIResolver(t.getURIResolver())));
+    }
+  }
+
+  /**
+   * Returns the compiled form of the given stylesheet, compiling it only if it is not already
+   * present in the cache.
+   */
+  public static CompiledXslt getCompiledXslt(String engine, String xslt) throws Exception {
+    String key = engine + "-" + CalloutUtil.sha256Hex(xslt);
+    boolean[] compiled = new boolean[] {false};
+    long start = System.nanoTime();
+    try {
+      Stylesheet stylesheet =
+          templatesCache.get(
+              key,
+              k -> {
+                compiled[0] = true;
+                try {
+                  return new Stylesheet(
+                      compileTemplates(engine, xslt), CalloutUtil.textWeight(k, xslt));
+                } catch (Exception e) {
+                  throw new CompilationFailure(e);
+                }
+              });
+      long elapsed =
+          (compiled[0]) ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) : 0L;
+      return new CompiledXslt(stylesheet, !compiled[0], elapsed);
+    } catch (CompilationFailure f) {
+      throw (Exception) f.getCause();
+    }
+  }
+
+  /** This creates a Transformer, compiling the stylesheet only if it is not already cached. */
+  public static Transformer createTransformer(String engine, String xslt) throws Exception {
+    return getCompiledXslt(engine, xslt).newTransformer();
+  }
+
+  /** Returns a SAXTransformerFactory for the engine, for use only by the current thread. */
+  public static SAXTransformerFactory getSAXTransformerFactory(String engine)
+      throws TransformerConfigurationException {
+    Map<String, SAXTransformerFactory> factories = saxFactories.get();
+    SAXTransformerFactory factory = factories.get(engine);
+    if (factory == null) {
+      TransformerFactory tf = TransformerFactory.newInstance(engine, null);
+      if (!tf.getFeature(SAXTransformerFactory.FEATURE)) {
+        throw new TransformerConfigurationException(
+            "the XSLT engine does not support SAX pipelines: " + engine);
+      }
+      factory = (SAXTransformerFactory) tf;
+      factories.put(engine, factory);
+    }
+    return factory;
+  }
+
+  public static CacheStats getCacheStats() {
+    return templatesCache.stats();
+  }
+
+  public static long getCacheSize() {
+    return templatesCache.estimatedSize();
+  }
+
+  /** The total weight, in approximate bytes, of the compiled stylesheets in the cache. */
+  public static long getCacheWeight() {
+    return templatesCache.policy().eviction().get().weightedSize().getAsLong();
+  }
+
+  private static Templates compileTemplates(String engine, String xslt) throws Exception {
     TransformerFactory tf = TransformerFactory.newInstance(engine, null);
     SimpleErrorListener errorListener = new SimpleErrorListener();
-    // This handles errors that occur when creating the transformer. Eg, XSL malformed.
+    // This handles errors that occur when compiling the stylesheet. Eg, XSL malformed.
     tf.setErrorListener(errorListener);
     try {
       Source xsltSource = convertXsltToSource(xslt);
-      t = tf.newTransformer(xsltSource);
-      t.setURIResolver(new DataURIResolver(t.getURIResolver()));
-      // if (t instanceof net.sf.saxon.jaxp.TransformerImpl) {
-      //     net.sf.saxon.Controller c = t.getUnderlyingController();
-      //     // c.setMessageEmitter(Receiver r);
-      // }
+      return tf.newTemplates(xsltSource);
     } catch (javax.xml.transform.TransformerConfigurationException tce1) {
       if (errorListener.getXsltError() != null) {
         throw new TransformerCreationException(
@@ -58,7 +215,13 @@ public class CustomTransformerFactory {
         throw tce1;
       }
     }
-    return t;
+  }
+
+  /** Carries a checked compilation exception out of the cache mapping function. */
+  private static final class CompilationFailure extends RuntimeException {
+    CompilationFailure(Exception cause) {
+      super(cause);
+    }
   }
 
   private static InputStream getResourceAsStream(String resourceName) throws IOException {
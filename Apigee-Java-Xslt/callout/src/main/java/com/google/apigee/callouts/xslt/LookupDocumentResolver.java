@@ -0,0 +1,267 @@
+// Copyright 2015-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXSource;
+import org.xml.sax.InputSource;
+
+/**
+ * A URIResolver that shares lookup documents, as referenced by the document() function in a
+ * stylesheet, across transforms.
+ *
+ * <p>It handles http:// and https:// hrefs, which are fetched via the RemoteResourceLoader, and
+ * file://name hrefs that name an XML resource embedded in the jar under /resources. Other hrefs,
+ * including file:/// URIs and file:// hrefs that name no embedded resource, are delegated to the
+ * wrapped resolver.
+ *
+ * <p>With Saxon, the cached document is a Saxon tree, built with the Configuration of the compiled
+ * stylesheet. Saxon trees are immutable, and safe to share. A DOM is not safe to share, even for
+ * reads, so with other engines the cache holds the text of the document, and each transform gets
+ * a fresh Source for it.
+ */
+public class LookupDocumentResolver implements URIResolver {
+  private static final String EXTERNAL_GENERAL_ENTITIES =
+      "http://xml.org/sax/features/external-general-entities";
+  private static final String EXTERNAL_PARAMETER_ENTITIES =
+      "http://xml.org/sax/features/external-parameter-entities";
+  private static final String LOAD_EXTERNAL_DTD =
+      "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+  private static final String urlReferencePatternString = "^(https?://)(.+)$";
+  private static final Pattern urlReferencePattern = Pattern.compile(urlReferencePatternString);
+  private static final String RESOURCE_DIR = "resources/";
+
+  // The raw bytes of the XML resources embedded in the jar, loaded once, at class init.
+  private static final Map<String, byte[]> jarResources = new ConcurrentHashMap<String, byte[]>();
+
+  // A SAXParserFactory is not guaranteed to be thread-safe, so each thread
+  // keeps its own, configured once.
+  private static final ThreadLocal<SAXParserFactory> saxParserFactory =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              SAXParserFactory factory = SAXParserFactory.newInstance();
+              factory.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+              factory.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+              factory.setFeature(LOAD_EXTERNAL_DTD, false);
+              factory.setNamespaceAware(true);
+              return factory;
+            } catch (Exception exc1) {
+              throw new IllegalStateException(exc1);
+            }
+          });
+
+  static {
+    try {
+      loadJarResources();
+    } catch (Exception exc1) {
+      // gulp; resources will be loaded on first reference instead
+    }
+  }
+
+  /**
+   * A cached lookup document: a Saxon tree, which can be shared as is, or the text of the
+   * document, from which each transform gets its own Source.
+   */
+  static final class LookupDocument {
+    private final Source tree;
+    private final String content;
+    private final String systemId;
+
+    LookupDocument(Source tree, String content, String systemId) {
+      this.tree = tree;
+      this.content = content;
+      this.systemId = systemId;
+    }
+
+    Source newSource() throws Exception {
+      return (tree != null) ? tree : newSAXSource(content, systemId);
+    }
+  }
+
+  // A Source that parses the content with a parser that resolves no external
+  // entities or DTDs.
+  private static SAXSource newSAXSource(String content, String systemId) throws Exception {
+    InputSource inputSource = new InputSource(new StringReader(content));
+    inputSource.setSystemId(systemId);
+    return new SAXSource(saxParserFactory.get().newSAXParser().getXMLReader(), inputSource);
+  }
+
+  private final Cache<String, LookupDocument> documentCache;
+  private final Transformer transformer;
+  private final URIResolver orig;
+
+  /** Creates a cache suitable for holding the lookup documents for one compiled stylesheet. */
+  public static Cache<String, LookupDocument> newDocumentCache() {
+    return Caffeine.newBuilder()
+        .maximumSize(64)
+        .expireAfterWrite(5, TimeUnit.MINUTES)
+        .build();
+  }
+
+  public LookupDocumentResolver(
+      Cache<String, LookupDocument> documentCache, Transformer transformer, URIResolver orig) {
+    this.documentCache = documentCache;
+    this.transformer = transformer;
+    this.orig = orig;
+  }
+
+  @Override
+  public Source resolve(String href, String base) throws TransformerException {
+    // file://name refers to a resource in the jar, as it does for the xslt
+    // property. file:///path is a real file URI.
+    boolean isResource = href.startsWith("file://") && !href.startsWith("file:///");
+    if (isResource) {
+      if (!hasJarResource(href.substring(7))) {
+        return orig.resolve(href, base);
+      }
+    } else if (!urlReferencePattern.matcher(href).find()) {
+      return orig.resolve(href, base);
+    }
+    try {
+      LookupDocument cached = documentCache.getIfPresent(href);
+      if (cached == null) {
+        String content =
+            (isResource)
+                ? new String(getJarResource(href.substring(7)), StandardCharsets.UTF_8)
+                : XsltCallout.urlResourceLoader.get(href);
+        cached = documentCache.asMap().computeIfAbsent(href, k -> load(content, k));
+      }
+      return cached.newSource();
+    } catch (Exception exc1) {
+      throw new TransformerException("cannot resolve document " + href, exc1);
+    }
+  }
+
+  private LookupDocument load(String content, String systemId) {
+    if (transformer instanceof net.sf.saxon.Controller) {
+      try {
+        net.sf.saxon.Configuration config =
+            ((net.sf.saxon.Controller) transformer).getConfiguration();
+        Source tree = config.buildDocument(newSAXSource(content, systemId));
+        return new LookupDocument(tree, null, systemId);
+      } catch (Exception exc1) {
+        throw new IllegalStateException("cannot parse document " + systemId, exc1);
+      }
+    }
+    return new LookupDocument(null, content, systemId);
+  }
+
+  private static String resourceName(String name) {
+    if (name.startsWith("/")) {
+      name = name.substring(1);
+    }
+    if (name.startsWith(RESOURCE_DIR)) {
+      name = name.substring(RESOURCE_DIR.length());
+    }
+    return name;
+  }
+
+  private static boolean hasJarResource(String name) {
+    name = resourceName(name);
+    return jarResources.containsKey(name)
+        || LookupDocumentResolver.class.getResource("/" + RESOURCE_DIR + name) != null;
+  }
+
+  private static byte[] getJarResource(String name) throws IOException {
+    name = resourceName(name);
+    byte[] bytes = jarResources.get(name);
+    if (bytes == null) {
+      // not found at class init; try once more, directly
+      try (InputStream in =
+          LookupDocumentResolver.class.getResourceAsStream("/" + RESOURCE_DIR + name)) {
+        if (in == null) {
+          throw new IOException("resource \"/" + RESOURCE_DIR + name + "\" not found");
+        }
+        bytes = readAllBytes(in);
+      }
+      jarResources.put(name, bytes);
+    }
+    return bytes;
+  }
+
+  // Reads all of the XML resources in the /resources directory of the jar (or
+  // classes directory) from which this class was loaded.
+  private static void loadJarResources() throws Exception {
+    URL location =
+        LookupDocumentResolver.class.getProtectionDomain().getCodeSource().getLocation();
+    File file = new File(location.toURI());
+    if (file.isDirectory()) {
+      Path dir = file.toPath().resolve(RESOURCE_DIR);
+      if (Files.isDirectory(dir)) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+          paths
+              .filter(p -> p.toString().endsWith(".xml") && Files.isRegularFile(p))
+              .forEach(
+                  p -> {
+                    try {
+                      String name =
+                          dir.relativize(p).toString().replace(File.separatorChar, '/');
+                      jarResources.put(name, Files.readAllBytes(p));
+                    } catch (IOException exc1) {
+                      // gulp
+                    }
+                  });
+        }
+      }
+      return;
+    }
+    try (JarFile jar = new JarFile(file)) {
+      Enumeration<JarEntry> entries = jar.entries();
+      while (entries.hasMoreElements()) {
+        JarEntry entry = entries.nextElement();
+        String name = entry.getName();
+        if (!entry.isDirectory() && name.startsWith(RESOURCE_DIR) && name.endsWith(".xml")) {
+          try (InputStream in = jar.getInputStream(entry)) {
+            jarResources.put(name.substring(RESOURCE_DIR.length()), readAllBytes(in));
+          }
+        }
+      }
+    }
+  }
+
+  private static byte[] readAllBytes(InputStream in) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    int nRead;
+    byte[] data = new byte[2048];
+    while ((nRead = in.read(data, 0, data.length)) != -1) {
+      buffer.write(data, 0, nRead);
+    }
+    return buffer.toByteArray();
+  }
+}
@@ -0,0 +1,266 @@
+// Copyright 2015-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+package com.google.apigee.callouts.xslt;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.apigee.util.CalloutUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads and caches resources, like stylesheets and parameter values, from http:// and https://
+ * URLs.
+ *
+ * <p>Each fetch uses connect and read timeouts. Once an entry is older than the refresh interval,
+ * the next access returns the cached copy immediately, and triggers a refresh in the background.
+ * The refresh uses a conditional GET (If-None-Match / If-Modified-Since), so an unchanged resource
+ * is neither downloaded again nor, because its content is unchanged, recompiled. If the refresh
+ * fails, the stale copy continues to be served until it reaches the maximum stale age. A failed
+ * initial fetch is cached as a negative entry for only a short time.
+ */
+public class RemoteResourceLoader {
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final LoadingCache<String, Resource> cache;
+  private final LongAdder fetchCount = new LongAdder();
+  private final LongAdder notModifiedCount = new LongAdder();
+  private final LongAdder failureCount = new LongAdder();
+
+  /** A cached remote resource, or a cached failure to fetch it. */
+  static final class Resource {
+    final String content;
+    final String etag;
+    final String lastModified;
+    final String failure;
+    final boolean stale;
+
+    private Resource(
+        String content, String etag, String lastModified, String failure, boolean stale) {
+      this.content = content;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.failure = failure;
+      this.stale = stale;
+    }
+
+    static Resource of(String content, String etag, String lastModified) {
+      return new Resource(content, etag, lastModified, null, false);
+    }
+
+    static Resource failed(String failure) {
+      return new Resource(null, null, null, failure, false);
+    }
+
+    boolean isFailure() {
+      return failure != null;
+    }
+
+    // a copy of this resource, which has been revalidated
+    Resource revalidated() {
+      return new Resource(content, etag, lastModified, null, false);
+    }
+
+    // a copy of this resource, for which revalidation failed
+    Resource asStale() {
+      return new Resource(content, etag, lastModified, null, true);
+    }
+  }
+
+  /**
+   * @param maxWeightBytes the budget, in approximate bytes of heap, for the cached resources
+   * @param connectTimeoutMillis the connect timeout for each fetch
+   * @param readTimeoutMillis the read timeout for each fetch
+   * @param refreshAfterSeconds the age after which an entry is refreshed in the background
+   * @param maxStaleSeconds the age after which an entry that could not be refreshed is dropped
+   * @param negativeTtlSeconds the time for which a failed fetch is cached
+   */
+  public RemoteResourceLoader(
+      long maxWeightBytes,
+      int connectTimeoutMillis,
+      int readTimeoutMillis,
+      long refreshAfterSeconds,
+      long maxStaleSeconds,
+      long negativeTtlSeconds) {
+    this(
+        maxWeightBytes,
+        connectTimeoutMillis,
+        readTimeoutMillis,
+        refreshAfterSeconds,
+        maxStaleSeconds,
+        negativeTtlSeconds,
+        Ticker.systemTicker(),
+        ForkJoinPool.commonPool());
+  }
+
+  RemoteResourceLoader(
+      long maxWeightBytes,
+      int connectTimeoutMillis,
+      int readTimeoutMillis,
+      long refreshAfterSeconds,
+      long maxStaleSeconds,
+      long negativeTtlSeconds,
+      Ticker ticker,
+      Executor executor) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    final long maxStaleNanos = TimeUnit.SECONDS.toNanos(maxStaleSeconds);
+    final long negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumWeight(maxWeightBytes)
+            .weigher(
+                (String key, Resource value) ->
+                    CalloutUtil.textWeight(
+                        key, (value.isFailure()) ? value.failure : value.content))
+            .recordStats()
+            .refreshAfterWrite(refreshAfterSeconds, TimeUnit.SECONDS)
+            .expireAfter(
+                new Expiry<String, Resource>() {
+                  public long expireAfterCreate(String key, Resource value, long currentTime) {
+                    return (value.isFailure()) ? negativeTtlNanos : maxStaleNanos;
+                  }
+
+                  public long expireAfterUpdate(
+                      String key, Resource value, long currentTime, long currentDuration) {
+                    if (value.isFailure()) {
+                      return negativeTtlNanos;
+                    }
+                    // A stale copy does not get a new lease on life.
+                    return (value.stale) ? currentDuration : maxStaleNanos;
+                  }
+
+                  public long expireAfterRead(
+                      String key, Resource value, long currentTime, long currentDuration) {
+                    return currentDuration;
+                  }
+                })
+            .ticker(ticker)
+            .executor(executor)
+            .build(
+                new CacheLoader<String, Resource>() {
+                  public Resource load(String key) {
+                    try {
+                      return fetch(key, null);
+                    } catch (IOException exc1) {
+                      failureCount.increment();
+                      return Resource.failed(exc1.toString());
+                    }
+                  }
+
+                  public Resource reload(String key, Resource oldValue) {
+                    if (oldValue.isFailure()) {
+                      return load(key);
+                    }
+                    try {
+                      return fetch(key, oldValue);
+                    } catch (IOException exc1) {
+                      failureCount.increment();
+                      return oldValue.asStale();
+                    }
+                  }
+                });
+  }
+
+  /**
+   * Returns the content of the resource at the given URL, from cache if possible.
+   *
+   * @throws IOException if the resource could not be fetched, and there is no usable cached copy.
+   */
+  public String get(String url) throws IOException {
+    Resource resource = cache.get(url);
+    if (resource.isFailure()) {
+      throw new IOException(
+          String.format("could not retrieve resource from %s: %s", url, resource.failure));
+    }
+    return resource.content;
+  }
+
+  public long getFetchCount() {
+    return fetchCount.sum();
+  }
+
+  public long getNotModifiedCount() {
+    return notModifiedCount.sum();
+  }
+
+  public long getFailureCount() {
+    return failureCount.sum();
+  }
+
+  public long getEvictionCount() {
+    return cache.stats().evictionCount();
+  }
+
+  /** The total weight, in approximate bytes, of the cached resources. */
+  public long getWeightedSize() {
+    return cache.policy().eviction().get().weightedSize().getAsLong();
+  }
+
+  private Resource fetch(String url, Resource previous) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      connection.setConnectTimeout(connectTimeoutMillis);
+      connection.setReadTimeout(readTimeoutMillis);
+      connection.setUseCaches(false);
+      if (previous != null) {
+        if (previous.etag != null) {
+          connection.setRequestProperty("If-None-Match", previous.etag);
+        }
+        if (previous.lastModified != null) {
+          connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+        }
+      }
+      fetchCount.increment();
+      int status = connection.getResponseCode();
+      if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+        notModifiedCount.increment();
+        return previous.revalidated();
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException(String.format("unexpected status %d", status));
+      }
+      String content;
+      try (InputStream in = connection.getInputStream()) {
+        content = new String(readAllBytes(in), StandardCharsets.UTF_8).trim();
+      }
+      return Resource.of(
+          content, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static byte[] readAllBytes(InputStream in) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    int nRead;
+    byte[] data = new byte[2048];
+    while ((nRead = in.read(data, 0, data.length)) != -1) {
+      buffer.write(data, 0, nRead);
+    }
+    return buffer.toByteArray();
+  }
+}
@@ -1,10 +1,11 @@
 // XsltCallout.java
 //
-// A callout for Apigee Edge that performs an XSLT. This callout uses a "keyed
-// pool" of javax.xml.transform.Transformer objects to optimize the creation of
-// such objects during concurrent requests. The key is the concatenation of the
-// XSLT engine (eg, saxon, xalan), and the XSLT stylesheet name or url (eg,
-// transformResponse.xsl) .
+// A callout for Apigee Edge that performs an XSLT. This callout uses a bounded
+// cache of compiled javax.xml.transform.Templates objects, so that each
+// stylesheet is compiled once, and each request only needs to obtain a new
+// Transformer from the compiled form. The key is the concatenation of the XSLT
+// engine (eg, saxon, xalan), and a digest of the resolved XSLT stylesheet text
+// or url. Cache statistics are emitted as xslt_ context variables.
 //
 // Copyright 2015-2021 Google LLC.
 //
@@ -33,6 +34,10 @@
 //     <Property name='xslt'>immediate-string-containing-xslt</Property>
 //     <Property name='xslt'>{variable-containing-one-of-the-above}</Property>
 //
+//     <!-- or, specify an ordered pipeline of stylesheets, each in any of the above forms -->
+//     <Property name='xslt.1'>file://first-stage.xsl</Property>
+//     <Property name='xslt.2'>file://second-stage.xsl</Property>
+//
 //     <!-- specify engine, default is saxon ->
 //     <Property name='engine'>saxon</Property>
 //     <Property name='engine'>xalan</Property>
@@ -43,10 +48,16 @@
 //     <!-- where to put the transformed data. If none, put in message.content -->
 //     <Property name='output'>name-of-variable-to-hold-output</Property>
 //
+//     <!-- when output is x.content, write the bytes directly into the message -->
+//     <Property name='stream-output'>true</Property>
+//
 //     <!-- arbitrary params to pass to the XSLT -->
 //     <Property name='param_x'>string value of param</Property>
 //     <Property name='param_y'>{variable-containing-value-of-param}</Property>
 //     <Property name='param_z'>file://something.xsd</Property> <!-- resource in jar -->
+//
+//     <!-- params that apply only to one stage of a pipeline -->
+//     <Property name='xslt.2.param_x'>string value of param</Property>
 //   </Properties>
 //   <ClassName>com.dinochiesa.xslt.XsltCallout</ClassName>
 //   <ResourceURL>java://edgecallout-xslt.jar</ResourceURL>
@@ -70,23 +81,29 @@ import com.apigee.flow.message.MessageContext;
 import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.apigee.callouts.CalloutBase;
 import com.google.apigee.util.CalloutUtil;
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
@@ -94,18 +111,34 @@ import javax.xml.transform.stream.StreamSource;
 public class XsltCallout extends CalloutBase implements Execution {
   // The default cap on the number of "sleeping" instances in the pool.
   private static final String varPrefix = "xslt_";
-  protected static final int MAX_CACHE_ENTRIES = 512;
+  // The budget for the text of stylesheets and parameters retrieved from jar
+  // resources, and, separately, from URLs. Each is weighed by its size. Set the
+  // system property to change the budget for the JVM.
+  protected static final long RESOURCE_CACHE_MAX_BYTES =
+      CalloutUtil.getByteBudget(
+          "com.google.apigee.callouts.xslt.resourceCacheMaxBytes", 32L * 1024 * 1024);
   private static final String urlReferencePatternString = "^(https?://)(.+)$";
   private static final Pattern urlReferencePattern = Pattern.compile(urlReferencePatternString);
+  private static final Pattern charsetPattern =
+      Pattern.compile(";\\s*charset\\s*=\\s*\"?([^\";\\s]+)", Pattern.CASE_INSENSITIVE);
   private static final LoadingCache<String, String> fileResourceCache;
-  private static final LoadingCache<String, String> urlResourceCache;
+  static final RemoteResourceLoader urlResourceLoader =
+      new RemoteResourceLoader(
+          RESOURCE_CACHE_MAX_BYTES,
+          5000, // connect timeout, ms
+          10000, // read timeout, ms
+          300, // refresh in the background after 5 minutes
+          3600, // serve a stale copy for no longer than 1 hour
+          30); // cache a failed fetch for 30 seconds
 
   static {
     fileResourceCache =
         Caffeine.newBuilder()
             // .concurrencyLevel(4)
-            .maximumSize(MAX_CACHE_ENTRIES)
+            .maximumWeight(RESOURCE_CACHE_MAX_BYTES)
+            .weigher(CalloutUtil::textWeight)
             .expireAfterAccess(10, TimeUnit.MINUTES)
+            .recordStats()
             .build(
                 new CacheLoader<String, String>() {
                   public String load(String key) throws IOException {
@@ -127,26 +160,6 @@ public class XsltCallout extends CalloutBase implements Execution {
                     return s.trim();
                   }
                 });
-
-    urlResourceCache =
-        Caffeine.newBuilder()
-            // .concurrencyLevel(4)
-            .maximumSize(MAX_CACHE_ENTRIES)
-            .expireAfterAccess(10, TimeUnit.MINUTES)
-            .build(
-                new CacheLoader<String, String>() {
-                  public String load(String key) throws IOException {
-                    String s = "";
-                    try (BufferedReader reader =
-                        new BufferedReader(new InputStreamReader(new URL(key).openStream()))) {
-
-                      s = reader.lines().collect(Collectors.joining("\n"));
-                    } catch (java.lang.Exception exc1) {
-                      // gulp
-                    }
-                    return s.trim();
-                  }
-                });
   }
 
   public XsltCallout(Map properties) {
@@ -189,6 +202,26 @@ public class XsltCallout extends CalloutBase implements Execution {
     return source;
   }
 
+  private boolean wantStreamOutput() {
+    String wantStream = (String) this.properties.get("stream-output");
+    return (wantStream != null) && Boolean.parseBoolean(wantStream);
+  }
+
+  // Returns the Message whose content is the designated output, or null if
+  // the output is not the content of a message.
+  private Message getOutputMessage(String outputVariable, MessageContext msgCtxt) {
+    if (!outputVariable.endsWith(".content")) {
+      return null;
+    }
+    String messageVariable =
+        outputVariable.substring(0, outputVariable.length() - ".content".length());
+    if (messageVariable.equals("message")) {
+      return msgCtxt.getMessage();
+    }
+    Object o = msgCtxt.getVariable(messageVariable);
+    return (o instanceof Message) ? (Message) o : null;
+  }
+
   private String getXslt(MessageContext msgCtxt) throws Exception {
     String xslt = getSimpleRequiredProperty("xslt", msgCtxt);
     xslt = maybeResolveUrlReference(xslt.trim());
@@ -230,67 +263,222 @@ public class XsltCallout extends CalloutBase implements Execution {
     return in;
   }
 
-  private String maybeResolveUrlReference(String ref) throws ExecutionException {
+  private String maybeResolveUrlReference(String ref) throws ExecutionException, IOException {
     if (ref.startsWith("file://")) {
       return fileResourceCache.get(ref.substring(7, ref.length()));
     }
     Matcher m = urlReferencePattern.matcher(ref);
     if (m.find()) {
-      return urlResourceCache.get(ref);
+      return urlResourceLoader.get(ref);
     }
     return ref;
   }
 
-  // Return all properties that begin with param_
+  // Return the ordered list of stylesheets for a pipeline, specified via
+  // xslt.1, xslt.2, ... xslt.n, or an empty list if there are none.
+  private List<String> getPipelineXslts(MessageContext msgCtxt) throws Exception {
+    List<String> xslts = new ArrayList<String>();
+    for (int i = 1; this.properties.containsKey(pipelineStagePrefix(i)); i++) {
+      String xslt = getSimpleRequiredProperty(pipelineStagePrefix(i), msgCtxt);
+      xslts.add(maybeResolveUrlReference(xslt.trim()));
+    }
+    return xslts;
+  }
+
+  private static String pipelineStagePrefix(int stage) {
+    return "xslt." + stage;
+  }
+
+  // Return all properties that begin with the given prefix + param_
   // These will be passed to the XSLT as parameters.
-  private Map<String, String> paramProperties() {
+  private Map<String, String> paramProperties(String prefix) {
     return properties.entrySet().stream()
-        .filter(entry -> entry.getKey().startsWith("param_"))
-        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        .filter(entry -> entry.getKey().startsWith(prefix + "param_"))
+        .collect(
+            Collectors.toMap(
+                entry -> entry.getKey().substring(prefix.length()), Map.Entry::getValue));
+  }
+
+  private void setParameters(Transformer transformer, String prefix, MessageContext msgCtxt)
+      throws Exception {
+    Map<String, String> params = paramProperties(prefix);
+    // pass all specified parameters to the transform
+    for (Map.Entry<String, String> entry : params.entrySet()) {
+      String key = entry.getKey();
+      String[] parts = key.split("_");
+      // sanity check - is this a param?
+      if (parts.length == 2 && parts[0].equals("param")) {
+        String value = entry.getValue();
+        value = resolvePropertyValue(value, msgCtxt);
+        value = maybeResolveUrlReference(value);
+        String pName = parts[1];
+        transformer.setParameter(pName, value);
+      }
+    }
+  }
+
+  private void setCacheVariables(
+      MessageContext msgCtxt, List<CustomTransformerFactory.CompiledXslt> compiledStages) {
+    boolean allHits = compiledStages.stream().allMatch(c -> c.isCacheHit());
+    msgCtxt.setVariable(varName("cache_hit"), allHits);
+    if (!allHits) {
+      msgCtxt.setVariable(
+          varName("compile_time_ms"),
+          compiledStages.stream().mapToLong(c -> c.getCompileTimeMillis()).sum());
+    }
+    CacheStats stats = CustomTransformerFactory.getCacheStats();
+    msgCtxt.setVariable(varName("cache_hits"), stats.hitCount());
+    msgCtxt.setVariable(varName("cache_misses"), stats.missCount());
+    msgCtxt.setVariable(varName("cache_evictions"), stats.evictionCount());
+    msgCtxt.setVariable(varName("cache_size"), CustomTransformerFactory.getCacheSize());
+    msgCtxt.setVariable(varName("cache_weight"), CustomTransformerFactory.getCacheWeight());
+    msgCtxt.setVariable(
+        varName("resource_cache_weight"),
+        fileResourceCache.policy().eviction().get().weightedSize().getAsLong()
+            + urlResourceLoader.getWeightedSize());
+    msgCtxt.setVariable(
+        varName("resource_cache_evictions"),
+        fileResourceCache.stats().evictionCount() + urlResourceLoader.getEvictionCount());
+    msgCtxt.setVariable(
+        varName("cache_total_compile_time_ms"),
+        TimeUnit.NANOSECONDS.toMillis(stats.totalLoadTime()));
+  }
+
+  // Runs the input through a chain of TransformerHandlers. SAX events flow
+  // directly from one stage to the next; intermediate results are never
+  // serialized nor re-parsed. Returns the Transformer for the final stage.
+  private Transformer transformPipeline(
+      List<CustomTransformerFactory.CompiledXslt> compiledStages,
+      String xsltEngine,
+      Source input,
+      Result output,
+      ErrorListener listener,
+      MessageContext msgCtxt)
+      throws Exception {
+    TransformerHandler[] handlers = new TransformerHandler[compiledStages.size()];
+    for (int i = 0; i < handlers.length; i++) {
+      handlers[i] = compiledStages.get(i).newTransformerHandler(xsltEngine);
+      Transformer transformer = handlers[i].getTransformer();
+      transformer.setErrorListener(listener);
+      // params that apply to all stages, then params for this stage only
+      setParameters(transformer, "", msgCtxt);
+      setParameters(transformer, pipelineStagePrefix(i + 1) + ".", msgCtxt);
+      if (i > 0) {
+        handlers[i - 1].setResult(new SAXResult(handlers[i]));
+      }
+    }
+    handlers[handlers.length - 1].setResult(output);
+
+    // parse the input, feeding SAX events into the first stage
+    Transformer parser =
+        CustomTransformerFactory.getSAXTransformerFactory(xsltEngine).newTransformer();
+    parser.setErrorListener(listener);
+    parser.transform(input, new SAXResult(handlers[0]));
+    return handlers[handlers.length - 1].getTransformer();
+  }
+
+  private static void checkErrors(CustomXsltErrorListener listener) throws Exception {
+    if (listener.getErrorCount() > 0) {
+      throw new Exception(
+          "Encountered " + listener.getErrorCount() + " errors while transforming");
+    }
+  }
+
+  // Whether the message can take UTF-8 bytes as its content: it declares no
+  // charset, or declares UTF-8.
+  private static boolean acceptsUtf8(Message message) {
+    String contentType = message.getHeader("Content-Type");
+    if (contentType == null) return true;
+    Matcher m = charsetPattern.matcher(contentType);
+    return !m.find() || isUtf8(m.group(1));
+  }
+
+  private static boolean isUtf8(String charset) {
+    return charset == null
+        || charset.equalsIgnoreCase("utf-8")
+        || charset.equalsIgnoreCase("utf8");
+  }
+
+  /**
+   * A ByteArrayOutputStream that can be read back as an InputStream without copying the buffer.
+   */
+  static final class ContentOutputStream extends ByteArrayOutputStream {
+    ContentOutputStream() {
+      super(8192);
+    }
+
+    // Reads the bytes in place, without the leading and trailing whitespace,
+    // as String.trim() removes it. In UTF-8, those bytes are never part of a
+    // multi-byte character.
+    InputStream toTrimmedInputStream() {
+      int start = 0;
+      int end = count;
+      while (start < end && (buf[start] & 0xff) <= ' ') start++;
+      while (end > start && (buf[end - 1] & 0xff) <= ' ') end--;
+      return new ByteArrayInputStream(buf, start, end - start);
+    }
   }
 
   public ExecutionResult execute(MessageContext msgCtxt, ExecutionContext exeCtxt) {
     ExecutionResult calloutResult = ExecutionResult.ABORT;
-    Boolean isValid = false;
-    String cacheKey = null;
     boolean debug = getDebug();
     Transformer transformer = null;
     try {
-      String xslt = getXslt(msgCtxt);
       String xsltEngine = getEngine(msgCtxt);
-      cacheKey = xsltEngine + "-" + xslt;
-      transformer = CustomTransformerFactory.createTransformer(cacheKey);
+      List<String> xslts = getPipelineXslts(msgCtxt);
+      boolean isPipeline = xslts.size() > 0;
+      if (!isPipeline) {
+        xslts.add(getXslt(msgCtxt));
+      }
+      List<CustomTransformerFactory.CompiledXslt> compiledStages =
+          new ArrayList<CustomTransformerFactory.CompiledXslt>();
+      for (String xslt : xslts) {
+        compiledStages.add(CustomTransformerFactory.getCompiledXslt(xsltEngine, xslt));
+      }
+      setCacheVariables(msgCtxt, compiledStages);
       CustomXsltErrorListener listener = new CustomXsltErrorListener(msgCtxt, debug);
-      transformer.setErrorListener(listener);
       Source input = getTransformInput(msgCtxt);
 
-      Map<String, String> params = paramProperties();
-      // pass all specified parameters to the transform
-      for (Map.Entry<String, String> entry : params.entrySet()) {
-        String key = entry.getKey();
-        String[] parts = key.split("_");
-        // sanity check - is this a param?
-        if (parts.length == 2 && parts[0].equals("param")) {
-          String value = entry.getValue();
-          value = resolvePropertyValue(value, msgCtxt);
-          value = maybeResolveUrlReference(value);
-          String pName = parts[1];
-          transformer.setParameter(pName, value);
-        }
-      }
-
-      StreamResult xformOutput = new StreamResult(new java.io.StringWriter());
-      transformer.transform(input, xformOutput);
+      String outputVariable = getOutputVar(msgCtxt);
+      Message outputMessage =
+          (wantStreamOutput()) ? getOutputMessage(outputVariable, msgCtxt) : null;
+      // When streaming, the transformer encodes the output exactly once,
+      // using the encoding specified in xsl:output. If that is UTF-8, and the
+      // message accepts UTF-8, the message content is read directly from the
+      // encoded bytes; no intermediate String is built.
+      ContentOutputStream out = (outputMessage != null) ? new ContentOutputStream() : null;
+      StreamResult xformOutput =
+          (out != null) ? new StreamResult(out) : new StreamResult(new java.io.StringWriter());
 
-      if (listener.getErrorCount() > 0) {
-        throw new Exception(
-            "Encountered " + listener.getErrorCount() + " errors while transforming");
+      if (isPipeline) {
+        transformer =
+            transformPipeline(compiledStages, xsltEngine, input, xformOutput, listener, msgCtxt);
+      } else {
+        transformer = compiledStages.get(0).newTransformer();
+        transformer.setErrorListener(listener);
+        setParameters(transformer, "", msgCtxt);
+        transformer.transform(input, xformOutput);
       }
+      checkErrors(listener);
 
-      // set the result into a context variable
-      String xformResult = xformOutput.getWriter().toString().trim();
-      String outputVariable = getOutputVar(msgCtxt);
-      msgCtxt.setVariable(outputVariable, xformResult);
+      if (out != null) {
+        String encoding = transformer.getOutputProperty(OutputKeys.ENCODING);
+        if (encoding != null) {
+          msgCtxt.setVariable(varName("output_encoding"), encoding);
+        }
+        if (isUtf8(encoding) && acceptsUtf8(outputMessage)) {
+          outputMessage.setContent(out.toTrimmedInputStream());
+        } else {
+          // the message would read the bytes with another charset; give it a
+          // String, as without streaming, to encode as it does.
+          outputMessage.setContent(
+              out.toString((encoding != null) ? encoding : "UTF-8").trim());
+        }
+      } else {
+        // set the result into a context variable
+        String xformResult = xformOutput.getWriter().toString().trim();
+        msgCtxt.setVariable(outputVariable, xformResult);
+      }
       calloutResult = ExecutionResult.SUCCESS;
     } catch (Exception e) {
       if (debug) System.out.println(CalloutUtil.getStackTraceAsString(e));
@@ -26,6 +26,9 @@ package com.google.apigee.util;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -54,6 +57,36 @@ public final class CalloutUtil {
     return sw.toString();
   }
 
+  // Returns the hex-encoded SHA-256 of the UTF-8 bytes of the given string.
+  // Useful as a compact cache key for stylesheets and other large strings.
+  public static String sha256Hex(String s) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] digest = md.digest(s.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b & 0xff));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every JRE is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // The approximate number of bytes of heap held by a cached string and its
+  // key: two bytes per char. For use as a cache weigher.
+  public static int textWeight(String key, String value) {
+    long chars = (long) key.length() + ((value == null) ? 0 : value.length());
+    return (int) Math.min(Integer.MAX_VALUE, 2 * chars);
+  }
+
+  // Returns the named JVM system property as a number of bytes, or the default.
+  public static long getByteBudget(String propertyName, long defaultBytes) {
+    Long value = Long.getLong(propertyName);
+    return (value == null || value <= 0) ? defaultBytes : value;
+  }
+
   // public static String getHeaderWithCommas(MessageContext msgCtxt, String headerName) {
   //     ArrayList list = msgCtxt.getVariable("request.header." + headerName + ".values");
   //     return StringUtils.join(list,",");
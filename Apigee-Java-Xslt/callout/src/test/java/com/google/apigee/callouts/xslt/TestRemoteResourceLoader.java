@@ -0,0 +1,165 @@
+// Copyright 2017-2021 Google LLC.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.google.apigee.callouts.xslt;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TestRemoteResourceLoader {
+  private static final String content = "<xsl:stylesheet/>";
+  private static final String etag = "\"v1\"";
+
+  HttpServer server;
+  String url;
+  AtomicInteger status = new AtomicInteger(200);
+  AtomicLong delayMillis = new AtomicLong(0);
+  AtomicLong now = new AtomicLong(0);
+  Ticker ticker = () -> now.get();
+
+  @BeforeMethod()
+  public void beforeMethod() throws IOException {
+    status.set(200);
+    delayMillis.set(0);
+    now.set(0);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/sheet.xsl",
+        exchange -> {
+          try {
+            Thread.sleep(delayMillis.get());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          if (status.get() != 200) {
+            exchange.sendResponseHeaders(status.get(), -1);
+          } else if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+          } else {
+            byte[] body = content.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+              out.write(body);
+            }
+          }
+          exchange.close();
+        });
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + "/sheet.xsl";
+  }
+
+  @AfterMethod()
+  public void afterMethod() {
+    server.stop(0);
+  }
+
+  private RemoteResourceLoader newLoader() {
+    // 1 MB budget, refresh after 60s, stale for up to 600s, negative entries for 10s.
+    // The same-thread executor makes background refreshes deterministic.
+    return new RemoteResourceLoader(1024 * 1024, 1000, 500, 60, 600, 10, ticker, Runnable::run);
+  }
+
+  private void advanceSeconds(long seconds) {
+    now.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+  }
+
+  private IOException expectFailure(RemoteResourceLoader loader) {
+    try {
+      loader.get(url);
+    } catch (IOException exc) {
+      return exc;
+    }
+    Assert.fail("expected an IOException");
+    return null;
+  }
+
+  @Test
+  public void test1_ConditionalRefresh() throws Exception {
+    RemoteResourceLoader loader = newLoader();
+    Assert.assertEquals(loader.get(url), content);
+    Assert.assertEquals(loader.get(url), content);
+    Assert.assertEquals(loader.getFetchCount(), 1L);
+
+    advanceSeconds(61);
+    Assert.assertEquals(loader.get(url), content);
+    Assert.assertEquals(loader.getFetchCount(), 2L);
+    Assert.assertEquals(loader.getNotModifiedCount(), 1L);
+  }
+
+  @Test
+  public void test2_ServeStaleOnRefreshFailure() throws Exception {
+    RemoteResourceLoader loader = newLoader();
+    Assert.assertEquals(loader.get(url), content);
+
+    status.set(500);
+    advanceSeconds(61);
+    Assert.assertEquals(loader.get(url), content);
+    Assert.assertEquals(loader.get(url), content);
+    Assert.assertEquals(loader.getFailureCount(), 1L);
+
+    // the stale copy is not served past the maximum stale age
+    advanceSeconds(600);
+    expectFailure(loader);
+  }
+
+  @Test
+  public void test3_NegativeCaching() throws Exception {
+    RemoteResourceLoader loader = newLoader();
+    status.set(404);
+    expectFailure(loader);
+    expectFailure(loader);
+    Assert.assertEquals(loader.getFetchCount(), 1L);
+
+    status.set(200);
+    advanceSeconds(11);
+    Assert.assertEquals(loader.get(url), content);
+    Assert.assertEquals(loader.getFetchCount(), 2L);
+  }
+
+  @Test
+  public void test5_EvictsBySize() throws Exception {
+    // The budget holds one copy of the content, but not two.
+    RemoteResourceLoader loader =
+        new RemoteResourceLoader(
+            2 * (url.length() + content.length()) + 10, 1000, 500, 60, 600, 10, ticker,
+            Runnable::run);
+    Assert.assertEquals(loader.get(url), content);
+    Assert.assertEquals(loader.get(url + "?v=2"), content);
+    Assert.assertTrue(
+        loader.getWeightedSize() <= 2 * (url.length() + content.length()) + 10,
+        "weighted size exceeds budget");
+    Assert.assertEquals(loader.getEvictionCount(), 1L);
+  }
+
+  @Test
+  public void test4_ReadTimeout() throws Exception {
+    RemoteResourceLoader loader = newLoader();
+    delayMillis.set(2000);
+    IOException exc = expectFailure(loader);
+    Assert.assertTrue(exc.getMessage().contains("timed out"), exc.getMessage());
+  }
+}
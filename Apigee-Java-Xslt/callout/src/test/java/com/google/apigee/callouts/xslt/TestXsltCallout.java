@@ -23,10 +23,12 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -52,11 +54,17 @@ public class TestXsltCallout {
   MessageContext msgCtxt;
   // String messageContent;
   InputStream messageContentStream;
+  byte[] messageContentOut; // content set into the message as a stream
+  String messageContentString; // content set into the message as a String
+  String messageContentType;
   Message message;
   ExecutionContext exeCtxt;
 
   @BeforeMethod()
   public void beforeMethod() {
+    messageContentOut = null;
+    messageContentString = null;
+    messageContentType = null;
 
     msgCtxt =
         new MockUp<MessageContext>() {
@@ -109,6 +117,27 @@ public class TestXsltCallout {
             // new ByteArrayInputStream(messageContent.getBytes(StandardCharsets.UTF_8));
             return messageContentStream;
           }
+
+          @Mock()
+          public void setContent(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[2048];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+              out.write(buf, 0, n);
+            }
+            messageContentOut = out.toByteArray();
+          }
+
+          @Mock()
+          public void setContent(String s) {
+            messageContentString = s;
+          }
+
+          @Mock()
+          public String getHeader(String name) {
+            return name.equalsIgnoreCase("Content-Type") ? messageContentType : null;
+          }
         }.getMockInstance();
   }
 
@@ -214,6 +243,10 @@ public class TestXsltCallout {
                             .lines().collect(Collectors.joining("\n"));
 
         String actualOutput = (String) (msgCtxt.getVariable("message.content"));
+        if (actualOutput == null && messageContentOut != null) {
+          // the callout streamed the output directly into the message
+          actualOutput = new String(messageContentOut, StandardCharsets.UTF_8);
+        }
 
         Diff diff =
             DiffBuilder.compare(expectedOutput)
@@ -250,4 +283,52 @@ public class TestXsltCallout {
     }
     System.out.println("=========================================================");
   }
+
+  @Test
+  public void test3_CompiledTemplatesAreCached() throws Exception {
+    String xslt = resolveFileReference("file://Sample-Soap-ReOrderNodes.xsl");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("input", "inputVarname");
+    props.put("xslt", "{myxsl}");
+    msgCtxt.setVariable("myxsl", xslt);
+
+    for (int i = 0; i < 2; i++) {
+      msgCtxt.setVariable("inputVarname", resolveFileReference("file://Sample-Soap.xml"));
+      XsltCallout callout = new XsltCallout(props);
+      ExecutionResult actualResult = callout.execute(msgCtxt, exeCtxt);
+      Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    }
+
+    // the second execution must use the compiled form from the first
+    Assert.assertEquals(msgCtxt.getVariable("xslt_cache_hit"), Boolean.TRUE);
+    Assert.assertTrue(((Long) msgCtxt.getVariable("xslt_cache_hits")) > 0L);
+    Assert.assertTrue(((Long) msgCtxt.getVariable("xslt_cache_size")) > 0L);
+  }
+
+  @Test
+  public void test4_StreamOutputFollowsMessageCharset() throws Exception {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("input", "inputVarname");
+    props.put("xslt", "{myxsl}");
+    props.put("stream-output", "true");
+    msgCtxt.setVariable("myxsl", resolveFileReference("file://Sample-Soap-ReOrderNodes.xsl"));
+
+    // The message accepts UTF-8, so it gets the bytes, trimmed as a String would be.
+    msgCtxt.setVariable("inputVarname", resolveFileReference("file://Sample-Soap.xml"));
+    messageContentType = "text/xml; charset=UTF-8";
+    ExecutionResult actualResult = new XsltCallout(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNull(messageContentString, "content as String");
+    String streamed = new String(messageContentOut, StandardCharsets.UTF_8);
+    Assert.assertEquals(streamed, streamed.trim(), "streamed content is trimmed");
+
+    // The message declares another charset, so it gets a String, to encode as it does.
+    messageContentOut = null;
+    msgCtxt.setVariable("inputVarname", resolveFileReference("file://Sample-Soap.xml"));
+    messageContentType = "text/xml; charset=ISO-8859-1";
+    actualResult = new XsltCallout(props).execute(msgCtxt, exeCtxt);
+    Assert.assertEquals(actualResult, ExecutionResult.SUCCESS, "result not as expected");
+    Assert.assertNull(messageContentOut, "content as stream");
+    Assert.assertEquals(messageContentString, streamed, "content as String");
+  }
 }
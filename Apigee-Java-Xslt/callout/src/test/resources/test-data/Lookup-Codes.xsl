@@ -0,0 +1,15 @@
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+  <xsl:output method="xml" omit-xml-declaration="yes" indent="yes"/>
+
+  <!-- lookup table embedded in the jar, under /resources -->
+  <xsl:variable name="codes" select="document('file://lookup-codes.xml')"/>
+
+  <xsl:template match="/">
+    <Names>
+      <xsl:for-each select="/Codes/Code">
+        <xsl:variable name="id" select="."/>
+        <Name><xsl:value-of select="$codes/codes/code[@id=$id]/@name"/></Name>
+      </xsl:for-each>
+    </Names>
+  </xsl:template>
+</xsl:stylesheet>
@@ -0,0 +1,8 @@
+<xsl:stylesheet version="1.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+  <xsl:output method="xml" omit-xml-declaration="yes" indent="yes"/>
+
+  <!-- the lookup document declares an external entity, which must not be resolved -->
+  <xsl:template match="/">
+    <Lookup><xsl:value-of select="document('file://lookup-external-entity.xml')/codes"/></Lookup>
+  </xsl:template>
+</xsl:stylesheet>